@@ -0,0 +1,245 @@
+package org.janelia.saalfeldlab.graph;
+
+import java.io.Serializable;
+
+import org.janelia.saalfeldlab.graph.edge.Edge;
+import org.janelia.saalfeldlab.graph.edge.EdgeMerger;
+import org.janelia.saalfeldlab.graph.edge.EdgeStore;
+
+import gnu.trove.iterator.TLongIntIterator;
+
+/**
+ * Compressed sparse row adjacency of the nodes {@code 0 ... nNodes - 1}: the
+ * neighbors of node {@code n} and the indices of the connecting edges are
+ * stored in {@code neighbors} and {@code edgeIndices} at positions
+ * {@code offsets[ n ] ... offsets[ n + 1 ] - 1}, sorted by neighbor id.
+ */
+public class CsrAdjacency implements Serializable
+{
+
+	private final int[] offsets;
+
+	private final int[] neighbors;
+
+	private final int[] edgeIndices;
+
+	private CsrAdjacency( final int[] offsets, final int[] neighbors, final int[] edgeIndices )
+	{
+		super();
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+		this.edgeIndices = edgeIndices;
+	}
+
+	public static CsrAdjacency empty()
+	{
+		return new CsrAdjacency( new int[] { 0 }, new int[ 0 ], new int[ 0 ] );
+	}
+
+	/**
+	 * Build adjacency of all valid edges in {@code edges}. If a pair of nodes
+	 * is connected by multiple edges, all but the edge with the lowest index
+	 * are merged into that edge and set obsolete, and the remaining edge is
+	 * set stale.
+	 */
+	public static CsrAdjacency build( final EdgeStore edges, final int nNodes, final EdgeMerger edgeMerger )
+	{
+		final Edge e1 = new Edge( edges );
+		final Edge e2 = new Edge( edges );
+		final int nEdges = edges.size();
+
+		final int[] offsets = new int[ nNodes + 1 ];
+		for ( int i = edges.nextValid( 0 ); i < nEdges; i = edges.nextValid( i + 1 ) )
+		{
+			e1.setIndex( i );
+			assert e1.from() != e1.to(): e1;
+			++offsets[ ( int ) e1.from() + 1 ];
+			++offsets[ ( int ) e1.to() + 1 ];
+		}
+		for ( int n = 0; n < nNodes; ++n )
+			offsets[ n + 1 ] += offsets[ n ];
+
+		final int nEntries = offsets[ nNodes ];
+		final int[] position = new int[ nNodes ];
+
+		// two pass counting sort: bucket by neighbor first, then distribute
+		// into rows in order of neighbors. Both passes are stable, so rows are
+		// sorted by neighbor and edge index.
+		final int[] owners = new int[ nEntries ];
+		final int[] ownerEdgeIndices = new int[ nEntries ];
+		System.arraycopy( offsets, 0, position, 0, nNodes );
+		for ( int i = edges.nextValid( 0 ); i < nEdges; i = edges.nextValid( i + 1 ) )
+		{
+			e1.setIndex( i );
+			final int from = ( int ) e1.from();
+			final int to = ( int ) e1.to();
+			owners[ position[ to ] ] = from;
+			ownerEdgeIndices[ position[ to ]++ ] = i;
+			owners[ position[ from ] ] = to;
+			ownerEdgeIndices[ position[ from ]++ ] = i;
+		}
+
+		final int[] neighbors = new int[ nEntries ];
+		final int[] edgeIndices = new int[ nEntries ];
+		System.arraycopy( offsets, 0, position, 0, nNodes );
+		for ( int neighbor = 0; neighbor < nNodes; ++neighbor )
+			for ( int j = offsets[ neighbor ]; j < offsets[ neighbor + 1 ]; ++j )
+			{
+				final int owner = owners[ j ];
+				neighbors[ position[ owner ] ] = neighbor;
+				edgeIndices[ position[ owner ]++ ] = ownerEdgeIndices[ j ];
+			}
+
+		// merge parallel edges into the edge with the lowest index
+		boolean hasParallelEdges = false;
+		for ( int n = 0; n < nNodes; ++n )
+			for ( int j = offsets[ n ] + 1; j < offsets[ n + 1 ]; ++j )
+			{
+				if ( neighbors[ j ] != neighbors[ j - 1 ] || neighbors[ j ] < n )
+					continue;
+				hasParallelEdges = true;
+				int first = j - 1;
+				while ( first > offsets[ n ] && neighbors[ first - 1 ] == neighbors[ j ] )
+					--first;
+				e1.setIndex( edgeIndices[ j ] );
+				e2.setIndex( edgeIndices[ first ] );
+				edgeMerger.merge( e1, e2 );
+				e2.setStale();
+				e1.setObsolete();
+			}
+
+		if ( hasParallelEdges )
+		{
+			int target = 0;
+			for ( int n = 0; n < nNodes; ++n )
+			{
+				final int start = offsets[ n ];
+				offsets[ n ] = target;
+				for ( int j = start; j < offsets[ n + 1 ]; ++j )
+				{
+					e1.setIndex( edgeIndices[ j ] );
+					if ( e1.isObsolete() )
+						continue;
+					neighbors[ target ] = neighbors[ j ];
+					edgeIndices[ target ] = edgeIndices[ j ];
+					++target;
+				}
+			}
+			offsets[ nNodes ] = target;
+		}
+
+		return new CsrAdjacency( offsets, neighbors, edgeIndices );
+	}
+
+	public int nNodes()
+	{
+		return offsets.length - 1;
+	}
+
+	public boolean contains( final long node )
+	{
+		return node >= 0 && node < nNodes();
+	}
+
+	public int degree( final long node )
+	{
+		return offsets[ ( int ) node + 1 ] - offsets[ ( int ) node ];
+	}
+
+	/**
+	 * @return index of edge that connects {@code node} and {@code neighbor}
+	 *         or {@code -1} if no such edge exists.
+	 */
+	public int edgeIndex( final long node, final long neighbor )
+	{
+		int lower = offsets[ ( int ) node ];
+		int upper = offsets[ ( int ) node + 1 ] - 1;
+		while ( lower <= upper )
+		{
+			final int mid = ( lower + upper ) >>> 1;
+			final int n = neighbors[ mid ];
+			if ( n < neighbor )
+				lower = mid + 1;
+			else if ( n > neighbor )
+				upper = mid - 1;
+			else
+				return edgeIndices[ mid ];
+		}
+		return -1;
+	}
+
+	/**
+	 * Replace all edge indices {@code i} by {@code newIndices[ i ]}, e.g.
+	 * after {@link UndirectedGraph#compact()}. Removed edges are marked with
+	 * {@code -1} and stay removed.
+	 */
+	public void remapEdgeIndices( final int[] newIndices )
+	{
+		for ( int j = 0; j < edgeIndices.length; ++j )
+			if ( edgeIndices[ j ] >= 0 )
+				edgeIndices[ j ] = newIndices[ edgeIndices[ j ] ];
+	}
+
+	/**
+	 * Iterate over the neighbors of {@code node} (keys) and the connecting
+	 * edge indices (values) in ascending order of neighbors.
+	 */
+	public TLongIntIterator iterator( final long node )
+	{
+		return new RowIterator( offsets[ ( int ) node ], offsets[ ( int ) node + 1 ] );
+	}
+
+	private class RowIterator implements TLongIntIterator
+	{
+
+		private final int stop;
+
+		private int position;
+
+		private RowIterator( final int start, final int stop )
+		{
+			this.position = start - 1;
+			this.stop = stop;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return position + 1 < stop;
+		}
+
+		@Override
+		public void advance()
+		{
+			++position;
+		}
+
+		@Override
+		public long key()
+		{
+			return neighbors[ position ];
+		}
+
+		@Override
+		public int value()
+		{
+			return edgeIndices[ position ];
+		}
+
+		@Override
+		public int setValue( final int value )
+		{
+			final int previous = edgeIndices[ position ];
+			edgeIndices[ position ] = value;
+			return previous;
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException( "Cannot remove entries from compressed sparse row adjacency." );
+		}
+
+	}
+
+}
@@ -2,9 +2,15 @@ package org.janelia.saalfeldlab.graph;
 
 import java.io.Serializable;
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
 
+import org.janelia.saalfeldlab.graph.edge.ColumnarEdgeStore;
 import org.janelia.saalfeldlab.graph.edge.Edge;
 import org.janelia.saalfeldlab.graph.edge.EdgeMerger;
+import org.janelia.saalfeldlab.graph.edge.EdgeStore;
+import org.janelia.saalfeldlab.graph.edge.InterleavedEdgeStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,52 +18,300 @@ import gnu.trove.iterator.TLongIntIterator;
 import gnu.trove.list.array.TDoubleArrayList;
 import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
 
 public class UndirectedGraph implements Serializable
 {
 
 	public static final Logger LOG = LoggerFactory.getLogger( MethodHandles.lookup().lookupClass() );
 
-	private final TDoubleArrayList edges;
+	private static final int MAX_POOL_SIZE = 1 << 10;
 
+	/**
+	 * Largest degree of nodes whose maps are taken from
+	 * {@link #nodeEdgesPool}.
+	 */
+	private static final int MAX_POOLED_DEGREE = 1 << 5;
+
+	/**
+	 * Largest capacity of maps in {@link #nodeEdgesPool}.
+	 * {@link TLongIntHashMap#clear()} does not shrink a map, so maps of
+	 * high degree nodes are left to the garbage collector instead.
+	 */
+	private static final int MAX_POOLED_CAPACITY = new TLongIntHashMap( MAX_POOLED_DEGREE ).capacity();
+
+	private static final TLongIntHashMap NO_NODE_EDGES = new TLongIntHashMap( 1 );
+
+	private final EdgeStore edges;
+
+	private final CsrAdjacency adjacency;
+
+	/**
+	 * Neighbors of nodes that were modified after construction. These take
+	 * precedence over {@link #adjacency}.
+	 */
 	private final TLongObjectHashMap< TLongIntHashMap > nodeEdgeMap;
 
+	/**
+	 * Nodes of {@link #adjacency} that were contracted into another node.
+	 */
+	private final BitSet removedNodes = new BitSet();
+
+	/**
+	 * Cleared maps of removed nodes that are reused when nodes of degree up to
+	 * {@link #MAX_POOLED_DEGREE} are copied into {@link #nodeEdgeMap}.
+	 */
+	private final ArrayDeque< TLongIntHashMap > nodeEdgesPool = new ArrayDeque<>();
+
+	private final int nNodes;
+
+	private int nLiveNodes;
+
 	private final Edge e1, e2;
 
+	private final TIntHashSet dirtyEdges = new TIntHashSet();
+
 	public UndirectedGraph( final int nNodes, final EdgeMerger edgeMerger )
 	{
-		this( nNodes, new TDoubleArrayList(), edgeMerger );
+		this( nNodes, new ColumnarEdgeStore( edgeMerger.dataSize() ), edgeMerger );
 	}
 
 	public UndirectedGraph( final int nNodes, final TDoubleArrayList edges, final EdgeMerger edgeMerger )
 	{
-		this( edges, nodeEdgeMap( edges, nNodes, edgeMerger, edgeMerger.dataSize() ), edgeMerger.dataSize() );
+		this( nNodes, new InterleavedEdgeStore( edges, edgeMerger.dataSize() ), edgeMerger );
+	}
+
+	public UndirectedGraph( final int nNodes, final EdgeStore edges, final EdgeMerger edgeMerger )
+	{
+		this( edges, CsrAdjacency.build( edges, nNodes, edgeMerger ), new TLongObjectHashMap<>() );
 	}
 
 	public UndirectedGraph( final TDoubleArrayList edges, final TLongObjectHashMap< TLongIntHashMap > nodeEdgeMap, final int edgeDataSize )
+	{
+		this( new InterleavedEdgeStore( edges, edgeDataSize ), nodeEdgeMap );
+	}
+
+	public UndirectedGraph( final EdgeStore edges, final TLongObjectHashMap< TLongIntHashMap > nodeEdgeMap )
+	{
+		this( edges, CsrAdjacency.empty(), nodeEdgeMap );
+	}
+
+	public UndirectedGraph( final EdgeStore edges, final CsrAdjacency adjacency, final TLongObjectHashMap< TLongIntHashMap > nodeEdgeMap )
 	{
 		this.edges = edges;
+		this.adjacency = adjacency;
 		this.nodeEdgeMap = nodeEdgeMap;
-		this.e1 = new Edge( edges, edgeDataSize );
-		this.e2 = new Edge( edges, edgeDataSize );
+		int nNodes = adjacency.nNodes();
+		for ( final long node : nodeEdgeMap.keys() )
+			if ( !adjacency.contains( node ) )
+				++nNodes;
+		this.nNodes = nNodes;
+		this.nLiveNodes = nNodes;
+		this.e1 = new Edge( edges );
+		this.e2 = new Edge( edges );
 	}
 
-	public TDoubleArrayList edges()
+	public EdgeStore edges()
 	{
 		return edges;
 	}
 
+	public CsrAdjacency adjacency()
+	{
+		return adjacency;
+	}
+
+	/**
+	 * Neighbors of all live nodes as a map from node to a map from neighbor
+	 * to edge index. All nodes of {@link #adjacency()} that were not modified
+	 * yet are copied into the map first, so this costs as much memory as the
+	 * graph before {@link CsrAdjacency}. Changes to the returned map change
+	 * the graph.
+	 *
+	 * @deprecated use {@link #nodeEdgeIterator(long)},
+	 *             {@link #edgeIndex(long, long)}, and {@link #degree(long)}
+	 */
+	@Deprecated
 	public TLongObjectHashMap< TLongIntHashMap > nodeEdgeMap()
 	{
+		for ( int node = 0; node < adjacency.nNodes(); ++node )
+			if ( isInAdjacency( node ) )
+				modifiableNodeEdges( node );
 		return nodeEdgeMap;
 	}
 
+	/**
+	 * Iterate over the neighbors of {@code node} (keys) and the indices of the
+	 * connecting edges (values).
+	 */
+	public TLongIntIterator nodeEdgeIterator( final long node )
+	{
+		final TLongIntHashMap nodeEdges = nodeEdgeMap.get( node );
+		if ( nodeEdges != null )
+			return nodeEdges.iterator();
+		return isInAdjacency( node ) ? adjacency.iterator( node ) : NO_NODE_EDGES.iterator();
+	}
+
+	/**
+	 * @return index of edge that connects {@code node} and {@code neighbor}
+	 *         or {@code -1} if no such edge exists.
+	 */
+	public int edgeIndex( final long node, final long neighbor )
+	{
+		final TLongIntHashMap nodeEdges = nodeEdgeMap.get( node );
+		if ( nodeEdges == null )
+			return isInAdjacency( node ) ? adjacency.edgeIndex( node, neighbor ) : -1;
+		return nodeEdges.contains( neighbor ) ? nodeEdges.get( neighbor ) : -1;
+	}
+
+	/**
+	 * @return number of neighbors of {@code node}
+	 */
+	public int degree( final long node )
+	{
+		final TLongIntHashMap nodeEdges = nodeEdgeMap.get( node );
+		if ( nodeEdges != null )
+			return nodeEdges.size();
+		return isInAdjacency( node ) ? adjacency.degree( node ) : 0;
+	}
+
+	/**
+	 * @return number of nodes at construction
+	 */
 	public int nNodes()
 	{
-		return nodeEdgeMap.size();
+		return nNodes;
 	}
 
-	public TLongIntHashMap contract(
+	/**
+	 * @return number of nodes that were not contracted into another node
+	 */
+	public int nLiveNodes()
+	{
+		return nLiveNodes;
+	}
+
+	private boolean isInAdjacency( final long node )
+	{
+		return adjacency.contains( node ) && !removedNodes.get( ( int ) node );
+	}
+
+	/**
+	 * Neighbors of {@code node} as a mutable map. Nodes that are not yet in
+	 * {@link #nodeEdgeMap} are copied from {@link #adjacency} first.
+	 */
+	private TLongIntHashMap modifiableNodeEdges( final long node )
+	{
+		final TLongIntHashMap nodeEdges = nodeEdgeMap.get( node );
+		if ( nodeEdges != null )
+			return nodeEdges;
+		final int degree = adjacency.degree( node );
+		final TLongIntHashMap copy;
+		if ( degree > MAX_POOLED_DEGREE || nodeEdgesPool.isEmpty() )
+			copy = new TLongIntHashMap( Math.max( degree, 1 ) );
+		else
+		{
+			copy = nodeEdgesPool.pop();
+			copy.ensureCapacity( degree );
+		}
+		for ( final TLongIntIterator it = adjacency.iterator( node ); it.hasNext(); )
+		{
+			it.advance();
+			copy.put( it.key(), it.value() );
+		}
+		nodeEdgeMap.put( node, copy );
+		return copy;
+	}
+
+	/**
+	 * Remove {@code node} from the graph and recycle its map.
+	 */
+	private void removeNode( final long node )
+	{
+		final TLongIntHashMap nodeEdges = nodeEdgeMap.remove( node );
+		if ( nodeEdges != null && nodeEdgesPool.size() < MAX_POOL_SIZE && nodeEdges.capacity() <= MAX_POOLED_CAPACITY )
+		{
+			nodeEdges.clear();
+			nodeEdgesPool.push( nodeEdges );
+		}
+		if ( adjacency.contains( node ) )
+			removedNodes.set( ( int ) node );
+		--nLiveNodes;
+	}
+
+	/**
+	 * Indices of all edges that were modified by {@link #contract} since the
+	 * last call to {@link #clearDirtyEdges()}: the contracted edge, edges that
+	 * became obsolete or stale, and edges that were moved to the new node.
+	 */
+	public TIntHashSet dirtyEdges()
+	{
+		return dirtyEdges;
+	}
+
+	public void clearDirtyEdges()
+	{
+		dirtyEdges.clear();
+	}
+
+	/**
+	 * Move all valid edges to the front of {@link #edges()}, preserving their
+	 * order, and remove all obsolete edges. Edge indices in the adjacency of
+	 * all nodes and in {@link #dirtyEdges()} are rewritten, obsolete dirty
+	 * edges are dropped. Only nodes that were not modified keep their rows in
+	 * {@link #adjacency()}, and those only reference valid edges.
+	 *
+	 * @return new index of each edge before compaction, {@code -1} for
+	 *         removed edges
+	 */
+	public int[] compact()
+	{
+		final int size = edges.size();
+		final int[] newIndices = new int[ size ];
+		Arrays.fill( newIndices, -1 );
+		int nValid = 0;
+		for ( int k = edges.nextValid( 0 ); k < size; k = edges.nextValid( k + 1 ) )
+		{
+			if ( k != nValid )
+				edges.copy( k, nValid );
+			newIndices[ k ] = nValid++;
+		}
+		edges.truncate( nValid );
+
+		adjacency.remapEdgeIndices( newIndices );
+		nodeEdgeMap.forEachValue( nodeEdges -> {
+			nodeEdges.transformValues( k -> newIndices[ k ] );
+			return true;
+		} );
+
+		final int[] dirty = dirtyEdges.toArray();
+		dirtyEdges.clear();
+		for ( final int k : dirty )
+			if ( newIndices[ k ] >= 0 )
+				dirtyEdges.add( newIndices[ k ] );
+
+		LOG.debug( "Compacted edges from {} to {}.", size, nValid );
+
+		return newIndices;
+	}
+
+	/**
+	 * Contract edge {@code e} that connects {@code from} and {@code to} into
+	 * {@code newNode}. All edges of the other node are moved to
+	 * {@code newNode} or merged into an existing edge of {@code newNode} to
+	 * the same neighbor, and moved edges point from the contracted node to
+	 * their neighbor. The contracted node keeps the id of the node with the
+	 * larger {@link #degree}, {@code newNode} on ties, and only the adjacency
+	 * maps of the node with the smaller degree and of its neighbors are
+	 * modified. If the other node has the larger degree, its edges are
+	 * visited once more to point them away from the contracted node. Which
+	 * edges survive and how they are merged does not depend on the degrees,
+	 * so results are the same as if the other node was always removed.
+	 *
+	 * @return id of the contracted node in the graph, {@code from} or
+	 *         {@code to}
+	 */
+	public long contract(
 			final Edge e,
 			final long newNode,
 			final long from,
@@ -69,16 +323,46 @@ public class UndirectedGraph implements Serializable
 		final long otherNode = from == newNode ? to : from;
 
 		e.setObsolete();
+		dirtyEdges.add( e.index() );
+
+		// keep the larger adjacency and move the smaller one
+		final boolean keepNewNode = degree( newNode ) >= degree( otherNode );
+		final long keepNode = keepNewNode ? newNode : otherNode;
+		final long discardNode = keepNewNode ? otherNode : newNode;
 
-		final TLongIntHashMap edgesOfNewNode = nodeEdgeMap.get( newNode );
-		final TLongIntHashMap discardEdges = nodeEdgeMap.get( otherNode );
+		final TLongIntHashMap keepEdges = modifiableNodeEdges( keepNode );
 
 		// remove e = (from, to) from node edge map (I)
-		edgesOfNewNode.remove( otherNode );
-		discardEdges.remove( newNode );
+		keepEdges.remove( discardNode );
+
+		// the other node remains: its edges stay in its map but are moved
+		// to the contracted node as if newNode remained
+		if ( !keepNewNode )
+			for ( final TLongIntIterator keepIt = keepEdges.iterator(); keepIt.hasNext(); )
+			{
+				keepIt.advance();
+				final long nodeId = keepIt.key();
+				final int edgeId = keepIt.value();
+
+				this.e1.setIndex( edgeId );
+				dirtyEdges.add( edgeId );
+
+				if ( nodeId == keepNode || this.e1.isObsolete() )
+				{
+					this.e1.setObsolete();
+					keepIt.remove();
+					continue;
+				}
 
-		// add all edges into edgesOfNewNode and merge/update if applicable
-		for ( final TLongIntIterator discardIt = discardEdges.iterator(); discardIt.hasNext(); )
+				this.e1.from( keepNode );
+				this.e1.to( nodeId );
+				this.e1.setStale();
+				this.e1.setValid();
+			}
+
+		// add all edges into keepEdges and merge/update if applicable.
+		// e is obsolete and will be skipped.
+		for ( final TLongIntIterator discardIt = nodeEdgeIterator( discardNode ); discardIt.hasNext(); )
 		{
 			discardIt.advance();
 			final long nodeId = discardIt.key();
@@ -86,49 +370,71 @@ public class UndirectedGraph implements Serializable
 
 			this.e1.setIndex( edgeId );
 
-			if ( nodeId == otherNode || this.e1.isObsolete() )
+			if ( nodeId == discardNode || this.e1.isObsolete() )
 			{
 				this.e1.setObsolete();
+				dirtyEdges.add( edgeId );
 				continue;
 			}
 
-			// merge edges if other node is connected to both nodes
-			if ( edgesOfNewNode.contains( nodeId ) )
-			{
+			final TLongIntHashMap otherMap = modifiableNodeEdges( nodeId );
+			otherMap.remove( discardNode );
 
-				this.e2.setIndex( edgesOfNewNode.get( nodeId ) );
-				edgeMerger.merge( this.e1, this.e2 );
-				this.e1.setObsolete();
-				this.e2.setStale();
-				this.e2.setValid();
+			// merge edges if other node is connected to both nodes, the edge
+			// of newNode survives
+			if ( keepEdges.contains( nodeId ) )
+			{
+				final int keepEdgeId = keepEdges.get( nodeId );
+				this.e2.setIndex( keepEdgeId );
+				if ( keepNewNode )
+				{
+					edgeMerger.merge( this.e1, this.e2 );
+					this.e1.setObsolete();
+					this.e2.setStale();
+					this.e2.setValid();
+				}
+				else
+				{
+					edgeMerger.merge( this.e2, this.e1 );
+					this.e2.setObsolete();
+					this.e1.setStale();
+					this.e1.setValid();
+					replaceNode( this.e1, discardNode, keepNode );
+					keepEdges.put( nodeId, edgeId );
+					otherMap.put( keepNode, edgeId );
+				}
+				dirtyEdges.add( edgeId );
+				dirtyEdges.add( keepEdgeId );
 			}
 			else
 			{
-				edgesOfNewNode.put( nodeId, edgeId );
-				this.e1.from( newNode );
-				this.e1.to( nodeId );
-//				this.e1.setStale();
+				keepEdges.put( nodeId, edgeId );
+				otherMap.put( keepNode, edgeId );
+				if ( keepNewNode )
+				{
+					this.e1.from( keepNode );
+					this.e1.to( nodeId );
+					this.e1.setStale();
+					this.e1.setValid();
+					dirtyEdges.add( edgeId );
+				}
+				else
+					// edges of newNode are not moved
+					replaceNode( this.e1, discardNode, keepNode );
 			}
 		}
 
+		removeNode( discardNode );
 
-		for ( final TLongIntIterator keepIt = edgesOfNewNode.iterator(); keepIt.hasNext(); )
-		{
-			keepIt.advance();
-			final long nodeId = keepIt.key();
-			final int edgeId = keepIt.value();
-
-			final TLongIntHashMap otherMap = nodeEdgeMap.get( nodeId );
-			otherMap.remove( from );
-			otherMap.remove( to );
-			otherMap.put( newNode, edgeId );
-			this.e1.setIndex( edgeId );
-			this.e1.setStale();
-			this.e1.setValid();
-		}
-
-		return discardEdges;
+		return keepNode;
+	}
 
+	private static void replaceNode( final Edge e, final long node, final long replacement )
+	{
+		if ( e.from() == node )
+			e.from( replacement );
+		else
+			e.to( replacement );
 	}
 
 //	public TLongIntHashMap contract(
@@ -220,45 +526,4 @@ public class UndirectedGraph implements Serializable
 //
 //	}
 
-	private static TLongObjectHashMap< TLongIntHashMap > nodeEdgeMap( final TDoubleArrayList edges, final int nNodes, final EdgeMerger edgeMerger, final int edgeDataSize )
-	{
-		final TLongObjectHashMap< TLongIntHashMap > nodeEdgeMap = new TLongObjectHashMap<>();
-		for ( int i = 0; i < nNodes; ++i )
-			nodeEdgeMap.put( i, new TLongIntHashMap() );
-		final Edge e1 = new Edge( edges, edgeDataSize );
-		final Edge e2 = new Edge( edges, edgeDataSize );
-		final int nEdges = e1.size();
-		for ( int i = 0; i < nEdges; ++i )
-		{
-			e1.setIndex( i );
-			if ( e1.isObsolete() )
-				continue;
-			final int from = ( int ) e1.from();
-			final int to = ( int ) e1.to();
-
-			assert from != to: e1;
-
-			final TLongIntHashMap fromMap = nodeEdgeMap.get( from );
-			final TLongIntHashMap toMap = nodeEdgeMap.get( to );
-
-			if ( fromMap.contains( to ) || toMap.contains( from ) )
-			{
-				assert fromMap.get( to ) == toMap.get( from ): "Edges are inconsistent!";
-				e2.setIndex( fromMap.get( to ) );
-				LOG.trace( "Edge exists multiple times! " + e1 + " " + e2 + " " + fromMap + " " + toMap );
-				edgeMerger.merge( e1, e2 );
-				e2.setStale();
-				e1.setObsolete();
-			}
-			else
-			{
-				fromMap.put( to, i );
-				toMap.put( from, i );
-			}
-
-		}
-
-		return nodeEdgeMap;
-	}
-
 }
@@ -0,0 +1,333 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.util.Arrays;
+
+/**
+ * Column oriented {@link EdgeStore}: each field is stored in a separate
+ * primitive array, so scans that only need, e.g., weight and status do not
+ * touch ids or data. The data entries of all edges are stored as raw long
+ * bits in a separate block with stride {@code dataSize}. The overflow region
+ * is a single array and holds at most {@link #MAX_OVERFLOW_SIZE} entries.
+ */
+public class ColumnarEdgeStore implements EdgeStore
+{
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	public static final int MAX_OVERFLOW_SIZE = Integer.MAX_VALUE - 8;
+
+	private final int dataSize;
+
+	private int size;
+
+	private double[] weights;
+
+	private double[] affinities;
+
+	private long[] from;
+
+	private long[] to;
+
+	private long[] multiplicities;
+
+	private byte[] status;
+
+	private long[] data;
+
+	private final EdgeStatusBitmap statusBitmap;
+
+	private long[] overflow;
+
+	private int overflowSize;
+
+	private final OverflowBlocks releasedOverflow;
+
+	public ColumnarEdgeStore( final int dataSize )
+	{
+		this( dataSize, DEFAULT_CAPACITY );
+	}
+
+	public ColumnarEdgeStore( final int dataSize, final int capacity )
+	{
+		super();
+		this.dataSize = dataSize;
+		this.size = 0;
+		this.weights = new double[ capacity ];
+		this.affinities = new double[ capacity ];
+		this.from = new long[ capacity ];
+		this.to = new long[ capacity ];
+		this.multiplicities = new long[ capacity ];
+		this.status = new byte[ capacity ];
+		this.data = new long[ capacity * dataSize ];
+		this.statusBitmap = new EdgeStatusBitmap( capacity );
+		this.overflow = new long[ 0 ];
+		this.overflowSize = 0;
+		this.releasedOverflow = new OverflowBlocks();
+	}
+
+	/**
+	 * Copy all edges and the overflow region of {@code source} into a new
+	 * {@link ColumnarEdgeStore}, at the same offsets.
+	 */
+	public static ColumnarEdgeStore copyOf( final EdgeStore source )
+	{
+		final int size = source.size();
+		final int dataSize = source.dataSize();
+		final ColumnarEdgeStore store = new ColumnarEdgeStore( dataSize, Math.max( size, 1 ) );
+		for ( int index = 0; index < size; ++index )
+		{
+			store.add( source.weight( index ), source.affinity( index ), source.from( index ), source.to( index ), source.multiplicity( index ), source.status( index ) );
+			for ( int i = 0; i < dataSize; ++i )
+				store.setData( index, i, source.getData( index, i ) );
+		}
+		if ( source.overflowSize() > 0 )
+		{
+			if ( source.overflowSize() > MAX_OVERFLOW_SIZE )
+				throw new IllegalStateException( "Overflow region of " + source.overflowSize() + " entries exceeds maximum size " + MAX_OVERFLOW_SIZE + "." );
+			store.allocateOverflow( ( int ) source.overflowSize() );
+			for ( int offset = 0; offset < store.overflowSize; ++offset )
+				store.overflow[ offset ] = source.getOverflow( offset );
+		}
+		return store;
+	}
+
+	public int capacity()
+	{
+		return weights.length;
+	}
+
+	public void ensureCapacity( final int capacity )
+	{
+		if ( capacity <= weights.length )
+			return;
+		final int newCapacity = Math.max( capacity, 2 * weights.length );
+		weights = Arrays.copyOf( weights, newCapacity );
+		affinities = Arrays.copyOf( affinities, newCapacity );
+		from = Arrays.copyOf( from, newCapacity );
+		to = Arrays.copyOf( to, newCapacity );
+		multiplicities = Arrays.copyOf( multiplicities, newCapacity );
+		status = Arrays.copyOf( status, newCapacity );
+		data = Arrays.copyOf( data, newCapacity * dataSize );
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public int dataSize()
+	{
+		return dataSize;
+	}
+
+	@Override
+	public double weight( final int index )
+	{
+		return weights[ index ];
+	}
+
+	@Override
+	public void weight( final int index, final double weight )
+	{
+		weights[ index ] = weight;
+	}
+
+	@Override
+	public double affinity( final int index )
+	{
+		return affinities[ index ];
+	}
+
+	@Override
+	public void affinity( final int index, final double affinity )
+	{
+		affinities[ index ] = affinity;
+	}
+
+	@Override
+	public long from( final int index )
+	{
+		return from[ index ];
+	}
+
+	@Override
+	public void from( final int index, final long from )
+	{
+		this.from[ index ] = from;
+	}
+
+	@Override
+	public long to( final int index )
+	{
+		return to[ index ];
+	}
+
+	@Override
+	public void to( final int index, final long to )
+	{
+		this.to[ index ] = to;
+	}
+
+	@Override
+	public long multiplicity( final int index )
+	{
+		return multiplicities[ index ];
+	}
+
+	@Override
+	public void multiplicity( final int index, final long multiplicity )
+	{
+		multiplicities[ index ] = multiplicity;
+	}
+
+	@Override
+	public int status( final int index )
+	{
+		return status[ index ];
+	}
+
+	@Override
+	public void status( final int index, final int status )
+	{
+		this.status[ index ] = ( byte ) status;
+		statusBitmap.set( index, status );
+	}
+
+	@Override
+	public int nextValid( final int index )
+	{
+		return statusBitmap.nextValid( index );
+	}
+
+	@Override
+	public int nextObsolete( final int index )
+	{
+		return statusBitmap.nextObsolete( index );
+	}
+
+	@Override
+	public int nextStale( final int index )
+	{
+		return statusBitmap.nextStale( index );
+	}
+
+	@Override
+	public double getData( final int index, final int i )
+	{
+		return Double.longBitsToDouble( data[ index * dataSize + i ] );
+	}
+
+	@Override
+	public void setData( final int index, final int i, final double d )
+	{
+		data[ index * dataSize + i ] = Double.doubleToRawLongBits( d );
+	}
+
+	@Override
+	public void addCounts( final int sourceIndex, final int targetIndex, final int offset, final int length )
+	{
+		final long[] data = this.data;
+		final int source = sourceIndex * dataSize + offset;
+		final int target = targetIndex * dataSize + offset;
+		for ( int i = 0; i < length; ++i )
+			data[ target + i ] += data[ source + i ];
+	}
+
+	@Override
+	public long overflowSize()
+	{
+		return overflowSize;
+	}
+
+	@Override
+	public long allocateOverflow( final int length )
+	{
+		final long released = releasedOverflow.reuse( length );
+		if ( released >= 0 )
+		{
+			Arrays.fill( overflow, ( int ) released, ( int ) released + length, 0l );
+			return released;
+		}
+		if ( length > MAX_OVERFLOW_SIZE - overflowSize )
+			throw new IllegalStateException( "Overflow region of " + overflowSize + " entries cannot hold " + length + " more entries." );
+		final int offset = overflowSize;
+		overflowSize += length;
+		if ( overflowSize > overflow.length )
+			overflow = Arrays.copyOf( overflow, ( int ) Math.min( Math.max( overflowSize, 2l * overflow.length ), MAX_OVERFLOW_SIZE ) );
+		return offset;
+	}
+
+	@Override
+	public void releaseOverflow( final long offset, final int length )
+	{
+		releasedOverflow.release( offset, length );
+	}
+
+	@Override
+	public long getOverflow( final long offset )
+	{
+		return overflow[ ( int ) offset ];
+	}
+
+	@Override
+	public void setOverflow( final long offset, final long value )
+	{
+		overflow[ ( int ) offset ] = value;
+	}
+
+	@Override
+	public int add( final double weight, final double affinity, final long from, final long to, final long multiplicity, final int status )
+	{
+		final int index = size;
+		ensureCapacity( index + 1 );
+		this.weights[ index ] = weight;
+		this.affinities[ index ] = affinity;
+		this.from[ index ] = from;
+		this.to[ index ] = to;
+		this.multiplicities[ index ] = multiplicity;
+		this.status[ index ] = ( byte ) status;
+		statusBitmap.add( status );
+		Arrays.fill( this.data, index * dataSize, ( index + 1 ) * dataSize, 0l );
+		++size;
+		return index;
+	}
+
+	@Override
+	public void remove( final int index )
+	{
+		final int n = size - index - 1;
+		System.arraycopy( weights, index + 1, weights, index, n );
+		System.arraycopy( affinities, index + 1, affinities, index, n );
+		System.arraycopy( from, index + 1, from, index, n );
+		System.arraycopy( to, index + 1, to, index, n );
+		System.arraycopy( multiplicities, index + 1, multiplicities, index, n );
+		System.arraycopy( status, index + 1, status, index, n );
+		System.arraycopy( data, ( index + 1 ) * dataSize, data, index * dataSize, n * dataSize );
+		statusBitmap.remove( index );
+		--size;
+	}
+
+	@Override
+	public void copy( final int sourceIndex, final int targetIndex )
+	{
+		weights[ targetIndex ] = weights[ sourceIndex ];
+		affinities[ targetIndex ] = affinities[ sourceIndex ];
+		from[ targetIndex ] = from[ sourceIndex ];
+		to[ targetIndex ] = to[ sourceIndex ];
+		multiplicities[ targetIndex ] = multiplicities[ sourceIndex ];
+		status( targetIndex, status[ sourceIndex ] );
+		System.arraycopy( data, sourceIndex * dataSize, data, targetIndex * dataSize, dataSize );
+	}
+
+	@Override
+	public void truncate( final int size )
+	{
+		if ( size >= this.size )
+			return;
+		statusBitmap.truncate( size );
+		this.size = size;
+	}
+
+}
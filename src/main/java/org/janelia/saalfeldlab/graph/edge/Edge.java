@@ -3,10 +3,16 @@ package org.janelia.saalfeldlab.graph.edge;
 import java.io.Serializable;
 import java.util.PrimitiveIterator.OfDouble;
 import java.util.stream.DoubleStream;
-import java.util.stream.IntStream;
 
 import gnu.trove.list.array.TDoubleArrayList;
 
+/**
+ * Cursor over the edges of an {@link EdgeStore}. {@link #setIndex(int)}
+ * moves the cursor to an edge, all other methods access the fields of that
+ * edge. {@link #setDataView(int, int)} restricts {@link #getData(int)} and
+ * {@link #setData(int, double)} to a slice of the data entries, e.g. for one
+ * accumulator of an {@link EdgeDataLayout}.
+ */
 public class Edge implements Serializable
 {
 
@@ -18,27 +24,35 @@ public class Edge implements Serializable
 
 	public static final int COMMON_SIZE = 6;
 
-	private final int dataSize;
+	private final EdgeStore store;
 
-	private final int stride;
+	private int dataOffset;
 
-	private final TDoubleArrayList data;
+	private int dataSize;
 
 	private int k;
 
+	/**
+	 * Cursor over the edges in {@code data} through a new
+	 * {@link InterleavedEdgeStore}. Status changes through this cursor are
+	 * not tracked by other stores over {@code data}, see
+	 * {@link InterleavedEdgeStore}.
+	 */
 	public Edge( final TDoubleArrayList data, final int dataSize )
 	{
-		super();
-		this.data = data;
-		this.dataSize = dataSize;
-		this.stride = COMMON_SIZE + dataSize;
+		this( new InterleavedEdgeStore( data, dataSize ) );
+	}
 
-		assert data.size() % stride == 0;
+	public Edge( final EdgeStore store )
+	{
+		super();
+		this.store = store;
+		this.dataSize = store.dataSize();
 	}
 
 	public int size()
 	{
-		return data.size() / stride;
+		return store.size();
 	}
 
 	public int getDataSize()
@@ -48,82 +62,144 @@ public class Edge implements Serializable
 
 	public int getStride()
 	{
-		return stride;
+		return COMMON_SIZE + store.dataSize();
 	}
 
 	public double getData( final int i )
 	{
-		return data.get( this.k + COMMON_SIZE + i );
+		return store.getData( k, dataOffset + i );
 	}
 
 	public void setData( final int i, final double d )
 	{
-		data.set( this.k + COMMON_SIZE + i, d );
+		store.setData( k, dataOffset + i, d );
+	}
+
+	/**
+	 * Add data entries {@code offset ... offset + length - 1} of
+	 * {@code source} to those of this edge as long counts, see
+	 * {@link EdgeStore#addCounts(int, int, int, int)}.
+	 */
+	public void addCounts( final Edge source, final int offset, final int length )
+	{
+		assert offset >= 0 && offset + length <= dataSize && offset + length <= source.dataSize;
+		if ( source.store == store && source.dataOffset == dataOffset )
+			store.addCounts( source.k, k, dataOffset + offset, length );
+		else
+			for ( int i = offset; i < offset + length; ++i )
+				setData( i, ltd( dtl( getData( i ) ) + dtl( source.getData( i ) ) ) );
+	}
+
+	/**
+	 * Restrict data access to entries
+	 * {@code offset ... offset + dataSize - 1} of the current view, so views
+	 * nest, e.g. for an {@link EdgeDataLayout} inside another layout. Save
+	 * {@link #getDataOffset()} and {@link #getDataSize()} before and
+	 * {@link #restoreDataView(int, int)} them after use.
+	 */
+	public void setDataView( final int offset, final int dataSize )
+	{
+		if ( offset < 0 || dataSize < 0 || offset + dataSize > this.dataSize )
+			throw new IllegalArgumentException( "View " + offset + " " + dataSize + " outside of data size " + this.dataSize + "." );
+		this.dataOffset += offset;
+		this.dataSize = dataSize;
+	}
+
+	/**
+	 * @return offset of the current view in the data entries of the store
+	 */
+	public int getDataOffset()
+	{
+		return dataOffset;
+	}
+
+	/**
+	 * Restore a view saved with {@link #getDataOffset()} and
+	 * {@link #getDataSize()}.
+	 */
+	public void restoreDataView( final int dataOffset, final int dataSize )
+	{
+		assert dataOffset >= 0 && dataOffset + dataSize <= store.dataSize();
+		this.dataOffset = dataOffset;
+		this.dataSize = dataSize;
+	}
+
+	/**
+	 * Reset to a view of all data entries.
+	 */
+	public void resetDataView()
+	{
+		restoreDataView( 0, store.dataSize() );
 	}
 
 	public void setIndex( final int k )
 	{
-		this.k = stride * k;
+		this.k = k;
+	}
+
+	public int index()
+	{
+		return k;
 	}
 
 	public double weight()
 	{
-		return data.get( k );
+		return store.weight( k );
 	}
 
 	public void weight( final double weight )
 	{
-		data.set( k, weight );
+		store.weight( k, weight );
 	}
 
 	public double affinity()
 	{
-		return data.get( k + 1 );
+		return store.affinity( k );
 	}
 
 	public void affinity( final double affinity )
 	{
-		data.set( k + 1, affinity );
+		store.affinity( k, affinity );
 	}
 
 	public long from()
 	{
-		return dtl( data.get( k + 2 ) );
+		return store.from( k );
 	}
 
 	public void from( final long from )
 	{
-		data.set( k + 2, ltd( from ) );
+		store.from( k, from );
 	}
 
 	public long to()
 	{
-		return dtl( data.get( k + 3 ) );
+		return store.to( k );
 	}
 
 	public void to( final long to )
 	{
-		data.set( k + 3, ltd( to ) );
+		store.to( k, to );
 	}
 
 	public long multiplicity()
 	{
-		return dtl( data.get( k + 4 ) );
+		return store.multiplicity( k );
 	}
 
 	public void multiplicity( final long multiplicity )
 	{
-		data.set( k + 4, ltd( multiplicity ) );
+		store.multiplicity( k, multiplicity );
 	}
 
 	public int status()
 	{
-		return ( int ) dtl( data.get( k + 5 ) );
+		return store.status( k );
 	}
 
 	public void status( final int status )
 	{
-		data.set( k + 5, ltd( status ) );
+		store.status( k, status );
 	}
 
 	public boolean isStale()
@@ -133,7 +209,7 @@ public class Edge implements Serializable
 
 	public void setStale()
 	{
-		data.set( k + 5, ltd( status() | STALE_MASK ) );
+		status( status() | STALE_MASK );
 	}
 
 	public boolean isActive()
@@ -143,7 +219,7 @@ public class Edge implements Serializable
 
 	public void setActive()
 	{
-		data.set( k + 5, ltd( status() & ~STALE_MASK ) );
+		status( status() & ~STALE_MASK );
 	}
 
 	public boolean isObsolete()
@@ -153,7 +229,7 @@ public class Edge implements Serializable
 
 	public void setObsolete()
 	{
-		data.set( k + 5, ltd( status() | OBSOLETE_MASK ) );
+		status( status() | OBSOLETE_MASK );
 	}
 
 	public boolean isValid()
@@ -162,7 +238,7 @@ public class Edge implements Serializable
 	}
 
 	public void setValid() {
-		data.set( k + 5, ltd( status() & ~OBSOLETE_MASK ) );
+		status( status() & ~OBSOLETE_MASK );
 	}
 
 	public void initialize( final double weight, final double affinity, final long from, final long to, final long multiplicity, final DoubleStream appendix )
@@ -181,42 +257,64 @@ public class Edge implements Serializable
 
 	public int add( final double weight, final double affinity, final long from, final long to, final long multiplicity )
 	{
-		return add( weight, affinity, from, to, multiplicity, DoubleStream.generate( () -> 0.0d ) );
+		return store.add( weight, affinity, from, to, multiplicity, STALE_MASK );
 	}
 
 	public int add( final double weight, final double affinity, final long from, final long to, final long multiplicity, final DoubleStream appendix )
 	{
-		final int index = size();
-		data.add( weight );
-		data.add( affinity );
-		data.add( ltd( from ) );
-		data.add( ltd( to ) );
-		data.add( ltd( multiplicity ) );
-		data.add( STALE_MASK );
+		final int index = store.add( weight, affinity, from, to, multiplicity, STALE_MASK );
 		final OfDouble it = appendix.iterator();
-		for ( int i = 0; i < dataSize; ++i )
-			data.add( it.nextDouble() );
+		for ( int i = 0; i < store.dataSize(); ++i )
+			store.setData( index, i, it.nextDouble() );
 		return index;
 	}
 
 	public int add( final Edge e )
 	{
-		assert e.dataSize == dataSize;
+		assert e.store.dataSize() == store.dataSize();
 
-		final int offset = e.k + COMMON_SIZE;
+		final int index = store.add( e.weight(), e.affinity(), e.from(), e.to(), e.multiplicity(), STALE_MASK );
+		for ( int i = 0; i < store.dataSize(); ++i )
+			store.setData( index, i, e.store.getData( e.k, i ) );
+		return index;
+	}
 
-		return add( e.weight(), e.affinity(), e.from(), e.to(), e.multiplicity(), IntStream.range( offset, offset + dataSize ).mapToDouble( i -> e.data.get( i ) ) );
+	/**
+	 * Append {@code length} edges with affinities, nodes, and multiplicities
+	 * from the arrays starting at {@code offset} and let {@code creator} write
+	 * their data in place. {@code weights} may be {@code null} for
+	 * {@code NaN} weights. The cursor points to the last added edge
+	 * afterwards.
+	 *
+	 * @return index of the first added edge
+	 */
+	public int addAll(
+			final double[] weights,
+			final double[] affinities,
+			final long[] from,
+			final long[] to,
+			final long[] multiplicities,
+			final int offset,
+			final int length,
+			final EdgeCreator creator )
+	{
+		assert creator.dataSize() == store.dataSize() && dataOffset == 0;
+
+		final int first = size();
+		for ( int i = offset; i < offset + length; ++i )
+			creator.create( this, weights == null ? Double.NaN : weights[ i ], affinities[ i ], from[ i ], to[ i ], multiplicities[ i ] );
+		return first;
 	}
 
 	public int remove()
 	{
-		data.remove( k, stride );
+		store.remove( k );
 		return size();
 	}
 
-	public TDoubleArrayList data()
+	public EdgeStore store()
 	{
-		return this.data;
+		return this.store;
 	}
 
 	public static double ltd( final long l )
@@ -232,7 +330,7 @@ public class Edge implements Serializable
 	@Override
 	public String toString()
 	{
-		return "( " + k / stride + " , " + from() + " , " + to() + " , " + weight() + " , " + affinity() + " , " + multiplicity() + " , stale: " + isStale() + " , active: " + isActive() + " , obsolete: " + isObsolete() + " )";
+		return "( " + k + " , " + from() + " , " + to() + " , " + weight() + " , " + affinity() + " , " + multiplicity() + " , stale: " + isStale() + " , active: " + isActive() + " , obsolete: " + isObsolete() + " )";
 	}
 
 }
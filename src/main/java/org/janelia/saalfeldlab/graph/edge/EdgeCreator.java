@@ -3,8 +3,8 @@ package org.janelia.saalfeldlab.graph.edge;
 import java.io.Serializable;
 import java.lang.invoke.MethodHandles;
 import java.util.Arrays;
+import java.util.PrimitiveIterator.OfDouble;
 import java.util.stream.DoubleStream;
-import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,12 +12,26 @@ import org.slf4j.LoggerFactory;
 public interface EdgeCreator extends EdgeDataSize
 {
 
+	/**
+	 * Append a new edge and write its data in place. {@code e} points to the
+	 * new edge afterwards.
+	 *
+	 * @return index of the new edge
+	 */
 	public default int create( final Edge e, final double weight, final double affinity, final long from, final long to, final long multiplicity )
 	{
-		return e.add( weight, affinity, from, to, multiplicity, createData( weight, affinity, from, to, multiplicity ) );
+		final int index = e.add( weight, affinity, from, to, multiplicity );
+		e.setIndex( index );
+		createData( e, 0, weight, affinity, from, to, multiplicity );
+		return index;
 	}
 
-	public DoubleStream createData( final double weight, final double affinity, final long from, final long to, final long multiplicity );
+	/**
+	 * Write {@link #dataSize()} entries of data of the edge that {@code e}
+	 * points to, starting at data entry {@code offset}. Entries are
+	 * {@code 0} when called, only non-zero entries need to be written.
+	 */
+	public void createData( final Edge e, final int offset, final double weight, final double affinity, final long from, final long to, final long multiplicity );
 
 
 //	public default Edge edge( final TDoubleArrayList data )
@@ -34,32 +48,38 @@ public interface EdgeCreator extends EdgeDataSize
 	{
 
 		@Override
-		public DoubleStream createData( final double weight, final double affinity, final long from, final long to, final long multiplicity )
-		{
-			return DoubleStream.generate( () -> 0.0 ).limit( 0 );
-		}
+		public void createData( final Edge e, final int offset, final double weight, final double affinity, final long from, final long to, final long multiplicity )
+		{}
 
 	}
 
+	/**
+	 * Adapter for creators that generate data as {@link DoubleStream}. Prefer
+	 * writing data in place, streams are created for every edge.
+	 */
 	public static abstract class DataStreamCreator implements EdgeCreator
 	{
 
+		public abstract DoubleStream createData( final double weight, final double affinity, final long from, final long to, final long multiplicity );
+
 		@Override
-		public int create( final Edge e, final double weight, final double affinity, final long from, final long to, final long multiplicity )
+		public void createData( final Edge e, final int offset, final double weight, final double affinity, final long from, final long to, final long multiplicity )
 		{
-			return e.add( weight, affinity, from, to, multiplicity, createData( weight, affinity, from, to, multiplicity ) );
+			final OfDouble it = createData( weight, affinity, from, to, multiplicity ).iterator();
+			for ( int i = 0; i < dataSize(); ++i )
+				e.setData( offset + i, it.nextDouble() );
 		}
 
 	}
 
-	public static class ComposedCreator extends DataStreamCreator
+	public static class ComposedCreator implements EdgeCreator
 	{
 
-		private final DataStreamCreator[] creators;
+		private final EdgeCreator[] creators;
 
 		private final int dataSize;
 
-		public ComposedCreator( final DataStreamCreator... creators )
+		public ComposedCreator( final EdgeCreator... creators )
 		{
 			super();
 			this.creators = creators;
@@ -67,9 +87,14 @@ public interface EdgeCreator extends EdgeDataSize
 		}
 
 		@Override
-		public DoubleStream createData( final double weight, final double affinity, final long from, final long to, final long multiplicity )
+		public void createData( final Edge e, final int offset, final double weight, final double affinity, final long from, final long to, final long multiplicity )
 		{
-			return Arrays.stream( creators ).map( c -> c.createData( weight, affinity, from, to, multiplicity ) ).reduce( ( s1, s2 ) -> DoubleStream.concat( s1, s2 ) ).get();
+			int creatorOffset = offset;
+			for ( final EdgeCreator creator : creators )
+			{
+				creator.createData( e, creatorOffset, weight, affinity, from, to, multiplicity );
+				creatorOffset += creator.dataSize();
+			}
 		}
 
 		@Override
@@ -80,7 +105,7 @@ public interface EdgeCreator extends EdgeDataSize
 
 	}
 
-	public static class AffinityHistogram extends DataStreamCreator implements EdgeCreator, Serializable
+	public static class AffinityHistogram implements SerializableCreator
 	{
 
 		public static final Logger LOG = LoggerFactory.getLogger( MethodHandles.lookup().lookupClass() );
@@ -128,11 +153,115 @@ public interface EdgeCreator extends EdgeDataSize
 			return this.nBins + 1;
 		}
 
+		/**
+		 * First entry: number of counts, followed by {@code nBins} counts.
+		 */
 		@Override
-		public DoubleStream createData( final double weight, final double affinity, final long from, final long to, final long multiplicity )
+		public void createData( final Edge e, final int offset, final double weight, final double affinity, final long from, final long to, final long multiplicity )
 		{
 			final int bin = Math.min( ( int ) ( ( affinity - min ) / binWidth ), nBins - 1 );
-			return IntStream.range( 0, dataSize() ).mapToDouble( i -> Edge.ltd( i == 0 ? 1 : i == bin + 1 ? 1 : 0 ) );
+			e.setData( offset, Edge.ltd( 1 ) );
+			e.setData( offset + bin + 1, Edge.ltd( 1 ) );
+		}
+
+	}
+
+	/**
+	 * Affinity histogram in {@link FenwickHistogram} layout for
+	 * {@link EdgeWeight.FenwickMedianAffinityWeight} and
+	 * {@link EdgeWeight.FenwickPercentileAffinityWeight}. Merge with
+	 * {@link EdgeMerger.MEDIAN_AFFINITY_MERGER}.
+	 */
+	public static class FenwickAffinityHistogram implements SerializableCreator
+	{
+
+		private final int nBins;
+
+		private final double min;
+
+		private final double max;
+
+		private final double binWidth;
+
+		public FenwickAffinityHistogram( final int nBins, final double min, final double max )
+		{
+			super();
+			this.nBins = nBins;
+			this.min = min;
+			this.max = max;
+			this.binWidth = ( max - min ) / nBins;
+		}
+
+		@Override
+		public int dataSize()
+		{
+			return this.nBins + 1;
+		}
+
+		@Override
+		public void createData( final Edge e, final int offset, final double weight, final double affinity, final long from, final long to, final long multiplicity )
+		{
+			final int bin = Math.min( ( int ) ( ( affinity - min ) / binWidth ), nBins - 1 );
+			FenwickHistogram.add( e, offset, nBins, bin, 1 );
+		}
+
+	}
+
+	/**
+	 * Adaptive affinity histogram, see {@link SparseHistogram}. Merge with
+	 * {@link EdgeMerger.SPARSE_HISTOGRAM_MERGER} of a
+	 * {@link SparseHistogram} with the same parameters.
+	 */
+	public static class SparseAffinityHistogram implements SerializableCreator
+	{
+
+		private final SparseHistogram histogram;
+
+		public SparseAffinityHistogram( final SparseHistogram histogram )
+		{
+			super();
+			this.histogram = histogram;
+		}
+
+		@Override
+		public int dataSize()
+		{
+			return histogram.dataSize();
+		}
+
+		@Override
+		public void createData( final Edge e, final int offset, final double weight, final double affinity, final long from, final long to, final long multiplicity )
+		{
+			histogram.add( e, offset, histogram.bin( affinity ), 1 );
+		}
+
+	}
+
+	/**
+	 * Affinity {@link QuantileSketch}. Merge with
+	 * {@link EdgeMerger.QUANTILE_SKETCH_MERGER}.
+	 */
+	public static class AffinitySketch implements SerializableCreator
+	{
+
+		private final QuantileSketch sketch;
+
+		public AffinitySketch( final QuantileSketch sketch )
+		{
+			super();
+			this.sketch = sketch;
+		}
+
+		@Override
+		public int dataSize()
+		{
+			return sketch.dataSize();
+		}
+
+		@Override
+		public void createData( final Edge e, final int offset, final double weight, final double affinity, final long from, final long to, final long multiplicity )
+		{
+			sketch.create( e, offset, affinity );
 		}
 
 	}
@@ -0,0 +1,103 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Layout of edge data composed of named accumulators, each with a creator
+ * and a merger, at fixed offsets in the order in which they were added.
+ * {@link #creator()} and {@link #merger()} create and merge all
+ * accumulators, {@link #weight(String, EdgeWeight)} evaluates a weight on
+ * the slice of a single accumulator. Creators, mergers, and weights of an
+ * accumulator use data entries {@code 0 ... dataSize() - 1} as if they were
+ * used on their own, e.g.
+ *
+ * <pre>
+ * {@code
+ * final EdgeDataLayout layout = new EdgeDataLayout()
+ * 		.add( "histogram", new EdgeCreator.AffinityHistogram( 256, 0, 1 ), new EdgeMerger.MEDIAN_AFFINITY_MERGER( 256 ) )
+ * 		.add( "affinity", new EdgeCreator.NoDataSerializableCreator(), new EdgeMerger.MAX_AFFINITY_MERGER() );
+ * final EdgeWeight weight = layout.weight( "histogram", new EdgeWeight.MedianAffinityWeight( 256, 0, 1 ) );
+ * }
+ * </pre>
+ *
+ * At most one accumulator should modify the affinity of an edge.
+ */
+public class EdgeDataLayout implements Serializable
+{
+
+	private final List< EdgeCreator > creators = new ArrayList<>();
+
+	private final List< EdgeMerger > mergers = new ArrayList<>();
+
+	private final List< String > names = new ArrayList<>();
+
+	private final List< Integer > offsets = new ArrayList<>();
+
+	private int dataSize = 0;
+
+	public EdgeDataLayout add( final String name, final EdgeCreator creator, final EdgeMerger merger )
+	{
+		if ( names.contains( name ) )
+			throw new IllegalArgumentException( "Accumulator " + name + " already exists." );
+		if ( creator.dataSize() != merger.dataSize() )
+			throw new IllegalArgumentException( "Data size of creator and merger differ for accumulator " + name + ": " + creator.dataSize() + " " + merger.dataSize() );
+		names.add( name );
+		creators.add( creator );
+		mergers.add( merger );
+		offsets.add( dataSize );
+		dataSize += creator.dataSize();
+		return this;
+	}
+
+	public int dataSize()
+	{
+		return dataSize;
+	}
+
+	public List< String > names()
+	{
+		return names;
+	}
+
+	public int offset( final String name )
+	{
+		return offsets.get( index( name ) );
+	}
+
+	public int dataSize( final String name )
+	{
+		return creators.get( index( name ) ).dataSize();
+	}
+
+	public EdgeCreator creator()
+	{
+		return new EdgeCreator.ComposedCreator( creators.toArray( new EdgeCreator[ creators.size() ] ) );
+	}
+
+	public EdgeMerger merger()
+	{
+		return new EdgeMerger.ComposedMerger( mergers.toArray( new EdgeMerger[ mergers.size() ] ) );
+	}
+
+	/**
+	 * @return {@code weight} evaluated on the slice of accumulator
+	 *         {@code name}
+	 */
+	public EdgeWeight weight( final String name, final EdgeWeight weight )
+	{
+		if ( weight.dataSize() != dataSize( name ) )
+			throw new IllegalArgumentException( "Data size of weight and accumulator " + name + " differ: " + weight.dataSize() + " " + dataSize( name ) );
+		return new EdgeWeight.DataViewWeight( weight, offset( name ), dataSize );
+	}
+
+	private int index( final String name )
+	{
+		final int index = names.indexOf( name );
+		if ( index < 0 )
+			throw new IllegalArgumentException( "No accumulator " + name + "." );
+		return index;
+	}
+
+}
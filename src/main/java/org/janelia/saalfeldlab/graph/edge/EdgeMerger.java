@@ -78,16 +78,130 @@ public interface EdgeMerger extends Serializable, EdgeDataSize
 			final long m = m1 + m2;
 			target.multiplicity( m );
 
-			for ( int entry = 0; entry < dataSize; ++entry )
+			assert Edge.dtl( source.getData( 0 ) ) != 0 && Edge.dtl( target.getData( 0 ) ) != 0: "Empty histogram: " + source + " " + target + " " + dataSize + " " + source.getDataSize() + " " + target.getDataSize();
+			target.addCounts( source, 0, dataSize );
+
+			return target;
+		}
+
+		@Override
+		public int dataSize()
+		{
+			return dataSize;
+		}
+
+	}
+
+	public static class SPARSE_HISTOGRAM_MERGER implements EdgeMerger, Serializable
+	{
+
+		private final SparseHistogram histogram;
+
+		public SPARSE_HISTOGRAM_MERGER( final SparseHistogram histogram )
+		{
+			super();
+			this.histogram = histogram;
+		}
+
+		@Override
+		public Edge merge( final Edge source, final Edge target )
+		{
+			target.multiplicity( source.multiplicity() + target.multiplicity() );
+			histogram.merge( source, target, 0 );
+			return target;
+		}
+
+		@Override
+		public int dataSize()
+		{
+			return histogram.dataSize();
+		}
+
+	}
+
+	public static class QUANTILE_SKETCH_MERGER implements EdgeMerger, Serializable
+	{
+
+		private final QuantileSketch sketch;
+
+		public QUANTILE_SKETCH_MERGER( final QuantileSketch sketch )
+		{
+			super();
+			this.sketch = sketch;
+		}
+
+		@Override
+		public Edge merge( final Edge source, final Edge target )
+		{
+			target.multiplicity( source.multiplicity() + target.multiplicity() );
+			sketch.merge( source, target, 0 );
+			return target;
+		}
+
+		@Override
+		public int dataSize()
+		{
+			return sketch.dataSize();
+		}
+
+	}
+
+	/**
+	 * Merge consecutive slices of edge data with one merger each, see
+	 * {@link EdgeDataLayout}. Each merger sees only its slice and the
+	 * multiplicities before the merge, multiplicities are added once.
+	 */
+	public static class ComposedMerger implements EdgeMerger, Serializable
+	{
+
+		private final EdgeMerger[] mergers;
+
+		private final int[] offsets;
+
+		private final int dataSize;
+
+		public ComposedMerger( final EdgeMerger... mergers )
+		{
+			super();
+			this.mergers = mergers;
+			this.offsets = new int[ mergers.length ];
+			int offset = 0;
+			for ( int i = 0; i < mergers.length; ++i )
 			{
-				final long d1 = Edge.dtl( source.getData( entry ) );
-				final long d2 = Edge.dtl( target.getData( entry ) );
-				if ( entry == 0 && ( d1 == 0 || d2 == 0 ) )
-					// TODO remove this check
-					throw new RuntimeException( "SOMETHING WRONG HERE!!!!" + source + " " + target + " " + dataSize + " " + source.getDataSize() + " " + target.getDataSize() );
-				target.setData( entry, Edge.ltd( d1 + d2 ) );
+				offsets[ i ] = offset;
+				offset += mergers[ i ].dataSize();
 			}
+			this.dataSize = offset;
+		}
 
+		@Override
+		public Edge merge( final Edge source, final Edge target )
+		{
+			final long m1 = source.multiplicity();
+			final long m2 = target.multiplicity();
+			final int sourceOffset = source.getDataOffset();
+			final int sourceSize = source.getDataSize();
+			final int targetOffset = target.getDataOffset();
+			final int targetSize = target.getDataSize();
+			try
+			{
+				for ( int i = 0; i < mergers.length; ++i )
+				{
+					final int size = mergers[ i ].dataSize();
+					source.setDataView( offsets[ i ], size );
+					target.setDataView( offsets[ i ], size );
+					target.multiplicity( m2 );
+					mergers[ i ].merge( source, target );
+					source.restoreDataView( sourceOffset, sourceSize );
+					target.restoreDataView( targetOffset, targetSize );
+				}
+			}
+			finally
+			{
+				source.restoreDataView( sourceOffset, sourceSize );
+				target.restoreDataView( targetOffset, targetSize );
+			}
+			target.multiplicity( m1 + m2 );
 			return target;
 		}
 
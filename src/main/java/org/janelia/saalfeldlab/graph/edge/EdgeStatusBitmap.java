@@ -0,0 +1,181 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Bit packed copy of the status of all edges of an {@link EdgeStore}: one
+ * bit per edge for valid (not {@link Edge#OBSOLETE_MASK obsolete}) and one
+ * bit per edge for {@link Edge#STALE_MASK stale}. {@link #nextValid(int)},
+ * {@link #nextObsolete(int)}, and {@link #nextStale(int)} skip 64 edges per
+ * word with {@link Long#numberOfTrailingZeros(long)}, so scans late in the
+ * agglomeration do not stride over all obsolete edges. Bits beyond
+ * {@link #size()} are always {@code 0}.
+ *
+ * Updates of neighboring edges share a word and must not run concurrently.
+ */
+public class EdgeStatusBitmap implements Serializable
+{
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private long[] valid;
+
+	private long[] stale;
+
+	private int size;
+
+	public EdgeStatusBitmap()
+	{
+		this( DEFAULT_CAPACITY );
+	}
+
+	public EdgeStatusBitmap( final int capacity )
+	{
+		super();
+		this.valid = new long[ nWords( capacity ) ];
+		this.stale = new long[ nWords( capacity ) ];
+		this.size = 0;
+	}
+
+	/**
+	 * Bitmap of the current status of all edges in {@code edges}.
+	 */
+	public static EdgeStatusBitmap of( final EdgeStore edges )
+	{
+		final int size = edges.size();
+		final EdgeStatusBitmap bitmap = new EdgeStatusBitmap( size );
+		for ( int index = 0; index < size; ++index )
+			bitmap.add( edges.status( index ) );
+		return bitmap;
+	}
+
+	private static int nWords( final int nBits )
+	{
+		return Math.max( ( nBits + 63 ) >>> 6, 1 );
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isValid( final int index )
+	{
+		return ( valid[ index >>> 6 ] & 1l << index ) != 0;
+	}
+
+	public boolean isStale( final int index )
+	{
+		return ( stale[ index >>> 6 ] & 1l << index ) != 0;
+	}
+
+	public void set( final int index, final int status )
+	{
+		final int w = index >>> 6;
+		final long bit = 1l << index;
+		if ( ( status & Edge.OBSOLETE_MASK ) == 0 )
+			valid[ w ] |= bit;
+		else
+			valid[ w ] &= ~bit;
+		if ( ( status & Edge.STALE_MASK ) != 0 )
+			stale[ w ] |= bit;
+		else
+			stale[ w ] &= ~bit;
+	}
+
+	public void add( final int status )
+	{
+		if ( size == valid.length << 6 )
+		{
+			valid = Arrays.copyOf( valid, 2 * valid.length );
+			stale = Arrays.copyOf( stale, 2 * stale.length );
+		}
+		set( size++, status );
+	}
+
+	/**
+	 * Remove bits of edge at {@code index} and shift all following bits, as
+	 * in {@link EdgeStore#remove(int)}.
+	 */
+	public void remove( final int index )
+	{
+		final int nWords = nWords( size );
+		remove( valid, index, nWords );
+		remove( stale, index, nWords );
+		--size;
+	}
+
+	private static void remove( final long[] words, final int index, final int nWords )
+	{
+		int w = index >>> 6;
+		final long lower = ( 1l << index ) - 1;
+		words[ w ] = words[ w ] & lower | words[ w ] >>> 1 & ~lower;
+		for ( ; w + 1 < nWords; ++w )
+		{
+			words[ w ] |= words[ w + 1 ] << 63;
+			words[ w + 1 ] >>>= 1;
+		}
+	}
+
+	/**
+	 * Remove bits of all edges at {@code size} and beyond.
+	 */
+	public void truncate( final int size )
+	{
+		if ( size >= this.size )
+			return;
+		final int w = size >>> 6;
+		final long lower = ( 1l << size ) - 1;
+		valid[ w ] &= lower;
+		stale[ w ] &= lower;
+		Arrays.fill( valid, w + 1, nWords( this.size ), 0l );
+		Arrays.fill( stale, w + 1, nWords( this.size ), 0l );
+		this.size = size;
+	}
+
+	/**
+	 * @return smallest index {@code >= index} of a valid edge, or
+	 *         {@link #size()} if there is none
+	 */
+	public int nextValid( final int index )
+	{
+		return next( index, 0l, false );
+	}
+
+	/**
+	 * @return smallest index {@code >= index} of an obsolete edge, or
+	 *         {@link #size()} if there is none
+	 */
+	public int nextObsolete( final int index )
+	{
+		return next( index, -1l, false );
+	}
+
+	/**
+	 * @return smallest index {@code >= index} of a valid and stale edge, or
+	 *         {@link #size()} if there is none
+	 */
+	public int nextStale( final int index )
+	{
+		return next( index, 0l, true );
+	}
+
+	private int next( final int index, final long flipValid, final boolean onlyStale )
+	{
+		if ( index >= size )
+			return size;
+		final int nWords = nWords( size );
+		int w = index >>> 6;
+		long word = ( valid[ w ] ^ flipValid ) & ( onlyStale ? stale[ w ] : -1l ) & -1l << index;
+		while ( word == 0 )
+		{
+			if ( ++w == nWords )
+				return size;
+			word = ( valid[ w ] ^ flipValid ) & ( onlyStale ? stale[ w ] : -1l );
+		}
+		// flipped bits beyond size are set
+		return Math.min( ( w << 6 ) + Long.numberOfTrailingZeros( word ), size );
+	}
+
+}
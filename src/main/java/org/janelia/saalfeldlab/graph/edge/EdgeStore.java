@@ -0,0 +1,163 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.io.Serializable;
+
+/**
+ * Storage of edges that is accessed through an {@link Edge} cursor. Each edge
+ * has a weight, an affinity, two node ids, a multiplicity, a status
+ * ({@link Edge#STALE_MASK}, {@link Edge#OBSOLETE_MASK}), and
+ * {@link #dataSize()} entries of additional data, e.g. affinity histograms.
+ * Implementations keep an {@link EdgeStatusBitmap} in sync with
+ * {@link #status(int, int)} for {@link #nextValid(int)},
+ * {@link #nextObsolete(int)}, and {@link #nextStale(int)}.
+ */
+public interface EdgeStore extends Serializable
+{
+
+	public int size();
+
+	public int dataSize();
+
+	public double weight( int index );
+
+	public void weight( int index, double weight );
+
+	public double affinity( int index );
+
+	public void affinity( int index, double affinity );
+
+	public long from( int index );
+
+	public void from( int index, long from );
+
+	public long to( int index );
+
+	public void to( int index, long to );
+
+	public long multiplicity( int index );
+
+	public void multiplicity( int index, long multiplicity );
+
+	public int status( int index );
+
+	public void status( int index, int status );
+
+	/**
+	 * @return smallest index {@code >= index} of an edge that is not
+	 *         obsolete, or {@link #size()} if there is none
+	 */
+	public default int nextValid( final int index )
+	{
+		int k = index;
+		while ( k < size() && ( status( k ) & Edge.OBSOLETE_MASK ) != 0 )
+			++k;
+		return k;
+	}
+
+	/**
+	 * @return smallest index {@code >= index} of an obsolete edge, or
+	 *         {@link #size()} if there is none
+	 */
+	public default int nextObsolete( final int index )
+	{
+		int k = index;
+		while ( k < size() && ( status( k ) & Edge.OBSOLETE_MASK ) == 0 )
+			++k;
+		return k;
+	}
+
+	/**
+	 * @return smallest index {@code >= index} of an edge that is stale and
+	 *         not obsolete, or {@link #size()} if there is none
+	 */
+	public default int nextStale( final int index )
+	{
+		int k = index;
+		while ( k < size() && ( status( k ) & Edge.STATUS_MASK ) != Edge.STALE_MASK )
+			++k;
+		return k;
+	}
+
+	public double getData( int index, int i );
+
+	public void setData( int index, int i, double d );
+
+	/**
+	 * Interpret data entries {@code offset ... offset + length - 1} as long
+	 * bits ({@link Edge#dtl(double)}) and add those of edge
+	 * {@code sourceIndex} to those of edge {@code targetIndex}, e.g. to merge
+	 * histogram counts. Implementations should override this with a loop
+	 * over their backing storage.
+	 */
+	public default void addCounts( final int sourceIndex, final int targetIndex, final int offset, final int length )
+	{
+		for ( int i = offset; i < offset + length; ++i )
+			setData( targetIndex, i, Edge.ltd( Edge.dtl( getData( targetIndex, i ) ) + Edge.dtl( getData( sourceIndex, i ) ) ) );
+	}
+
+	/**
+	 * @return number of entries in the overflow region
+	 */
+	public long overflowSize();
+
+	/**
+	 * Allocate {@code length} consecutive long entries set to {@code 0} in
+	 * the overflow region, e.g. for edge data that outgrows
+	 * {@link #dataSize()}. Entries are addressed by offsets that can be kept
+	 * in the data of an edge and are persisted along with the edges, but
+	 * {@link #copy(int, int)} and {@link #remove(int)} do not touch them.
+	 * Blocks of the same length released by
+	 * {@link #releaseOverflow(long, int)} are reused.
+	 *
+	 * @return offset of the first entry
+	 * @throws IllegalStateException
+	 *             if the overflow region cannot hold {@code length} more
+	 *             entries
+	 */
+	public long allocateOverflow( int length );
+
+	public void releaseOverflow( long offset, int length );
+
+	public long getOverflow( long offset );
+
+	public void setOverflow( long offset, long value );
+
+	/**
+	 * Append an edge with all data entries set to {@code 0}.
+	 *
+	 * @return index of the new edge
+	 */
+	public int add( double weight, double affinity, long from, long to, long multiplicity, int status );
+
+	/**
+	 * Remove edge at {@code index} and shift all following edges.
+	 */
+	public void remove( int index );
+
+	/**
+	 * Overwrite edge {@code targetIndex} with all fields and data of edge
+	 * {@code sourceIndex}, e.g. to move live edges to the front before
+	 * {@link #truncate(int)}.
+	 */
+	public default void copy( final int sourceIndex, final int targetIndex )
+	{
+		weight( targetIndex, weight( sourceIndex ) );
+		affinity( targetIndex, affinity( sourceIndex ) );
+		from( targetIndex, from( sourceIndex ) );
+		to( targetIndex, to( sourceIndex ) );
+		multiplicity( targetIndex, multiplicity( sourceIndex ) );
+		status( targetIndex, status( sourceIndex ) );
+		for ( int i = 0; i < dataSize(); ++i )
+			setData( targetIndex, i, getData( sourceIndex, i ) );
+	}
+
+	/**
+	 * Remove all edges at {@code size} and beyond.
+	 */
+	public default void truncate( final int size )
+	{
+		for ( int index = size() - 1; index >= size; --index )
+			remove( index );
+	}
+
+}
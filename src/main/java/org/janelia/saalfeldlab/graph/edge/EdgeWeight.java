@@ -7,7 +7,6 @@ import java.util.PrimitiveIterator.OfLong;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 
-import org.janelia.saalfeldlab.util.unionfind.Stringify;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,6 +17,48 @@ public interface EdgeWeight extends EdgeDataSize
 
 	public double weight( Edge e );
 
+	/**
+	 * Same as {@link MedianAffinityWeight#medianFromHistogram} ({@code limit}
+	 * is half the count, {@code inclusive}) and
+	 * {@link PercentileAffinityWeight#percentileFromHistogram} ({@code limit}
+	 * is count times percentile, not {@code inclusive}) but reads the bins
+	 * from data entries {@code 1 ... nBins} of {@code e} directly.
+	 */
+	public static double affinityAt( final Edge e, final int nBins, final double limit, final boolean inclusive, final double min, final double binWidth )
+	{
+		long nVisited = 0;
+		int binsBefore = 0;
+		long countAt = -1;
+		for ( ; binsBefore < nBins; ++binsBefore )
+		{
+			countAt = Edge.dtl( e.getData( binsBefore + 1 ) );
+			final long next = nVisited + countAt;
+			if ( inclusive ? next > limit : next >= limit )
+				break;
+			nVisited = next;
+		}
+		return min + binsBefore * binWidth + ( limit - nVisited ) / countAt * binWidth;
+	}
+
+	/**
+	 * Compute weights of edges {@code indices[ offset ... offset + length - 1 ]}
+	 * into {@code weights[ offset ... offset + length - 1 ]}. {@code e} is
+	 * moved to each of the edges. Implementations should override this with
+	 * a loop that calls their own {@link #weight(Edge)} or reads the store
+	 * directly, so the per edge call is not dispatched through the interface.
+	 * The call site in this default method is shared by all implementations
+	 * and becomes megamorphic as soon as more than two weights are in use, a
+	 * copy of the loop in each implementation keeps it monomorphic.
+	 */
+	public default void weights( final Edge e, final int[] indices, final int offset, final int length, final double[] weights )
+	{
+		for ( int i = offset; i < offset + length; ++i )
+		{
+			e.setIndex( indices[ i ] );
+			weights[ i ] = weight( e );
+		}
+	}
+
 	public static class OneMinusAffinity implements EdgeWeight, Serializable
 	{
 
@@ -27,6 +68,14 @@ public interface EdgeWeight extends EdgeDataSize
 			return 1.0 - e.affinity();
 		}
 
+		@Override
+		public void weights( final Edge e, final int[] indices, final int offset, final int length, final double[] weights )
+		{
+			final EdgeStore store = e.store();
+			for ( int i = offset; i < offset + length; ++i )
+				weights[ i ] = 1.0 - store.affinity( indices[ i ] );
+		}
+
 	}
 
 	public static class MedianAffinityWeight implements EdgeWeight, Serializable
@@ -57,15 +106,24 @@ public interface EdgeWeight extends EdgeDataSize
 			// as in
 			// http://math.stackexchange.com/questions/879052/how-to-find-mean-and-median-from-histogram
 			final long count = Edge.dtl( e.getData( 0 ) );
-			final LongStream bins = IntStream.range( 1, nBins + 1 ).mapToLong( i -> Edge.dtl( e.getData( i ) ) );
-			final double medianAffinity = medianFromHistogram( nBins, bins, count, min, binWidth );
-
-			LOG.trace( "{}", new Stringify( () -> String.format( "Setting weight: %f %f %s %d", medianAffinity, 1 - medianAffinity, Arrays.toString( IntStream.range( 1, nBins + 1 ).mapToLong( i -> Edge.dtl( e.getData( i ) ) ).toArray() ), count ) ) );
+			final double medianAffinity = affinityAt( e, nBins, 0.5 * count, true, min, binWidth );
 
+			if ( LOG.isTraceEnabled() )
+				LOG.trace( "{}", String.format( "Setting weight: %f %f %s %d", medianAffinity, 1 - medianAffinity, Arrays.toString( IntStream.range( 1, nBins + 1 ).mapToLong( i -> Edge.dtl( e.getData( i ) ) ).toArray() ), count ) );
 
 			return 1 - medianAffinity;
 		}
 
+		@Override
+		public void weights( final Edge e, final int[] indices, final int offset, final int length, final double[] weights )
+		{
+			for ( int i = offset; i < offset + length; ++i )
+			{
+				e.setIndex( indices[ i ] );
+				weights[ i ] = 1 - affinityAt( e, nBins, 0.5 * Edge.dtl( e.getData( 0 ) ), true, min, binWidth );
+			}
+		}
+
 		@Override
 		public int dataSize()
 		{
@@ -129,14 +187,24 @@ public interface EdgeWeight extends EdgeDataSize
 			// as in
 			// http://math.stackexchange.com/questions/879052/how-to-find-mean-and-median-from-histogram
 			final long count = Edge.dtl( e.getData( 0 ) );
-			final LongStream bins = IntStream.range( 1, nBins + 1 ).mapToLong( i -> Edge.dtl( e.getData( i ) ) );
-			final double medianAffinity = percentileFromHistogram( nBins, bins, count, min, binWidth, percentile );
+			final double medianAffinity = affinityAt( e, nBins, count * percentile, false, min, binWidth );
 
-			LOG.trace( "{}", new Stringify( () -> String.format( "Setting weight: %f %f %s %d", medianAffinity, 1 - medianAffinity, Arrays.toString( IntStream.range( 1, nBins + 1 ).mapToLong( i -> Edge.dtl( e.getData( i ) ) ).toArray() ), count ) ) );
+			if ( LOG.isTraceEnabled() )
+				LOG.trace( "{}", String.format( "Setting weight: %f %f %s %d", medianAffinity, 1 - medianAffinity, Arrays.toString( IntStream.range( 1, nBins + 1 ).mapToLong( i -> Edge.dtl( e.getData( i ) ) ).toArray() ), count ) );
 
 			return 1 - medianAffinity;
 		}
 
+		@Override
+		public void weights( final Edge e, final int[] indices, final int offset, final int length, final double[] weights )
+		{
+			for ( int i = offset; i < offset + length; ++i )
+			{
+				e.setIndex( indices[ i ] );
+				weights[ i ] = 1 - affinityAt( e, nBins, Edge.dtl( e.getData( 0 ) ) * percentile, false, min, binWidth );
+			}
+		}
+
 		@Override
 		public int dataSize()
 		{
@@ -170,4 +238,338 @@ public interface EdgeWeight extends EdgeDataSize
 		}
 	}
 
+	/**
+	 * Same as {@link MedianAffinityWeight} for histograms in
+	 * {@link FenwickHistogram} layout, e.g. created by
+	 * {@link EdgeCreator.FenwickAffinityHistogram}. The median bin is found in
+	 * {@code O(log nBins)}.
+	 */
+	public static class FenwickMedianAffinityWeight implements EdgeWeight, Serializable
+	{
+
+		private final int nBins;
+
+		private final double min;
+
+		private final double max;
+
+		private final double binWidth;
+
+		public FenwickMedianAffinityWeight( final int nBins, final double min, final double max )
+		{
+			super();
+			this.nBins = nBins;
+			this.min = min;
+			this.max = max;
+			this.binWidth = ( max - min ) / nBins;
+		}
+
+		@Override
+		public double weight( final Edge e )
+		{
+			final long count = FenwickHistogram.count( e, 0 );
+			final int binsBeforeMedian = FenwickHistogram.search( e, 0, nBins, 0.5 * count, true );
+			final long nVisitedBeforeMedian = FenwickHistogram.prefixSum( e, 0, binsBeforeMedian );
+			final long countAt = FenwickHistogram.binCount( e, 0, Math.min( binsBeforeMedian, nBins - 1 ) );
+			final double lower = min + binsBeforeMedian * binWidth;
+			return 1 - ( lower + ( 0.5 * count - nVisitedBeforeMedian ) / countAt * binWidth );
+		}
+
+		@Override
+		public void weights( final Edge e, final int[] indices, final int offset, final int length, final double[] weights )
+		{
+			for ( int i = offset; i < offset + length; ++i )
+			{
+				e.setIndex( indices[ i ] );
+				weights[ i ] = weight( e );
+			}
+		}
+
+		@Override
+		public int dataSize()
+		{
+			return nBins + 1;
+		}
+
+	}
+
+	/**
+	 * Same as {@link PercentileAffinityWeight} for histograms in
+	 * {@link FenwickHistogram} layout.
+	 */
+	public static class FenwickPercentileAffinityWeight implements EdgeWeight, Serializable
+	{
+
+		private final int nBins;
+
+		private final double min;
+
+		private final double max;
+
+		private final double binWidth;
+
+		private final double percentile;
+
+		public FenwickPercentileAffinityWeight( final int nBins, final double min, final double max, final double percentile )
+		{
+			super();
+			this.nBins = nBins;
+			this.min = min;
+			this.max = max;
+			this.binWidth = ( max - min ) / nBins;
+			this.percentile = percentile;
+		}
+
+		@Override
+		public double weight( final Edge e )
+		{
+			final double N = FenwickHistogram.count( e, 0 ) * percentile;
+			final int binsBeforePercentile = FenwickHistogram.search( e, 0, nBins, N, false );
+			final long nVisitedBeforePercentile = FenwickHistogram.prefixSum( e, 0, binsBeforePercentile );
+			final long countAt = FenwickHistogram.binCount( e, 0, Math.min( binsBeforePercentile, nBins - 1 ) );
+			final double lower = min + binsBeforePercentile * binWidth;
+			return 1 - ( lower + ( N - nVisitedBeforePercentile ) / countAt * binWidth );
+		}
+
+		@Override
+		public void weights( final Edge e, final int[] indices, final int offset, final int length, final double[] weights )
+		{
+			for ( int i = offset; i < offset + length; ++i )
+			{
+				e.setIndex( indices[ i ] );
+				weights[ i ] = weight( e );
+			}
+		}
+
+		@Override
+		public int dataSize()
+		{
+			return nBins + 1;
+		}
+
+	}
+
+	/**
+	 * Same as {@link MedianAffinityWeight} for {@link SparseHistogram}s.
+	 */
+	public static class SparseMedianAffinityWeight implements EdgeWeight, Serializable
+	{
+
+		private final SparseHistogram histogram;
+
+		public SparseMedianAffinityWeight( final SparseHistogram histogram )
+		{
+			super();
+			this.histogram = histogram;
+		}
+
+		@Override
+		public double weight( final Edge e )
+		{
+			return 1 - histogram.affinityAt( e, 0, 0.5 * histogram.count( e, 0 ), true );
+		}
+
+		@Override
+		public void weights( final Edge e, final int[] indices, final int offset, final int length, final double[] weights )
+		{
+			for ( int i = offset; i < offset + length; ++i )
+			{
+				e.setIndex( indices[ i ] );
+				weights[ i ] = weight( e );
+			}
+		}
+
+		@Override
+		public int dataSize()
+		{
+			return histogram.dataSize();
+		}
+
+	}
+
+	/**
+	 * Same as {@link PercentileAffinityWeight} for {@link SparseHistogram}s.
+	 */
+	public static class SparsePercentileAffinityWeight implements EdgeWeight, Serializable
+	{
+
+		private final SparseHistogram histogram;
+
+		private final double percentile;
+
+		public SparsePercentileAffinityWeight( final SparseHistogram histogram, final double percentile )
+		{
+			super();
+			this.histogram = histogram;
+			this.percentile = percentile;
+		}
+
+		@Override
+		public double weight( final Edge e )
+		{
+			return 1 - histogram.affinityAt( e, 0, histogram.count( e, 0 ) * percentile, false );
+		}
+
+		@Override
+		public void weights( final Edge e, final int[] indices, final int offset, final int length, final double[] weights )
+		{
+			for ( int i = offset; i < offset + length; ++i )
+			{
+				e.setIndex( indices[ i ] );
+				weights[ i ] = weight( e );
+			}
+		}
+
+		@Override
+		public int dataSize()
+		{
+			return histogram.dataSize();
+		}
+
+	}
+
+	/**
+	 * One minus median affinity estimated from a {@link QuantileSketch}.
+	 */
+	public static class SketchMedianAffinityWeight implements EdgeWeight, Serializable
+	{
+
+		private final QuantileSketch sketch;
+
+		public SketchMedianAffinityWeight( final QuantileSketch sketch )
+		{
+			super();
+			this.sketch = sketch;
+		}
+
+		@Override
+		public double weight( final Edge e )
+		{
+			return 1 - sketch.quantile( e, 0, 0.5 );
+		}
+
+		@Override
+		public void weights( final Edge e, final int[] indices, final int offset, final int length, final double[] weights )
+		{
+			for ( int i = offset; i < offset + length; ++i )
+			{
+				e.setIndex( indices[ i ] );
+				weights[ i ] = 1 - sketch.quantile( e, 0, 0.5 );
+			}
+		}
+
+		@Override
+		public int dataSize()
+		{
+			return sketch.dataSize();
+		}
+
+	}
+
+	/**
+	 * One minus affinity percentile estimated from a {@link QuantileSketch}.
+	 */
+	public static class SketchPercentileAffinityWeight implements EdgeWeight, Serializable
+	{
+
+		private final QuantileSketch sketch;
+
+		private final double percentile;
+
+		public SketchPercentileAffinityWeight( final QuantileSketch sketch, final double percentile )
+		{
+			super();
+			this.sketch = sketch;
+			this.percentile = percentile;
+		}
+
+		@Override
+		public double weight( final Edge e )
+		{
+			return 1 - sketch.quantile( e, 0, percentile );
+		}
+
+		@Override
+		public void weights( final Edge e, final int[] indices, final int offset, final int length, final double[] weights )
+		{
+			for ( int i = offset; i < offset + length; ++i )
+			{
+				e.setIndex( indices[ i ] );
+				weights[ i ] = 1 - sketch.quantile( e, 0, percentile );
+			}
+		}
+
+		@Override
+		public int dataSize()
+		{
+			return sketch.dataSize();
+		}
+
+	}
+
+	/**
+	 * Evaluate {@code weight} on a slice of the edge data, see
+	 * {@link EdgeDataLayout}.
+	 */
+	public static class DataViewWeight implements EdgeWeight, Serializable
+	{
+
+		private final EdgeWeight weight;
+
+		private final int offset;
+
+		private final int dataSize;
+
+		public DataViewWeight( final EdgeWeight weight, final int offset, final int dataSize )
+		{
+			super();
+			this.weight = weight;
+			this.offset = offset;
+			this.dataSize = dataSize;
+		}
+
+		@Override
+		public double weight( final Edge e )
+		{
+			final int dataOffset = e.getDataOffset();
+			final int dataSize = e.getDataSize();
+			e.setDataView( offset, weight.dataSize() );
+			try
+			{
+				return weight.weight( e );
+			}
+			finally
+			{
+				e.restoreDataView( dataOffset, dataSize );
+			}
+		}
+
+		/**
+		 * Set the view once for all edges and evaluate the batch with
+		 * {@code weight}.
+		 */
+		@Override
+		public void weights( final Edge e, final int[] indices, final int offset, final int length, final double[] weights )
+		{
+			final int dataOffset = e.getDataOffset();
+			final int dataSize = e.getDataSize();
+			e.setDataView( this.offset, weight.dataSize() );
+			try
+			{
+				weight.weights( e, indices, offset, length, weights );
+			}
+			finally
+			{
+				e.restoreDataView( dataOffset, dataSize );
+			}
+		}
+
+		@Override
+		public int dataSize()
+		{
+			return dataSize;
+		}
+
+	}
+
 }
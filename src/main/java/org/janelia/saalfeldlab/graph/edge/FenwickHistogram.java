@@ -0,0 +1,79 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+/**
+ * Histograms of {@code nBins} bins stored as Fenwick tree (binary indexed
+ * tree) in the data of an {@link Edge}: entry {@code offset} holds the total
+ * count and entries {@code offset + 1 ... offset + nBins} hold the tree nodes
+ * as long bits, 1-based as in the usual Fenwick layout. Adding a count and
+ * querying prefix sums take {@code O(log nBins)}. The layout is linear in the
+ * counts, i.e. two histograms are merged by adding all entries, e.g. with
+ * {@link EdgeMerger.MEDIAN_AFFINITY_MERGER}.
+ */
+public class FenwickHistogram
+{
+
+	/**
+	 * Add {@code count} to zero-based {@code bin}.
+	 */
+	public static void add( final Edge e, final int offset, final int nBins, final int bin, final long count )
+	{
+		e.setData( offset, Edge.ltd( Edge.dtl( e.getData( offset ) ) + count ) );
+		for ( int i = bin + 1; i <= nBins; i += i & -i )
+			e.setData( offset + i, Edge.ltd( Edge.dtl( e.getData( offset + i ) ) + count ) );
+	}
+
+	public static long count( final Edge e, final int offset )
+	{
+		return Edge.dtl( e.getData( offset ) );
+	}
+
+	/**
+	 * @return sum of counts in the first {@code nBins} bins.
+	 */
+	public static long prefixSum( final Edge e, final int offset, final int nBins )
+	{
+		long sum = 0;
+		for ( int i = nBins; i > 0; i -= i & -i )
+			sum += Edge.dtl( e.getData( offset + i ) );
+		return sum;
+	}
+
+	/**
+	 * @return count of zero-based {@code bin}.
+	 */
+	public static long binCount( final Edge e, final int offset, final int bin )
+	{
+		final int i = bin + 1;
+		long count = Edge.dtl( e.getData( offset + i ) );
+		final int parent = i - ( i & -i );
+		for ( int j = i - 1; j > parent; j -= j & -j )
+			count -= Edge.dtl( e.getData( offset + j ) );
+		return count;
+	}
+
+	/**
+	 * Find the largest number of bins {@code n} such that the sum of counts
+	 * in the first {@code n} bins is at most {@code limit} (if
+	 * {@code inclusive}) or less than {@code limit} (otherwise) by descending
+	 * the tree in {@code O(log nBins)}.
+	 */
+	public static int search( final Edge e, final int offset, final int nBins, final double limit, final boolean inclusive )
+	{
+		int position = 0;
+		long sum = 0;
+		for ( int step = Integer.highestOneBit( Math.max( nBins, 1 ) ); step > 0; step >>= 1 )
+		{
+			final int next = position + step;
+			if ( next > nBins )
+				continue;
+			final long nextSum = sum + Edge.dtl( e.getData( offset + next ) );
+			if ( inclusive ? nextSum <= limit : nextSum < limit )
+			{
+				position = next;
+				sum = nextSum;
+			}
+		}
+		return position;
+	}
+
+}
@@ -0,0 +1,277 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * {@link EdgeStore} that interleaves all fields of an edge in a single
+ * {@link TDoubleArrayList} with stride {@link Edge#COMMON_SIZE} +
+ * {@code dataSize}: weight, affinity, from, to, multiplicity, status, data.
+ * Ids, multiplicity, and status are stored as raw long bits. The
+ * {@link EdgeStatusBitmap} is initialized from {@code data} on construction
+ * and only tracks status changes through this store, not through other
+ * stores over the same list or direct modifications of the list. Cursors
+ * and graphs that modify the same edges should share one store, e.g. with
+ * {@link Edge#Edge(EdgeStore)} and
+ * {@link org.janelia.saalfeldlab.graph.UndirectedGraph#UndirectedGraph(int, EdgeStore, EdgeMerger)}.
+ * The overflow region is kept in a separate list of at most
+ * {@link ColumnarEdgeStore#MAX_OVERFLOW_SIZE} entries that belongs to the
+ * store, not to {@code data}.
+ */
+public class InterleavedEdgeStore implements EdgeStore
+{
+
+	private static final int WEIGHT_OFFSET = 0;
+
+	private static final int AFFINITY_OFFSET = 1;
+
+	private static final int FROM_OFFSET = 2;
+
+	private static final int TO_OFFSET = 3;
+
+	private static final int MULTIPLICITY_OFFSET = 4;
+
+	private static final int STATUS_OFFSET = 5;
+
+	private final TDoubleArrayList data;
+
+	private final int dataSize;
+
+	private final int stride;
+
+	private final EdgeStatusBitmap statusBitmap;
+
+	private final TLongArrayList overflow;
+
+	private final OverflowBlocks releasedOverflow;
+
+	public InterleavedEdgeStore( final int dataSize )
+	{
+		this( new TDoubleArrayList(), dataSize );
+	}
+
+	public InterleavedEdgeStore( final TDoubleArrayList data, final int dataSize )
+	{
+		super();
+		this.data = data;
+		this.dataSize = dataSize;
+		this.stride = Edge.COMMON_SIZE + dataSize;
+
+		assert data.size() % stride == 0;
+
+		this.statusBitmap = EdgeStatusBitmap.of( this );
+		this.overflow = new TLongArrayList();
+		this.releasedOverflow = new OverflowBlocks();
+	}
+
+	public TDoubleArrayList data()
+	{
+		return data;
+	}
+
+	@Override
+	public int size()
+	{
+		return data.size() / stride;
+	}
+
+	@Override
+	public int dataSize()
+	{
+		return dataSize;
+	}
+
+	@Override
+	public double weight( final int index )
+	{
+		return data.get( index * stride + WEIGHT_OFFSET );
+	}
+
+	@Override
+	public void weight( final int index, final double weight )
+	{
+		data.set( index * stride + WEIGHT_OFFSET, weight );
+	}
+
+	@Override
+	public double affinity( final int index )
+	{
+		return data.get( index * stride + AFFINITY_OFFSET );
+	}
+
+	@Override
+	public void affinity( final int index, final double affinity )
+	{
+		data.set( index * stride + AFFINITY_OFFSET, affinity );
+	}
+
+	@Override
+	public long from( final int index )
+	{
+		return Edge.dtl( data.get( index * stride + FROM_OFFSET ) );
+	}
+
+	@Override
+	public void from( final int index, final long from )
+	{
+		data.set( index * stride + FROM_OFFSET, Edge.ltd( from ) );
+	}
+
+	@Override
+	public long to( final int index )
+	{
+		return Edge.dtl( data.get( index * stride + TO_OFFSET ) );
+	}
+
+	@Override
+	public void to( final int index, final long to )
+	{
+		data.set( index * stride + TO_OFFSET, Edge.ltd( to ) );
+	}
+
+	@Override
+	public long multiplicity( final int index )
+	{
+		return Edge.dtl( data.get( index * stride + MULTIPLICITY_OFFSET ) );
+	}
+
+	@Override
+	public void multiplicity( final int index, final long multiplicity )
+	{
+		data.set( index * stride + MULTIPLICITY_OFFSET, Edge.ltd( multiplicity ) );
+	}
+
+	@Override
+	public int status( final int index )
+	{
+		return ( int ) Edge.dtl( data.get( index * stride + STATUS_OFFSET ) );
+	}
+
+	@Override
+	public void status( final int index, final int status )
+	{
+		data.set( index * stride + STATUS_OFFSET, Edge.ltd( status ) );
+		statusBitmap.set( index, status );
+	}
+
+	@Override
+	public int nextValid( final int index )
+	{
+		return statusBitmap.nextValid( index );
+	}
+
+	@Override
+	public int nextObsolete( final int index )
+	{
+		return statusBitmap.nextObsolete( index );
+	}
+
+	@Override
+	public int nextStale( final int index )
+	{
+		return statusBitmap.nextStale( index );
+	}
+
+	@Override
+	public double getData( final int index, final int i )
+	{
+		return data.get( index * stride + Edge.COMMON_SIZE + i );
+	}
+
+	@Override
+	public void setData( final int index, final int i, final double d )
+	{
+		data.set( index * stride + Edge.COMMON_SIZE + i, d );
+	}
+
+	@Override
+	public void addCounts( final int sourceIndex, final int targetIndex, final int offset, final int length )
+	{
+		final int source = sourceIndex * stride + Edge.COMMON_SIZE + offset;
+		final int target = targetIndex * stride + Edge.COMMON_SIZE + offset;
+		for ( int i = 0; i < length; ++i )
+			data.set( target + i, Edge.ltd( Edge.dtl( data.get( target + i ) ) + Edge.dtl( data.get( source + i ) ) ) );
+	}
+
+	@Override
+	public long overflowSize()
+	{
+		return overflow.size();
+	}
+
+	@Override
+	public long allocateOverflow( final int length )
+	{
+		final long released = releasedOverflow.reuse( length );
+		if ( released >= 0 )
+		{
+			overflow.fill( ( int ) released, ( int ) released + length, 0l );
+			return released;
+		}
+		if ( length > ColumnarEdgeStore.MAX_OVERFLOW_SIZE - overflow.size() )
+			throw new IllegalStateException( "Overflow region of " + overflow.size() + " entries cannot hold " + length + " more entries." );
+		final int offset = overflow.size();
+		overflow.fill( offset, offset + length, 0l );
+		return offset;
+	}
+
+	@Override
+	public void releaseOverflow( final long offset, final int length )
+	{
+		releasedOverflow.release( offset, length );
+	}
+
+	@Override
+	public long getOverflow( final long offset )
+	{
+		return overflow.get( ( int ) offset );
+	}
+
+	@Override
+	public void setOverflow( final long offset, final long value )
+	{
+		overflow.set( ( int ) offset, value );
+	}
+
+	@Override
+	public int add( final double weight, final double affinity, final long from, final long to, final long multiplicity, final int status )
+	{
+		final int index = size();
+		data.ensureCapacity( data.size() + stride );
+		data.add( weight );
+		data.add( affinity );
+		data.add( Edge.ltd( from ) );
+		data.add( Edge.ltd( to ) );
+		data.add( Edge.ltd( multiplicity ) );
+		data.add( Edge.ltd( status ) );
+		statusBitmap.add( status );
+		for ( int i = 0; i < dataSize; ++i )
+			data.add( 0.0 );
+		return index;
+	}
+
+	@Override
+	public void remove( final int index )
+	{
+		data.remove( index * stride, stride );
+		statusBitmap.remove( index );
+	}
+
+	@Override
+	public void copy( final int sourceIndex, final int targetIndex )
+	{
+		for ( int i = 0; i < stride; ++i )
+			data.set( targetIndex * stride + i, data.get( sourceIndex * stride + i ) );
+		statusBitmap.set( targetIndex, status( targetIndex ) );
+	}
+
+	@Override
+	public void truncate( final int size )
+	{
+		if ( size >= size() )
+			return;
+		data.remove( size * stride, data.size() - size * stride );
+		statusBitmap.truncate( size );
+	}
+
+}
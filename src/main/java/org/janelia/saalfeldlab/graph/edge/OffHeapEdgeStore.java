@@ -0,0 +1,702 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * {@link EdgeStore} that keeps all edges outside of the Java heap, either in
+ * direct {@link ByteBuffer}s or in a memory mapped file. Edges are stored as
+ * fixed size records, all values are little endian:
+ *
+ * <pre>
+ * header:  magic (int, {@link #MAGIC}), version (int, {@link #VERSION}),
+ *          dataSize (int), edgesPerChunk (int), size (long),
+ *          overflowSize (long)
+ * records: weight (double), affinity (double), from (long), to (long),
+ *          multiplicity (long), status (long),
+ *          data[ 0 ... dataSize - 1 ] (double)
+ * </pre>
+ *
+ * The header is written only to mapped files and kept up to date with every
+ * change of size, so a mapped store can be reopened with {@link #open(Path)}.
+ *
+ * Records are distributed over chunks of {@code edgesPerChunk} edges each,
+ * so the total size is not limited by the 2GB limit of a single buffer. The
+ * last chunk starts with room for {@link #INITIAL_CHUNK_EDGES} edges and
+ * doubles until it holds {@code edgesPerChunk} edges, so small stores do not
+ * allocate a full chunk. The overflow region grows the same way in chunks of
+ * up to {@link #OVERFLOW_CHUNK_ENTRIES} longs and is mapped from the file
+ * {@code <file>.overflow} next to the edges of a mapped store. Released
+ * blocks of the overflow region are not reused after reopening.
+ *
+ * When serialized, all edges are written to the stream and deserialized into
+ * direct buffers, independent of the original backing.
+ */
+public class OffHeapEdgeStore implements EdgeStore, Closeable
+{
+
+	private static final int WEIGHT_OFFSET = 0;
+
+	private static final int AFFINITY_OFFSET = 8;
+
+	private static final int FROM_OFFSET = 16;
+
+	private static final int TO_OFFSET = 24;
+
+	private static final int MULTIPLICITY_OFFSET = 32;
+
+	private static final int STATUS_OFFSET = 40;
+
+	private static final int DATA_OFFSET = 48;
+
+	public static final int MAGIC = 0x524d4553;
+
+	public static final int VERSION = 1;
+
+	public static final int HEADER_BYTES = 32;
+
+	private static final int DATA_SIZE_POSITION = 8;
+
+	private static final int EDGES_PER_CHUNK_POSITION = 12;
+
+	private static final int SIZE_POSITION = 16;
+
+	private static final int OVERFLOW_SIZE_POSITION = 24;
+
+	/**
+	 * Default maximum size of a chunk, larger chunks, e.g. 1GB, can be set
+	 * with {@link #edgesPerChunk(int, int)}.
+	 */
+	public static final int DEFAULT_CHUNK_BYTES = 1 << 26;
+
+	public static final int INITIAL_CHUNK_EDGES = 1 << 10;
+
+	public static final int OVERFLOW_CHUNK_ENTRIES = 1 << 23;
+
+	private static final int OVERFLOW_CHUNK_SHIFT = Integer.numberOfTrailingZeros( OVERFLOW_CHUNK_ENTRIES );
+
+	private static final int COPY_BUFFER_BYTES = 1 << 16;
+
+	private final int dataSize;
+
+	private final int recordSize;
+
+	private final int chunkShift;
+
+	private final int chunkMask;
+
+	private transient FileChannel channel;
+
+	private transient ByteBuffer header;
+
+	private transient ArrayList< ByteBuffer > chunks;
+
+	private final EdgeStatusBitmap statusBitmap;
+
+	private int size;
+
+	private transient Path overflowFile;
+
+	private transient FileChannel overflowChannel;
+
+	private transient ArrayList< ByteBuffer > overflowChunks;
+
+	private long overflowSize;
+
+	private final OverflowBlocks releasedOverflow;
+
+	/**
+	 * Store edges in direct {@link ByteBuffer}s of up to
+	 * {@link #DEFAULT_CHUNK_BYTES} each.
+	 */
+	public OffHeapEdgeStore( final int dataSize )
+	{
+		this( dataSize, defaultEdgesPerChunk( dataSize ) );
+	}
+
+	/**
+	 * Store edges in direct {@link ByteBuffer}s.
+	 *
+	 * @param edgesPerChunk
+	 *            number of edges per buffer, must be a power of two
+	 */
+	public OffHeapEdgeStore( final int dataSize, final int edgesPerChunk )
+	{
+		this( dataSize, edgesPerChunk, null, null, null );
+	}
+
+	private OffHeapEdgeStore( final int dataSize, final int edgesPerChunk, final FileChannel channel, final ByteBuffer header, final Path overflowFile )
+	{
+		super();
+		if ( Integer.bitCount( edgesPerChunk ) != 1 )
+			throw new IllegalArgumentException( "Number of edges per chunk must be a power of two: " + edgesPerChunk );
+		this.dataSize = dataSize;
+		this.recordSize = DATA_OFFSET + Double.BYTES * dataSize;
+		if ( ( long ) edgesPerChunk * recordSize > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Chunk of " + edgesPerChunk + " edges exceeds maximum buffer size." );
+		this.chunkShift = Integer.numberOfTrailingZeros( edgesPerChunk );
+		this.chunkMask = edgesPerChunk - 1;
+		this.channel = channel;
+		this.header = header;
+		this.chunks = new ArrayList<>();
+		this.statusBitmap = new EdgeStatusBitmap();
+		this.size = 0;
+		this.overflowFile = overflowFile;
+		this.overflowChunks = new ArrayList<>();
+		this.overflowSize = 0;
+		this.releasedOverflow = new OverflowBlocks();
+	}
+
+	/**
+	 * Store edges in a memory mapped {@code file}. The file is created or
+	 * truncated and grows whenever all mapped chunks are full, use
+	 * {@link #open(Path)} to continue with an existing file.
+	 */
+	public static OffHeapEdgeStore mapped( final Path file, final int dataSize ) throws IOException
+	{
+		return mapped( file, dataSize, defaultEdgesPerChunk( dataSize ) );
+	}
+
+	/**
+	 * Store edges in a memory mapped {@code file}. The file is created or
+	 * truncated and grows whenever all mapped chunks are full, use
+	 * {@link #open(Path)} to continue with an existing file.
+	 *
+	 * @param edgesPerChunk
+	 *            number of edges per mapped region, must be a power of two
+	 */
+	public static OffHeapEdgeStore mapped( final Path file, final int dataSize, final int edgesPerChunk ) throws IOException
+	{
+		final FileChannel channel = FileChannel.open(
+				file,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING );
+		try
+		{
+			final ByteBuffer header = allocate( channel, 0, HEADER_BYTES, null );
+			header.putInt( 0, MAGIC ).putInt( 4, VERSION ).putInt( DATA_SIZE_POSITION, dataSize ).putInt( EDGES_PER_CHUNK_POSITION, edgesPerChunk );
+			final OffHeapEdgeStore store = new OffHeapEdgeStore( dataSize, edgesPerChunk, channel, header, overflowFile( file ) );
+			store.writeHeader();
+			return store;
+		}
+		catch ( final RuntimeException e )
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Continue with the edges of a memory mapped {@code file} created by
+	 * {@link #mapped(Path, int, int)}. The number of edges and the layout are
+	 * read from the header and the file is not truncated.
+	 *
+	 * @throws IOException
+	 *             if {@code file} does not start with a valid header
+	 */
+	public static OffHeapEdgeStore open( final Path file ) throws IOException
+	{
+		final FileChannel channel = FileChannel.open(
+				file,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE );
+		try
+		{
+			if ( channel.size() < HEADER_BYTES )
+				throw new IOException( "Missing header in " + file );
+			final ByteBuffer header = allocate( channel, 0, HEADER_BYTES, null );
+			if ( header.getInt( 0 ) != MAGIC || header.getInt( 4 ) != VERSION )
+				throw new IOException( "Invalid header in " + file );
+			final OffHeapEdgeStore store = new OffHeapEdgeStore(
+					header.getInt( DATA_SIZE_POSITION ),
+					header.getInt( EDGES_PER_CHUNK_POSITION ),
+					channel,
+					header,
+					overflowFile( file ) );
+			store.size = ( int ) header.getLong( SIZE_POSITION );
+			while ( store.size > store.capacity() )
+				store.grow();
+			for ( int index = 0; index < store.size; ++index )
+				store.statusBitmap.add( store.status( index ) );
+
+			store.overflowSize = header.getLong( OVERFLOW_SIZE_POSITION );
+			if ( store.overflowSize > 0 )
+			{
+				store.overflowChannel = FileChannel.open(
+						store.overflowFile,
+						StandardOpenOption.READ,
+						StandardOpenOption.WRITE );
+				while ( store.overflowSize > store.overflowCapacity() )
+					store.growOverflow();
+			}
+			return store;
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static Path overflowFile( final Path file )
+	{
+		return file.resolveSibling( file.getFileName() + ".overflow" );
+	}
+
+	/**
+	 * Write size and overflow size to the header of a mapped file.
+	 */
+	private void writeHeader()
+	{
+		if ( header != null )
+			header.putLong( SIZE_POSITION, size ).putLong( OVERFLOW_SIZE_POSITION, overflowSize );
+	}
+
+	private static int defaultEdgesPerChunk( final int dataSize )
+	{
+		return edgesPerChunk( dataSize, DEFAULT_CHUNK_BYTES );
+	}
+
+	/**
+	 * @return largest power of two number of edges with {@code dataSize}
+	 *         data entries that fit into {@code chunkBytes}
+	 */
+	public static int edgesPerChunk( final int dataSize, final int chunkBytes )
+	{
+		return Integer.highestOneBit( Math.max( chunkBytes / ( DATA_OFFSET + Double.BYTES * dataSize ), 1 ) );
+	}
+
+	public int edgesPerChunk()
+	{
+		return chunkMask + 1;
+	}
+
+	public int capacity()
+	{
+		if ( chunks.isEmpty() )
+			return 0;
+		final int last = chunks.size() - 1;
+		return ( last << chunkShift ) + chunkEdges( chunks.get( last ) );
+	}
+
+	public boolean isMapped()
+	{
+		return channel != null;
+	}
+
+	/**
+	 * Close the backing files, if any. Mapped regions remain valid until
+	 * they are garbage collected.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if ( channel != null )
+			channel.close();
+		if ( overflowChannel != null )
+			overflowChannel.close();
+	}
+
+	/**
+	 * Double the last chunk or add a new chunk if the last chunk is full
+	 * size.
+	 */
+	private void grow()
+	{
+		final int last = chunks.size() - 1;
+		final long chunkBytes = ( long ) recordSize << chunkShift;
+		if ( last < 0 || chunkEdges( chunks.get( last ) ) == edgesPerChunk() )
+			chunks.add( allocate( channel, HEADER_BYTES + ( last + 1 ) * chunkBytes, Math.min( INITIAL_CHUNK_EDGES, edgesPerChunk() ) * recordSize, null ) );
+		else
+			chunks.set( last, allocate( channel, HEADER_BYTES + last * chunkBytes, 2 * chunks.get( last ).capacity(), chunks.get( last ) ) );
+	}
+
+	/**
+	 * Double the last chunk of the overflow region or add a new chunk if the
+	 * last chunk is full size.
+	 */
+	private void growOverflow()
+	{
+		if ( channel != null && overflowChannel == null )
+			try
+			{
+				overflowChannel = FileChannel.open(
+						overflowFile,
+						StandardOpenOption.CREATE,
+						StandardOpenOption.READ,
+						StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING );
+			}
+			catch ( final IOException e )
+			{
+				throw new UncheckedIOException( e );
+			}
+		final int last = overflowChunks.size() - 1;
+		final long chunkBytes = ( long ) Long.BYTES * OVERFLOW_CHUNK_ENTRIES;
+		if ( last < 0 || overflowChunks.get( last ).capacity() == chunkBytes )
+			overflowChunks.add( allocate( overflowChannel, ( last + 1 ) * chunkBytes, Long.BYTES * INITIAL_CHUNK_EDGES, null ) );
+		else
+			overflowChunks.set( last, allocate( overflowChannel, last * chunkBytes, 2 * overflowChunks.get( last ).capacity(), overflowChunks.get( last ) ) );
+	}
+
+	private long overflowCapacity()
+	{
+		if ( overflowChunks.isEmpty() )
+			return 0;
+		final int last = overflowChunks.size() - 1;
+		return ( ( long ) last << OVERFLOW_CHUNK_SHIFT ) + overflowChunks.get( last ).capacity() / Long.BYTES;
+	}
+
+	/**
+	 * Allocate a chunk of {@code nBytes} with the contents of
+	 * {@code previous} if not {@code null}, mapped at {@code position} of
+	 * {@code channel} if not {@code null}. Mapped chunks are re-mapped at
+	 * the same position in the file.
+	 */
+	private static ByteBuffer allocate( final FileChannel channel, final long position, final int nBytes, final ByteBuffer previous )
+	{
+		final ByteBuffer chunk;
+		if ( channel == null )
+		{
+			chunk = ByteBuffer.allocateDirect( nBytes );
+			if ( previous != null )
+			{
+				final ByteBuffer source = previous.duplicate();
+				source.clear();
+				chunk.put( source );
+				chunk.clear();
+			}
+		}
+		else
+			try
+			{
+				chunk = channel.map( MapMode.READ_WRITE, position, nBytes );
+			}
+			catch ( final IOException e )
+			{
+				throw new UncheckedIOException( e );
+			}
+		return chunk.order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	private int chunkEdges( final ByteBuffer chunk )
+	{
+		return chunk.capacity() / recordSize;
+	}
+
+	private ByteBuffer chunk( final int index )
+	{
+		return chunks.get( index >>> chunkShift );
+	}
+
+	private int offset( final int index )
+	{
+		return ( index & chunkMask ) * recordSize;
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public int dataSize()
+	{
+		return dataSize;
+	}
+
+	@Override
+	public double weight( final int index )
+	{
+		return chunk( index ).getDouble( offset( index ) + WEIGHT_OFFSET );
+	}
+
+	@Override
+	public void weight( final int index, final double weight )
+	{
+		chunk( index ).putDouble( offset( index ) + WEIGHT_OFFSET, weight );
+	}
+
+	@Override
+	public double affinity( final int index )
+	{
+		return chunk( index ).getDouble( offset( index ) + AFFINITY_OFFSET );
+	}
+
+	@Override
+	public void affinity( final int index, final double affinity )
+	{
+		chunk( index ).putDouble( offset( index ) + AFFINITY_OFFSET, affinity );
+	}
+
+	@Override
+	public long from( final int index )
+	{
+		return chunk( index ).getLong( offset( index ) + FROM_OFFSET );
+	}
+
+	@Override
+	public void from( final int index, final long from )
+	{
+		chunk( index ).putLong( offset( index ) + FROM_OFFSET, from );
+	}
+
+	@Override
+	public long to( final int index )
+	{
+		return chunk( index ).getLong( offset( index ) + TO_OFFSET );
+	}
+
+	@Override
+	public void to( final int index, final long to )
+	{
+		chunk( index ).putLong( offset( index ) + TO_OFFSET, to );
+	}
+
+	@Override
+	public long multiplicity( final int index )
+	{
+		return chunk( index ).getLong( offset( index ) + MULTIPLICITY_OFFSET );
+	}
+
+	@Override
+	public void multiplicity( final int index, final long multiplicity )
+	{
+		chunk( index ).putLong( offset( index ) + MULTIPLICITY_OFFSET, multiplicity );
+	}
+
+	@Override
+	public int status( final int index )
+	{
+		return ( int ) chunk( index ).getLong( offset( index ) + STATUS_OFFSET );
+	}
+
+	@Override
+	public void status( final int index, final int status )
+	{
+		chunk( index ).putLong( offset( index ) + STATUS_OFFSET, status );
+		statusBitmap.set( index, status );
+	}
+
+	@Override
+	public int nextValid( final int index )
+	{
+		return statusBitmap.nextValid( index );
+	}
+
+	@Override
+	public int nextObsolete( final int index )
+	{
+		return statusBitmap.nextObsolete( index );
+	}
+
+	@Override
+	public int nextStale( final int index )
+	{
+		return statusBitmap.nextStale( index );
+	}
+
+	@Override
+	public double getData( final int index, final int i )
+	{
+		return chunk( index ).getDouble( offset( index ) + DATA_OFFSET + Double.BYTES * i );
+	}
+
+	@Override
+	public void setData( final int index, final int i, final double d )
+	{
+		chunk( index ).putDouble( offset( index ) + DATA_OFFSET + Double.BYTES * i, d );
+	}
+
+	@Override
+	public void addCounts( final int sourceIndex, final int targetIndex, final int offset, final int length )
+	{
+		final ByteBuffer source = chunk( sourceIndex );
+		final ByteBuffer target = chunk( targetIndex );
+		final int sourceOffset = offset( sourceIndex ) + DATA_OFFSET + Long.BYTES * offset;
+		final int targetOffset = offset( targetIndex ) + DATA_OFFSET + Long.BYTES * offset;
+		for ( int i = 0; i < length * Long.BYTES; i += Long.BYTES )
+			target.putLong( targetOffset + i, target.getLong( targetOffset + i ) + source.getLong( sourceOffset + i ) );
+	}
+
+	@Override
+	public long overflowSize()
+	{
+		return overflowSize;
+	}
+
+	@Override
+	public long allocateOverflow( final int length )
+	{
+		final long released = releasedOverflow.reuse( length );
+		if ( released >= 0 )
+		{
+			for ( long offset = released; offset < released + length; ++offset )
+				setOverflow( offset, 0l );
+			return released;
+		}
+		final long offset = overflowSize;
+		overflowSize += length;
+		while ( overflowSize > overflowCapacity() )
+			growOverflow();
+		writeHeader();
+		return offset;
+	}
+
+	@Override
+	public void releaseOverflow( final long offset, final int length )
+	{
+		releasedOverflow.release( offset, length );
+	}
+
+	@Override
+	public long getOverflow( final long offset )
+	{
+		return overflowChunks.get( ( int ) ( offset >>> OVERFLOW_CHUNK_SHIFT ) ).getLong( Long.BYTES * ( int ) ( offset & OVERFLOW_CHUNK_ENTRIES - 1 ) );
+	}
+
+	@Override
+	public void setOverflow( final long offset, final long value )
+	{
+		overflowChunks.get( ( int ) ( offset >>> OVERFLOW_CHUNK_SHIFT ) ).putLong( Long.BYTES * ( int ) ( offset & OVERFLOW_CHUNK_ENTRIES - 1 ), value );
+	}
+
+	@Override
+	public int add( final double weight, final double affinity, final long from, final long to, final long multiplicity, final int status )
+	{
+		final int index = size;
+		if ( index == capacity() )
+			grow();
+		final ByteBuffer chunk = chunk( index );
+		final int offset = offset( index );
+		chunk.putDouble( offset + WEIGHT_OFFSET, weight );
+		chunk.putDouble( offset + AFFINITY_OFFSET, affinity );
+		chunk.putLong( offset + FROM_OFFSET, from );
+		chunk.putLong( offset + TO_OFFSET, to );
+		chunk.putLong( offset + MULTIPLICITY_OFFSET, multiplicity );
+		chunk.putLong( offset + STATUS_OFFSET, status );
+		statusBitmap.add( status );
+		for ( int i = 0, o = offset + DATA_OFFSET; i < dataSize; ++i, o += Double.BYTES )
+			chunk.putLong( o, 0l );
+		++size;
+		writeHeader();
+		return index;
+	}
+
+	@Override
+	public void remove( final int index )
+	{
+		// shift records chunk by chunk, carrying the first record of each
+		// chunk over to the end of the previous chunk
+		final int lastChunk = ( size - 1 ) >>> chunkShift;
+		final byte[] buffer = new byte[ Math.min( ( size - index ) * recordSize, COPY_BUFFER_BYTES ) ];
+		for ( int c = index >>> chunkShift, start = index & chunkMask; c <= lastChunk; ++c, start = 0 )
+		{
+			final ByteBuffer chunk = chunks.get( c );
+			final int end = c == lastChunk ? size - ( c << chunkShift ) : chunkMask + 1;
+			move( chunk, ( start + 1 ) * recordSize, chunk, start * recordSize, ( end - start - 1 ) * recordSize, buffer );
+			if ( c < lastChunk )
+				move( chunks.get( c + 1 ), 0, chunk, chunkMask * recordSize, recordSize, buffer );
+		}
+		statusBitmap.remove( index );
+		--size;
+		writeHeader();
+	}
+
+	@Override
+	public void copy( final int sourceIndex, final int targetIndex )
+	{
+		final ByteBuffer source = chunk( sourceIndex );
+		final ByteBuffer target = chunk( targetIndex );
+		final int sourceOffset = offset( sourceIndex );
+		final int targetOffset = offset( targetIndex );
+		for ( int i = 0; i < recordSize; i += Long.BYTES )
+			target.putLong( targetOffset + i, source.getLong( sourceOffset + i ) );
+		statusBitmap.set( targetIndex, status( targetIndex ) );
+	}
+
+	/**
+	 * Remove all edges at {@code size} and beyond. Chunks are kept and
+	 * reused by {@link #add}.
+	 */
+	@Override
+	public void truncate( final int size )
+	{
+		if ( size >= this.size )
+			return;
+		statusBitmap.truncate( size );
+		this.size = size;
+		writeHeader();
+	}
+
+	/**
+	 * Copy {@code nBytes} from {@code source} to a lower or non-overlapping
+	 * position in {@code target} through {@code buffer}.
+	 */
+	private static void move( final ByteBuffer source, final int sourceOffset, final ByteBuffer target, final int targetOffset, final int nBytes, final byte[] buffer )
+	{
+		final ByteBuffer s = source.duplicate();
+		final ByteBuffer t = target.duplicate();
+		s.position( sourceOffset );
+		t.position( targetOffset );
+		for ( int remaining = nBytes; remaining > 0; )
+		{
+			final int n = Math.min( remaining, buffer.length );
+			s.get( buffer, 0, n );
+			t.put( buffer, 0, n );
+			remaining -= n;
+		}
+	}
+
+	private void writeObject( final ObjectOutputStream out ) throws IOException
+	{
+		out.defaultWriteObject();
+		final byte[] record = new byte[ recordSize ];
+		for ( int index = 0; index < size; ++index )
+		{
+			final ByteBuffer source = chunk( index ).duplicate();
+			source.position( offset( index ) );
+			source.get( record );
+			out.write( record );
+		}
+		for ( long offset = 0; offset < overflowSize; ++offset )
+			out.writeLong( getOverflow( offset ) );
+	}
+
+	private void readObject( final ObjectInputStream in ) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		this.channel = null;
+		this.header = null;
+		this.chunks = new ArrayList<>();
+		final byte[] record = new byte[ recordSize ];
+		for ( int index = 0; index < size; ++index )
+		{
+			if ( index == capacity() )
+				grow();
+			in.readFully( record );
+			final ByteBuffer target = chunk( index ).duplicate();
+			target.position( offset( index ) );
+			target.put( record );
+		}
+		this.overflowChunks = new ArrayList<>();
+		while ( overflowSize > overflowCapacity() )
+			growOverflow();
+		for ( long offset = 0; offset < overflowSize; ++offset )
+			setOverflow( offset, in.readLong() );
+	}
+
+}
@@ -0,0 +1,38 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.io.Serializable;
+
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+/**
+ * Released blocks of the overflow region of an {@link EdgeStore} by length,
+ * for reuse in {@link EdgeStore#allocateOverflow(int)}.
+ */
+class OverflowBlocks implements Serializable
+{
+
+	private final TIntObjectHashMap< TLongArrayList > released = new TIntObjectHashMap<>();
+
+	public void release( final long offset, final int length )
+	{
+		TLongArrayList offsets = released.get( length );
+		if ( offsets == null )
+		{
+			offsets = new TLongArrayList();
+			released.put( length, offsets );
+		}
+		offsets.add( offset );
+	}
+
+	/**
+	 * @return offset of a released block of {@code length} entries or
+	 *         {@code -1} if there is none
+	 */
+	public long reuse( final int length )
+	{
+		final TLongArrayList offsets = released.get( length );
+		return offsets == null || offsets.isEmpty() ? -1 : offsets.removeAt( offsets.size() - 1 );
+	}
+
+}
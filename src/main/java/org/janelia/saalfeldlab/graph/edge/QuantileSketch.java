@@ -0,0 +1,229 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.io.Serializable;
+
+/**
+ * Mergeable quantile sketch of affinities in the data of an {@link Edge}
+ * with a fixed footprint of {@code 3 + 2 * nCentroids} entries, following
+ * the merging t-digest: a sorted list of at most {@code nCentroids}
+ * centroids (mean, count) whose sizes are bounded by the {@code k1} scale
+ * function, i.e. centroids are small close to the tails and larger in the
+ * center. Merging two sketches merges the centroid lists and compresses the
+ * result. Quantiles interpolate linearly between centroid means, rank errors
+ * decrease with {@code nCentroids} and are smallest at the tails. Data layout
+ * at {@code offset}:
+ *
+ * <ul>
+ * <li>{@code offset}: total count</li>
+ * <li>{@code offset + 1}, {@code offset + 2}: minimum and maximum</li>
+ * <li>{@code offset + 3 ... offset + 2 + nCentroids}: centroid means</li>
+ * <li>{@code offset + 3 + nCentroids ... offset + 2 + 2 * nCentroids}:
+ * centroid counts, {@code 0} for unused centroids</li>
+ * </ul>
+ *
+ * Reading quantiles is thread safe, {@link #merge} is not.
+ */
+public class QuantileSketch implements Serializable
+{
+
+	private final int nCentroids;
+
+	private final double compression;
+
+	private transient double[] mergedMeans;
+
+	private transient long[] mergedCounts;
+
+	public QuantileSketch( final int nCentroids )
+	{
+		super();
+		if ( nCentroids < 2 )
+			throw new IllegalArgumentException( "Quantile sketches need at least two centroids but got " + nCentroids );
+		this.nCentroids = nCentroids;
+		// the k1 scale spans compression / 2, greedy merging typically leaves
+		// about that many centroids, remaining excess is combined explicitly
+		this.compression = 2 * ( nCentroids - 1 );
+	}
+
+	public int nCentroids()
+	{
+		return nCentroids;
+	}
+
+	public int dataSize()
+	{
+		return 3 + 2 * nCentroids;
+	}
+
+	public long count( final Edge e, final int offset )
+	{
+		return Edge.dtl( e.getData( offset ) );
+	}
+
+	public int size( final Edge e, final int offset )
+	{
+		int n = 0;
+		while ( n < nCentroids && centroidCount( e, offset, n ) > 0 )
+			++n;
+		return n;
+	}
+
+	/**
+	 * Initialize the sketch of a new edge with a single value.
+	 */
+	public void create( final Edge e, final int offset, final double affinity )
+	{
+		e.setData( offset, Edge.ltd( 1 ) );
+		e.setData( offset + 1, affinity );
+		e.setData( offset + 2, affinity );
+		e.setData( offset + 3, affinity );
+		e.setData( offset + 3 + nCentroids, Edge.ltd( 1 ) );
+	}
+
+	/**
+	 * Add all values of {@code source} to {@code target}.
+	 */
+	public void merge( final Edge source, final Edge target, final int offset )
+	{
+		if ( mergedMeans == null )
+		{
+			mergedMeans = new double[ 2 * nCentroids ];
+			mergedCounts = new long[ 2 * nCentroids ];
+		}
+
+		final long sourceCount = count( source, offset );
+		final long targetCount = count( target, offset );
+		if ( sourceCount == 0 )
+			return;
+		final long count = sourceCount + targetCount;
+		final double min = targetCount == 0 ? source.getData( offset + 1 ) : Math.min( source.getData( offset + 1 ), target.getData( offset + 1 ) );
+		final double max = targetCount == 0 ? source.getData( offset + 2 ) : Math.max( source.getData( offset + 2 ), target.getData( offset + 2 ) );
+
+		// merge sorted centroid lists
+		final int nSource = size( source, offset );
+		final int nTarget = size( target, offset );
+		int n = 0;
+		for ( int i = 0, j = 0; i < nSource || j < nTarget; ++n )
+		{
+			final boolean takeSource = j == nTarget || i < nSource && centroidMean( source, offset, i ) < centroidMean( target, offset, j );
+			final Edge e = takeSource ? source : target;
+			final int index = takeSource ? i++ : j++;
+			mergedMeans[ n ] = centroidMean( e, offset, index );
+			mergedCounts[ n ] = centroidCount( e, offset, index );
+		}
+
+		// greedily combine neighbors while they span at most 1 on the k1
+		// scale
+		int nCompressed = 0;
+		long countBefore = 0;
+		double kLeft = k( 0.0 );
+		double mean = mergedMeans[ 0 ];
+		long centroidCount = mergedCounts[ 0 ];
+		for ( int i = 1; i < n; ++i )
+		{
+			final long combinedCount = centroidCount + mergedCounts[ i ];
+			if ( k( ( double ) ( countBefore + combinedCount ) / count ) - kLeft <= 1.0 )
+			{
+				mean += ( mergedMeans[ i ] - mean ) * mergedCounts[ i ] / combinedCount;
+				centroidCount = combinedCount;
+			}
+			else
+			{
+				mergedMeans[ nCompressed ] = mean;
+				mergedCounts[ nCompressed ] = centroidCount;
+				++nCompressed;
+				countBefore += centroidCount;
+				kLeft = k( ( double ) countBefore / count );
+				mean = mergedMeans[ i ];
+				centroidCount = mergedCounts[ i ];
+			}
+		}
+		mergedMeans[ nCompressed ] = mean;
+		mergedCounts[ nCompressed ] = centroidCount;
+		++nCompressed;
+
+		// enforce fixed footprint
+		while ( nCompressed > nCentroids )
+			nCompressed = combineSmallestNeighbors( nCompressed );
+
+		target.setData( offset, Edge.ltd( count ) );
+		target.setData( offset + 1, min );
+		target.setData( offset + 2, max );
+		for ( int i = 0; i < nCentroids; ++i )
+		{
+			target.setData( offset + 3 + i, i < nCompressed ? mergedMeans[ i ] : 0.0 );
+			target.setData( offset + 3 + nCentroids + i, Edge.ltd( i < nCompressed ? mergedCounts[ i ] : 0 ) );
+		}
+	}
+
+	/**
+	 * Estimate value at quantile {@code q} by interpolating between the
+	 * centers of neighboring centroids, and between minimum (maximum) and
+	 * first (last) centroid at the tails.
+	 */
+	public double quantile( final Edge e, final int offset, final double q )
+	{
+		final long count = count( e, offset );
+		if ( count == 0 )
+			return Double.NaN;
+		final double min = e.getData( offset + 1 );
+		final double max = e.getData( offset + 2 );
+		final int n = size( e, offset );
+		final double index = q * count;
+
+		final double firstHalf = 0.5 * centroidCount( e, offset, 0 );
+		if ( index <= firstHalf )
+			return firstHalf == 0.0 ? min : min + index / firstHalf * ( centroidMean( e, offset, 0 ) - min );
+
+		double countBefore = 0;
+		for ( int i = 0; i < n - 1; ++i )
+		{
+			final long c1 = centroidCount( e, offset, i );
+			final long c2 = centroidCount( e, offset, i + 1 );
+			final double left = countBefore + 0.5 * c1;
+			final double right = countBefore + c1 + 0.5 * c2;
+			if ( index <= right )
+			{
+				final double m1 = centroidMean( e, offset, i );
+				final double m2 = centroidMean( e, offset, i + 1 );
+				return m1 + ( index - left ) / ( right - left ) * ( m2 - m1 );
+			}
+			countBefore += c1;
+		}
+
+		final double lastHalf = 0.5 * centroidCount( e, offset, n - 1 );
+		final double last = centroidMean( e, offset, n - 1 );
+		final double tail = Math.min( ( index - ( count - lastHalf ) ) / lastHalf, 1.0 );
+		return last + tail * ( max - last );
+	}
+
+	private int combineSmallestNeighbors( final int n )
+	{
+		int smallest = 0;
+		for ( int i = 1; i < n - 1; ++i )
+			if ( mergedCounts[ i ] + mergedCounts[ i + 1 ] < mergedCounts[ smallest ] + mergedCounts[ smallest + 1 ] )
+				smallest = i;
+		final long combinedCount = mergedCounts[ smallest ] + mergedCounts[ smallest + 1 ];
+		mergedMeans[ smallest ] += ( mergedMeans[ smallest + 1 ] - mergedMeans[ smallest ] ) * mergedCounts[ smallest + 1 ] / combinedCount;
+		mergedCounts[ smallest ] = combinedCount;
+		System.arraycopy( mergedMeans, smallest + 2, mergedMeans, smallest + 1, n - smallest - 2 );
+		System.arraycopy( mergedCounts, smallest + 2, mergedCounts, smallest + 1, n - smallest - 2 );
+		return n - 1;
+	}
+
+	private double k( final double q )
+	{
+		return compression / ( 2 * Math.PI ) * Math.asin( 2 * Math.min( Math.max( q, 0.0 ), 1.0 ) - 1 );
+	}
+
+	private double centroidMean( final Edge e, final int offset, final int i )
+	{
+		return e.getData( offset + 3 + i );
+	}
+
+	private long centroidCount( final Edge e, final int offset, final int i )
+	{
+		return Edge.dtl( e.getData( offset + 3 + nCentroids + i ) );
+	}
+
+}
@@ -0,0 +1,412 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.io.Serializable;
+
+/**
+ * Adaptive affinity histograms of {@code nBins} bins in the data of an
+ * {@link Edge}. Histograms start as a sorted list of up to
+ * {@code 2 * nSlots} (bin, count) pairs with 16 bit counts, two
+ * pairs per data entry, and are promoted to a dense row of {@code nBins}
+ * counts in the overflow region of the {@link EdgeStore} once the list is
+ * full or a count exceeds 16 bits. Data layout at {@code offset}:
+ *
+ * <ul>
+ * <li>{@code offset}: total count</li>
+ * <li>{@code offset + 1}: number of pairs {@code n <= 2 * nSlots} or
+ * {@code 2 * nSlots + 1 + row} for the dense row at overflow offset
+ * {@code row}</li>
+ * <li>{@code offset + 2 ... offset + 1 + nSlots}: pairs
+ * {@code bin << 16 | count}, pair {@code i} in the lower (even {@code i}) or
+ * upper (odd {@code i}) 32 bits of entry {@code offset + 2 + i / 2}</li>
+ * </ul>
+ *
+ * Dense rows are persisted with the store and any instance with the same
+ * parameters reads them. Promotion throws an {@link IllegalStateException}
+ * if the overflow region of the store is full. Merging releases the dense
+ * row of the source edge, i.e. the source must not be accessed after it was
+ * merged into another edge, as is the case for the parallel edges in
+ * {@link org.janelia.saalfeldlab.graph.UndirectedGraph}.
+ * {@link EdgeStore#copy(int, int)} moves the dense row along with the edge
+ * data, as in compaction, use {@link #copy(Edge, Edge, int)} to duplicate a
+ * histogram.
+ */
+public class SparseHistogram implements Serializable
+{
+
+	/**
+	 * Bins are limited to 14 bits such that packed pairs never form a
+	 * {@code NaN} bit pattern, which would not survive
+	 * {@link Edge#dtl(double)}.
+	 */
+	public static final int MAX_BINS = 1 << 14;
+
+	private static final int PAIR_BITS = 32;
+
+	private static final long PAIR_MASK = ( 1l << PAIR_BITS ) - 1;
+
+	private static final int COUNT_BITS = 16;
+
+	private static final int MAX_COUNT = ( 1 << COUNT_BITS ) - 1;
+
+	private final int nBins;
+
+	private final double min;
+
+	private final double max;
+
+	private final double binWidth;
+
+	private final int nSlots;
+
+	private final int capacity;
+
+	public SparseHistogram( final int nBins, final double min, final double max, final int nSlots )
+	{
+		super();
+		if ( nBins > MAX_BINS )
+			throw new IllegalArgumentException( "Sparse histograms support at most " + MAX_BINS + " bins but got " + nBins );
+		this.nBins = nBins;
+		this.min = min;
+		this.max = max;
+		this.binWidth = ( max - min ) / nBins;
+		this.nSlots = nSlots;
+		this.capacity = 2 * nSlots;
+	}
+
+	public int nBins()
+	{
+		return nBins;
+	}
+
+	public int dataSize()
+	{
+		return 2 + nSlots;
+	}
+
+	public int bin( final double affinity )
+	{
+		return Math.min( ( int ) ( ( affinity - min ) / binWidth ), nBins - 1 );
+	}
+
+	public long count( final Edge e, final int offset )
+	{
+		return Edge.dtl( e.getData( offset ) );
+	}
+
+	public boolean isDense( final Edge e, final int offset )
+	{
+		return header( e, offset ) > capacity;
+	}
+
+	public long binCount( final Edge e, final int offset, final int bin )
+	{
+		final long header = header( e, offset );
+		if ( header > capacity )
+			return e.store().getOverflow( rowStart( header ) + bin );
+		for ( int i = 0; i < header; ++i )
+		{
+			final long pair = pair( e, offset, i );
+			if ( pairBin( pair ) == bin )
+				return pairCount( pair );
+		}
+		return 0;
+	}
+
+	public void add( final Edge e, final int offset, final int bin, final long count )
+	{
+		e.setData( offset, Edge.ltd( count( e, offset ) + count ) );
+		final long header = header( e, offset );
+		if ( header > capacity )
+		{
+			addToRow( e.store(), rowStart( header ) + bin, count );
+			return;
+		}
+
+		final int n = ( int ) header;
+		int i = 0;
+		while ( i < n && pairBin( pair( e, offset, i ) ) < bin )
+			++i;
+
+		if ( i < n && pairBin( pair( e, offset, i ) ) == bin )
+		{
+			final long newCount = pairCount( pair( e, offset, i ) ) + count;
+			if ( newCount <= MAX_COUNT )
+			{
+				pair( e, offset, i, pair( bin, newCount ) );
+				return;
+			}
+		}
+		else if ( n < capacity && count <= MAX_COUNT )
+		{
+			for ( int k = n; k > i; --k )
+				pair( e, offset, k, pair( e, offset, k - 1 ) );
+			pair( e, offset, i, pair( bin, count ) );
+			header( e, offset, n + 1 );
+			return;
+		}
+
+		final long row = promote( e, offset );
+		addToRow( e.store(), row + bin, count );
+	}
+
+	/**
+	 * Add all counts of {@code source} to {@code target}.
+	 */
+	public void merge( final Edge source, final Edge target, final int offset )
+	{
+		target.setData( offset, Edge.ltd( count( source, offset ) + count( target, offset ) ) );
+		final long sourceHeader = header( source, offset );
+		final long targetHeader = header( target, offset );
+
+		if ( sourceHeader <= capacity && targetHeader <= capacity && mergeSparse( source, target, offset, ( int ) sourceHeader, ( int ) targetHeader ) )
+			return;
+
+		final EdgeStore store = target.store();
+		if ( targetHeader <= capacity && sourceHeader > capacity && source.store() == store )
+		{
+			// adopt dense row of source instead of allocating a new one
+			final long row = rowStart( sourceHeader );
+			for ( int i = 0; i < targetHeader; ++i )
+			{
+				final long pair = pair( target, offset, i );
+				addToRow( store, row + pairBin( pair ), pairCount( pair ) );
+			}
+			header( target, offset, sourceHeader );
+			header( source, offset, 0 );
+			return;
+		}
+
+		final long row = targetHeader > capacity ? rowStart( targetHeader ) : promote( target, offset );
+		if ( sourceHeader > capacity )
+		{
+			final EdgeStore sourceStore = source.store();
+			final long sourceRow = rowStart( sourceHeader );
+			for ( int bin = 0; bin < nBins; ++bin )
+				addToRow( store, row + bin, sourceStore.getOverflow( sourceRow + bin ) );
+			release( source, offset );
+		}
+		else
+			for ( int i = 0; i < sourceHeader; ++i )
+			{
+				final long pair = pair( source, offset, i );
+				addToRow( store, row + pairBin( pair ), pairCount( pair ) );
+			}
+	}
+
+	/**
+	 * Copy the histogram of {@code source} into {@code target}, with a dense
+	 * row of its own if {@code source} is dense.
+	 */
+	public void copy( final Edge source, final Edge target, final int offset )
+	{
+		final long header = header( source, offset );
+		if ( header > capacity )
+		{
+			final long sourceRow = rowStart( header );
+			if ( header( target, offset ) > capacity )
+				release( target, offset );
+			header( target, offset, 0 );
+			final long row = promote( target, offset );
+			for ( int bin = 0; bin < nBins; ++bin )
+				target.store().setOverflow( row + bin, source.store().getOverflow( sourceRow + bin ) );
+		}
+		else
+		{
+			if ( header( target, offset ) > capacity )
+				release( target, offset );
+			for ( int slot = 0; slot < nSlots; ++slot )
+				target.setData( offset + 2 + slot, source.getData( offset + 2 + slot ) );
+			header( target, offset, header );
+		}
+		target.setData( offset, source.getData( offset ) );
+	}
+
+	/**
+	 * Find the first bin at which the cumulative count exceeds {@code limit}
+	 * (if {@code inclusive}) or reaches {@code limit} (otherwise) and
+	 * interpolate linearly within that bin, as in
+	 * {@link EdgeWeight.MedianAffinityWeight#medianFromHistogram} and
+	 * {@link EdgeWeight.PercentileAffinityWeight#percentileFromHistogram}.
+	 */
+	public double affinityAt( final Edge e, final int offset, final double limit, final boolean inclusive )
+	{
+		final long header = header( e, offset );
+		long nVisited = 0;
+		int binsBefore = 0;
+		long countAt = -1;
+		if ( header > capacity )
+		{
+			final EdgeStore store = e.store();
+			final long row = rowStart( header );
+			for ( ; binsBefore < nBins; ++binsBefore )
+			{
+				countAt = store.getOverflow( row + binsBefore );
+				if ( !isBelow( nVisited + countAt, limit, inclusive ) )
+					break;
+				nVisited += countAt;
+			}
+		}
+		else
+		{
+			int i = 0;
+			for ( ; i < header; ++i )
+			{
+				final long pair = pair( e, offset, i );
+				// empty bins between the previous and the current pair
+				if ( binsBefore < pairBin( pair ) && !isBelow( nVisited, limit, inclusive ) )
+				{
+					countAt = 0;
+					break;
+				}
+				binsBefore = pairBin( pair );
+				countAt = pairCount( pair );
+				if ( !isBelow( nVisited + countAt, limit, inclusive ) )
+					break;
+				nVisited += countAt;
+				++binsBefore;
+			}
+			if ( i == header )
+			{
+				if ( binsBefore < nBins && !isBelow( nVisited, limit, inclusive ) )
+					countAt = 0;
+				else
+				{
+					binsBefore = nBins;
+					countAt = binCount( e, offset, nBins - 1 );
+				}
+			}
+		}
+		return min + binsBefore * binWidth + ( limit - nVisited ) / countAt * binWidth;
+	}
+
+	private boolean mergeSparse( final Edge source, final Edge target, final int offset, final int nSource, final int nTarget )
+	{
+		int union = 0;
+		for ( int i = 0, j = 0; i < nSource || j < nTarget; ++union )
+		{
+			final long sourcePair = i < nSource ? pair( source, offset, i ) : -1;
+			final long targetPair = j < nTarget ? pair( target, offset, j ) : -1;
+			final int sourceBin = i < nSource ? pairBin( sourcePair ) : Integer.MAX_VALUE;
+			final int targetBin = j < nTarget ? pairBin( targetPair ) : Integer.MAX_VALUE;
+			if ( sourceBin == targetBin )
+			{
+				if ( pairCount( sourcePair ) + pairCount( targetPair ) > MAX_COUNT )
+					return false;
+				++i;
+				++j;
+			}
+			else if ( sourceBin < targetBin )
+				++i;
+			else
+				++j;
+		}
+
+		if ( union > capacity )
+			return false;
+
+		// merge from the back, write position never overtakes read position
+		// in target
+		int i = nSource - 1;
+		int j = nTarget - 1;
+		for ( int w = union - 1; w >= 0; --w )
+		{
+			final long sourcePair = i >= 0 ? pair( source, offset, i ) : -1;
+			final long targetPair = j >= 0 ? pair( target, offset, j ) : -1;
+			final int sourceBin = i >= 0 ? pairBin( sourcePair ) : -1;
+			final int targetBin = j >= 0 ? pairBin( targetPair ) : -1;
+			if ( sourceBin == targetBin )
+			{
+				pair( target, offset, w, pair( sourceBin, pairCount( sourcePair ) + pairCount( targetPair ) ) );
+				--i;
+				--j;
+			}
+			else if ( sourceBin > targetBin )
+			{
+				pair( target, offset, w, sourcePair );
+				--i;
+			}
+			else
+			{
+				pair( target, offset, w, targetPair );
+				--j;
+			}
+		}
+		header( target, offset, union );
+		return true;
+	}
+
+	private long promote( final Edge e, final int offset )
+	{
+		final EdgeStore store = e.store();
+		final long row = store.allocateOverflow( nBins );
+		final long n = header( e, offset );
+		for ( int i = 0; i < n; ++i )
+		{
+			final long pair = pair( e, offset, i );
+			store.setOverflow( row + pairBin( pair ), pairCount( pair ) );
+		}
+		for ( int slot = 0; slot < nSlots; ++slot )
+			e.setData( offset + 2 + slot, 0.0 );
+		header( e, offset, capacity + 1 + row );
+		return row;
+	}
+
+	private void release( final Edge e, final int offset )
+	{
+		e.store().releaseOverflow( rowStart( header( e, offset ) ), nBins );
+		header( e, offset, 0 );
+	}
+
+	private long rowStart( final long header )
+	{
+		return header - capacity - 1;
+	}
+
+	private static void addToRow( final EdgeStore store, final long index, final long count )
+	{
+		store.setOverflow( index, store.getOverflow( index ) + count );
+	}
+
+	private static boolean isBelow( final long cumulativeCount, final double limit, final boolean inclusive )
+	{
+		return inclusive ? cumulativeCount <= limit : cumulativeCount < limit;
+	}
+
+	private static long header( final Edge e, final int offset )
+	{
+		return Edge.dtl( e.getData( offset + 1 ) );
+	}
+
+	private static void header( final Edge e, final int offset, final long header )
+	{
+		e.setData( offset + 1, Edge.ltd( header ) );
+	}
+
+	private static long pair( final Edge e, final int offset, final int i )
+	{
+		return Edge.dtl( e.getData( offset + 2 + i / 2 ) ) >>> ( i & 1 ) * PAIR_BITS & PAIR_MASK;
+	}
+
+	private static void pair( final Edge e, final int offset, final int i, final long pair )
+	{
+		final int shift = ( i & 1 ) * PAIR_BITS;
+		final long slot = Edge.dtl( e.getData( offset + 2 + i / 2 ) ) & ~( PAIR_MASK << shift );
+		e.setData( offset + 2 + i / 2, Edge.ltd( slot | pair << shift ) );
+	}
+
+	private static long pair( final int bin, final long count )
+	{
+		return ( long ) bin << COUNT_BITS | count;
+	}
+
+	private static int pairBin( final long pair )
+	{
+		return ( int ) ( pair >>> COUNT_BITS );
+	}
+
+	private static long pairCount( final long pair )
+	{
+		return pair & MAX_COUNT;
+	}
+
+}
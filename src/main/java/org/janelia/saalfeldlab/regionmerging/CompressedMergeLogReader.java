@@ -0,0 +1,232 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * Read merge logs written by {@link CompressedMergeSink}. The block index is
+ * built by following the chain of block headers and extended on
+ * {@link #size()}, so logs can be read while they are still being written.
+ * Blocks are decoded as a whole from a byte array into the layout of the in
+ * memory merge log of {@link RegionMerging}. Not thread safe.
+ */
+public class CompressedMergeLogReader implements Closeable
+{
+
+	private final FileChannel channel;
+
+	private final int blockSize;
+
+	/**
+	 * File offsets of the encoded bytes of each block.
+	 */
+	private final TLongArrayList blockOffsets = new TLongArrayList();
+
+	/**
+	 * Index of the first merge of each block, followed by the total number
+	 * of merges in all indexed blocks.
+	 */
+	private final TLongArrayList firstMerges = new TLongArrayList();
+
+	private final ByteBuffer blockHeader = ByteBuffer.allocate( CompressedMergeSink.BLOCK_HEADER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+
+	private long nextBlockHeader;
+
+	private final byte[] bytes;
+
+	private final long[] merges;
+
+	private int position;
+
+	public CompressedMergeLogReader( final Path file ) throws IOException
+	{
+		super();
+		this.channel = FileChannel.open( file, StandardOpenOption.READ );
+
+		final ByteBuffer header = ByteBuffer.allocate( CompressedMergeSink.HEADER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+		readFully( header, 0 );
+		header.flip();
+		final int magic = header.getInt();
+		final int version = header.getInt();
+		this.blockSize = header.getInt();
+		if ( magic != CompressedMergeSink.MAGIC || version != CompressedMergeSink.VERSION || blockSize < 1 )
+			throw new IOException( "Not a compressed merge log of version " + CompressedMergeSink.VERSION + ": " + file );
+
+		this.bytes = new byte[ blockSize * CompressedMergeSink.MAX_MERGE_BYTES ];
+		this.merges = new long[ blockSize * RegionMerging.MERGES_LOG_STEP_SIZE ];
+		this.nextBlockHeader = CompressedMergeSink.HEADER_BYTES;
+		this.firstMerges.add( 0 );
+	}
+
+	public int blockSize()
+	{
+		return blockSize;
+	}
+
+	/**
+	 * @return number of merges in all complete blocks
+	 */
+	public long size() throws IOException
+	{
+		updateIndex();
+		return firstMerges.get( nBlocks() );
+	}
+
+	/**
+	 * @return number of indexed blocks, see {@link #size()}
+	 */
+	public int nBlocks()
+	{
+		return blockOffsets.size();
+	}
+
+	public long firstMerge( final int block )
+	{
+		return firstMerges.get( block );
+	}
+
+	/**
+	 * @return index of the block that contains merge {@code merge}
+	 */
+	public int block( final long merge )
+	{
+		// blocks are never empty, so first merges are unique
+		final int insertion = firstMerges.binarySearch( merge, 0, nBlocks() );
+		return insertion >= 0 ? insertion : -insertion - 2;
+	}
+
+	/**
+	 * Decode {@code block} into {@code target} in the layout of the in
+	 * memory merge log of {@link RegionMerging}. {@code target} must hold at
+	 * least {@link #blockSize()} merges.
+	 *
+	 * @return number of merges in {@code block}
+	 */
+	public int decodeBlock( final int block, final long[] target ) throws IOException
+	{
+		final int nMerges = ( int ) ( firstMerges.get( block + 1 ) - firstMerges.get( block ) );
+		final long offset = blockOffsets.get( block );
+		final long end = block + 1 < nBlocks() ? blockOffsets.get( block + 1 ) - CompressedMergeSink.BLOCK_HEADER_BYTES : nextBlockHeader;
+		final int nBytes = ( int ) ( end - offset );
+		readFully( ByteBuffer.wrap( bytes, 0, nBytes ), offset );
+
+		position = 0;
+		long edgeIndex = 0;
+		long weightBits = 0;
+		long from = 0;
+		long to = 0;
+		for ( int i = 0, t = 0; i < nMerges; ++i, t += RegionMerging.MERGES_LOG_STEP_SIZE )
+		{
+			edgeIndex += CompressedMergeSink.unZigZag( varLong() );
+			weightBits ^= varLong();
+			from += CompressedMergeSink.unZigZag( varLong() );
+			to += CompressedMergeSink.unZigZag( varLong() );
+			target[ t + RegionMerging.MERGES_LOG_EDGE_INDEX_OFFSET ] = edgeIndex;
+			target[ t + RegionMerging.MERGES_LOG_WEIGHT_OFFSET ] = weightBits;
+			target[ t + RegionMerging.MERGES_LOG_FROM_OFFSET ] = from;
+			target[ t + RegionMerging.MERGES_LOG_TO_OFFSET ] = to;
+		}
+		return nMerges;
+	}
+
+	/**
+	 * Pass all merges from {@code first} up to the current {@link #size()}
+	 * to {@code sink} in order.
+	 *
+	 * @return index of the next merge, i.e. {@code first} for the next call
+	 */
+	public long replay( final long first, final MergeSink sink ) throws IOException
+	{
+		final long size = size();
+		if ( first >= size )
+			return Math.max( first, size );
+		for ( int block = block( first ); block < nBlocks(); ++block )
+		{
+			final int nMerges = decodeBlock( block, merges );
+			for ( int i = ( int ) Math.max( first - firstMerges.get( block ), 0 ); i < nMerges; ++i )
+			{
+				final int t = i * RegionMerging.MERGES_LOG_STEP_SIZE;
+				sink.add(
+						merges[ t + RegionMerging.MERGES_LOG_EDGE_INDEX_OFFSET ],
+						Double.longBitsToDouble( merges[ t + RegionMerging.MERGES_LOG_WEIGHT_OFFSET ] ),
+						merges[ t + RegionMerging.MERGES_LOG_FROM_OFFSET ],
+						merges[ t + RegionMerging.MERGES_LOG_TO_OFFSET ] );
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return all merges in the layout of the in memory merge log of
+	 *         {@link RegionMerging}
+	 */
+	public TLongArrayList read() throws IOException
+	{
+		final long size = size();
+		if ( size * RegionMerging.MERGES_LOG_STEP_SIZE > Integer.MAX_VALUE )
+			throw new IOException( "Merge log of " + size + " merges exceeds maximum list size." );
+		final TLongArrayList list = new TLongArrayList( ( int ) size * RegionMerging.MERGES_LOG_STEP_SIZE );
+		for ( int block = 0; block < nBlocks(); ++block )
+			list.add( merges, 0, decodeBlock( block, merges ) * RegionMerging.MERGES_LOG_STEP_SIZE );
+		return list;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	/**
+	 * Index all complete blocks after the last indexed block.
+	 */
+	private void updateIndex() throws IOException
+	{
+		final long fileSize = channel.size();
+		while ( nextBlockHeader + CompressedMergeSink.BLOCK_HEADER_BYTES <= fileSize )
+		{
+			blockHeader.clear();
+			readFully( blockHeader, nextBlockHeader );
+			blockHeader.flip();
+			final int nMerges = blockHeader.getInt();
+			final int nBytes = blockHeader.getInt();
+			final long offset = nextBlockHeader + CompressedMergeSink.BLOCK_HEADER_BYTES;
+			if ( offset + nBytes > fileSize )
+				break;
+			blockOffsets.add( offset );
+			firstMerges.add( firstMerges.get( firstMerges.size() - 1 ) + nMerges );
+			nextBlockHeader = offset + nBytes;
+		}
+	}
+
+	private long varLong()
+	{
+		final byte[] bytes = this.bytes;
+		int p = position;
+		long value = 0;
+		for ( int shift = 0;; shift += 7 )
+		{
+			final byte b = bytes[ p++ ];
+			value |= ( b & 0x7fl ) << shift;
+			if ( b >= 0 )
+				break;
+		}
+		position = p;
+		return value;
+	}
+
+	private void readFully( final ByteBuffer target, final long offset ) throws IOException
+	{
+		while ( target.hasRemaining() )
+			if ( channel.read( target, offset + target.position() ) < 0 )
+				throw new IOException( "Unexpected end of compressed merge log." );
+	}
+
+}
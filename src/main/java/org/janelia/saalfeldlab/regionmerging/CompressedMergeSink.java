@@ -0,0 +1,211 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link MergeSink} that writes a compressed merge log for archiving long
+ * merge histories. Merges are encoded in blocks of up to {@code blockSize}
+ * merges, each block is self-contained: edge index, from, and to are stored
+ * as the zig-zag encoded difference to the previous merge of the block, and
+ * the weight as the XOR of its raw bits with those of the previous weight,
+ * all as unsigned LEB128 varints. Similar weights share sign, exponent, and
+ * leading mantissa bits, so their XOR is a small number. File layout, all
+ * fixed size values little endian:
+ *
+ * <pre>
+ * header: magic (int, {@link #MAGIC}), version (int, {@link #VERSION}),
+ *         block size (int), reserved (int)
+ * blocks: number of merges (int), number of bytes (int), encoded merges
+ * </pre>
+ *
+ * Block headers form a chain that {@link CompressedMergeLogReader} follows to
+ * index all blocks for random access. Blocks are written when full and on
+ * {@link #flush()}, i.e. after each iteration of {@link RegionMerging}, so
+ * shorter blocks occur at iteration boundaries.
+ */
+public class CompressedMergeSink implements MergeSink, Closeable
+{
+
+	public static final int MAGIC = 0x524d4c43;
+
+	public static final int VERSION = 1;
+
+	public static final int HEADER_BYTES = 16;
+
+	public static final int BLOCK_HEADER_BYTES = 8;
+
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 12;
+
+	/**
+	 * Four varints of at most ten bytes each.
+	 */
+	public static final int MAX_MERGE_BYTES = 40;
+
+	private final FileChannel channel;
+
+	private final int blockSize;
+
+	private final byte[] block;
+
+	private final ByteBuffer blockHeader = ByteBuffer.allocate( BLOCK_HEADER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+
+	private int nBytes;
+
+	private int nMerges;
+
+	private long previousEdgeIndex;
+
+	private long previousWeightBits;
+
+	private long previousFrom;
+
+	private long previousTo;
+
+	private long size;
+
+	public CompressedMergeSink( final Path file ) throws IOException
+	{
+		this( file, DEFAULT_BLOCK_SIZE );
+	}
+
+	/**
+	 * Create or truncate {@code file} and write the header.
+	 */
+	public CompressedMergeSink( final Path file, final int blockSize ) throws IOException
+	{
+		super();
+		if ( blockSize < 1 )
+			throw new IllegalArgumentException( "Block size must be positive: " + blockSize );
+		this.channel = FileChannel.open(
+				file,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING );
+		this.blockSize = blockSize;
+		this.block = new byte[ blockSize * MAX_MERGE_BYTES ];
+		this.size = 0;
+		resetBlock();
+
+		final ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+		header.putInt( MAGIC ).putInt( VERSION ).putInt( blockSize ).putInt( 0 );
+		header.flip();
+		write( header );
+	}
+
+	public int blockSize()
+	{
+		return blockSize;
+	}
+
+	/**
+	 * @return number of merges added, including those that are still
+	 *         buffered
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+	@Override
+	public void add( final long edgeIndex, final double weight, final long from, final long to )
+	{
+		final long weightBits = Double.doubleToRawLongBits( weight );
+		int position = nBytes;
+		position = putVarLong( block, position, zigZag( edgeIndex - previousEdgeIndex ) );
+		position = putVarLong( block, position, weightBits ^ previousWeightBits );
+		position = putVarLong( block, position, zigZag( from - previousFrom ) );
+		position = putVarLong( block, position, zigZag( to - previousTo ) );
+		nBytes = position;
+		previousEdgeIndex = edgeIndex;
+		previousWeightBits = weightBits;
+		previousFrom = from;
+		previousTo = to;
+		++size;
+		if ( ++nMerges == blockSize )
+			flush();
+	}
+
+	/**
+	 * Write all buffered merges as a (possibly short) block.
+	 */
+	@Override
+	public void flush()
+	{
+		if ( nMerges == 0 )
+			return;
+		blockHeader.clear();
+		blockHeader.putInt( nMerges ).putInt( nBytes );
+		blockHeader.flip();
+		try
+		{
+			write( blockHeader );
+			write( ByteBuffer.wrap( block, 0, nBytes ) );
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+		resetBlock();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if ( !channel.isOpen() )
+			return;
+		flush();
+		channel.close();
+	}
+
+	private void resetBlock()
+	{
+		nBytes = 0;
+		nMerges = 0;
+		previousEdgeIndex = 0;
+		previousWeightBits = 0;
+		previousFrom = 0;
+		previousTo = 0;
+	}
+
+	private void write( final ByteBuffer source ) throws IOException
+	{
+		while ( source.hasRemaining() )
+			channel.write( source );
+	}
+
+	public static long zigZag( final long value )
+	{
+		return value << 1 ^ value >> 63;
+	}
+
+	public static long unZigZag( final long value )
+	{
+		return value >>> 1 ^ -( value & 1 );
+	}
+
+	/**
+	 * Write {@code value} as unsigned LEB128 varint at {@code position}.
+	 *
+	 * @return position after the varint
+	 */
+	public static int putVarLong( final byte[] bytes, final int position, final long value )
+	{
+		int p = position;
+		long v = value;
+		while ( ( v & ~0x7fl ) != 0 )
+		{
+			bytes[ p++ ] = ( byte ) ( v & 0x7f | 0x80 );
+			v >>>= 7;
+		}
+		bytes[ p++ ] = ( byte ) v;
+		return p;
+	}
+
+}
@@ -0,0 +1,123 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link MergeSink} that streams merges into a file through a buffered
+ * {@link FileChannel}. All values are little endian:
+ *
+ * <pre>
+ * header:  magic (int, {@link #MAGIC}), version (int, {@link #VERSION}),
+ *          record size in bytes (int, {@link #RECORD_BYTES}), reserved (int)
+ * records: edge index (long), weight (double), from (long), to (long)
+ * </pre>
+ *
+ * Records have the layout of {@link RegionMerging#MERGES_LOG_STEP_SIZE} longs,
+ * so a mapped log can be read like the in memory merge log. The number of
+ * merges follows from the file size, records are written in full buffers and
+ * on {@link #flush()}, i.e. after each iteration of {@link RegionMerging}, and
+ * can be read with {@link MergeLogReader} while merging continues.
+ */
+public class FileMergeSink implements MergeSink, Closeable
+{
+
+	public static final int MAGIC = 0x524d4c47;
+
+	public static final int VERSION = 1;
+
+	public static final int HEADER_BYTES = 16;
+
+	public static final int RECORD_BYTES = RegionMerging.MERGES_LOG_STEP_SIZE * Long.BYTES;
+
+	private static final int DEFAULT_BUFFER_RECORDS = 1 << 12;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer buffer;
+
+	private long size;
+
+	/**
+	 * Create or truncate {@code file} and write the header.
+	 */
+	public FileMergeSink( final Path file ) throws IOException
+	{
+		this( file, DEFAULT_BUFFER_RECORDS );
+	}
+
+	public FileMergeSink( final Path file, final int bufferRecords ) throws IOException
+	{
+		super();
+		this.channel = FileChannel.open(
+				file,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING );
+		this.buffer = ByteBuffer.allocateDirect( Math.max( bufferRecords, 1 ) * RECORD_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+		this.size = 0;
+
+		final ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+		header.putInt( MAGIC ).putInt( VERSION ).putInt( RECORD_BYTES ).putInt( 0 );
+		header.flip();
+		write( header );
+	}
+
+	/**
+	 * @return number of merges added, including those that are still
+	 *         buffered
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+	@Override
+	public void add( final long edgeIndex, final double weight, final long from, final long to )
+	{
+		if ( !buffer.hasRemaining() )
+			flush();
+		buffer.putLong( edgeIndex );
+		buffer.putLong( Double.doubleToRawLongBits( weight ) );
+		buffer.putLong( from );
+		buffer.putLong( to );
+		++size;
+	}
+
+	@Override
+	public void flush()
+	{
+		buffer.flip();
+		try
+		{
+			write( buffer );
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+		buffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if ( !channel.isOpen() )
+			return;
+		flush();
+		channel.close();
+	}
+
+	private void write( final ByteBuffer source ) throws IOException
+	{
+		while ( source.hasRemaining() )
+			channel.write( source );
+	}
+
+}
@@ -0,0 +1,237 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.janelia.saalfeldlab.util.unionfind.UnionFind;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.view.Views;
+
+/**
+ * Lookup table from fragment to segment, exported once from a
+ * {@link UnionFind} so that relabeling label volumes is an array access per
+ * voxel instead of a {@link UnionFind#findRoot(long)} per voxel. Dense
+ * tables cover fragments {@code 0 ... size() - 1}, sparse tables hold sorted
+ * fragment ids and are searched with {@link Arrays#binarySearch(long[], long)}.
+ * Fragments that are not in the table map to themselves, like unknown ids
+ * in a {@link UnionFind}.
+ */
+public class FragmentSegmentLut implements Serializable
+{
+
+	private final long[] fragments;
+
+	private final long[] segments;
+
+	private FragmentSegmentLut( final long[] fragments, final long[] segments )
+	{
+		super();
+		this.fragments = fragments;
+		this.segments = segments;
+	}
+
+	/**
+	 * @return table of {@code segments[ fragment ]}
+	 */
+	public static FragmentSegmentLut dense( final long[] segments )
+	{
+		return new FragmentSegmentLut( null, segments );
+	}
+
+	/**
+	 * @return table of {@code segments[ fragment ]}, e.g. from
+	 *         {@link MergeTree#lut(double)}
+	 */
+	public static FragmentSegmentLut dense( final int[] segments )
+	{
+		return dense( Arrays.stream( segments ).asLongStream().toArray() );
+	}
+
+	/**
+	 * @return table of the roots of fragments {@code 0 ... nFragments - 1}
+	 *         in {@code regionMapping}
+	 */
+	public static FragmentSegmentLut dense( final UnionFind regionMapping, final int nFragments )
+	{
+		final long[] segments = new long[ nFragments ];
+		for ( int fragment = 0; fragment < nFragments; ++fragment )
+			segments[ fragment ] = regionMapping.findRoot( fragment );
+		return dense( segments );
+	}
+
+	/**
+	 * @return table of the roots of {@code fragments} in
+	 *         {@code regionMapping}, duplicates are removed
+	 */
+	public static FragmentSegmentLut sparse( final UnionFind regionMapping, final long[] fragments )
+	{
+		final long[] sorted = Arrays.stream( fragments ).sorted().distinct().toArray();
+		final long[] segments = new long[ sorted.length ];
+		for ( int i = 0; i < sorted.length; ++i )
+			segments[ i ] = regionMapping.findRoot( sorted[ i ] );
+		return new FragmentSegmentLut( sorted, segments );
+	}
+
+	public boolean isDense()
+	{
+		return fragments == null;
+	}
+
+	public int size()
+	{
+		return segments.length;
+	}
+
+	public long segment( final long fragment )
+	{
+		if ( fragments == null )
+			return fragment >= 0 && fragment < segments.length ? segments[ ( int ) fragment ] : fragment;
+		final int index = Arrays.binarySearch( fragments, fragment );
+		return index < 0 ? fragment : segments[ index ];
+	}
+
+	/**
+	 * Write segments of all fragments in {@code source} into {@code target}
+	 * with the same interval, block by block in {@code pool} if not
+	 * {@code null}. {@code source} and {@code target} may be the same image
+	 * for relabeling in place, but must be safe for concurrent access in
+	 * disjoint blocks.
+	 *
+	 * @param blockSize
+	 *            size of the blocks in each dimension
+	 */
+	public < S extends IntegerType< S >, T extends IntegerType< T > > void relabel(
+			final RandomAccessibleInterval< S > source,
+			final RandomAccessibleInterval< T > target,
+			final int[] blockSize,
+			final ForkJoinPool pool )
+	{
+		if ( source.numDimensions() != target.numDimensions() )
+			throw new IllegalArgumentException( "Source and target dimensionality differ: " + source.numDimensions() + " " + target.numDimensions() );
+		for ( int d = 0; d < source.numDimensions(); ++d )
+			if ( source.min( d ) != target.min( d ) || source.max( d ) != target.max( d ) )
+				throw new IllegalArgumentException( "Source and target intervals differ in dimension " + d + "." );
+
+		final List< Interval > blocks = blocks( source, blockSize );
+		if ( pool == null )
+			for ( final Interval block : blocks )
+				relabel( Views.interval( source, block ), Views.interval( target, block ) );
+		else
+			pool.invoke( new RelabelTask<>( source, target, blocks, 0, blocks.size() ) );
+	}
+
+	/**
+	 * @return lazy view of the segments of all fragments in {@code source},
+	 *         looked up on access
+	 */
+	public < S extends IntegerType< S >, T extends IntegerType< T > > RandomAccessibleInterval< T > view(
+			final RandomAccessibleInterval< S > source,
+			final T type )
+	{
+		final Converter< S, T > converter = ( s, t ) -> t.setInteger( segment( s.getIntegerLong() ) );
+		return Converters.convert( source, converter, type );
+	}
+
+	private < S extends IntegerType< S >, T extends IntegerType< T > > void relabel(
+			final RandomAccessibleInterval< S > source,
+			final RandomAccessibleInterval< T > target )
+	{
+		final Cursor< S > s = Views.flatIterable( source ).cursor();
+		final Cursor< T > t = Views.flatIterable( target ).cursor();
+		while ( s.hasNext() )
+			t.next().setInteger( segment( s.next().getIntegerLong() ) );
+	}
+
+	/**
+	 * @return grid of blocks of {@code blockSize} that covers
+	 *         {@code interval}, blocks at the max border may be smaller
+	 */
+	public static List< Interval > blocks( final Interval interval, final int[] blockSize )
+	{
+		final int n = interval.numDimensions();
+		if ( blockSize.length != n )
+			throw new IllegalArgumentException( "Block size has " + blockSize.length + " dimensions but interval has " + n + "." );
+		for ( int d = 0; d < n; ++d )
+			if ( blockSize[ d ] <= 0 )
+				throw new IllegalArgumentException( "Block size must be positive but is " + blockSize[ d ] + " in dimension " + d + "." );
+		final List< Interval > blocks = new ArrayList<>();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			min[ d ] = interval.min( d );
+		while ( true )
+		{
+			for ( int d = 0; d < n; ++d )
+				max[ d ] = Math.min( min[ d ] + blockSize[ d ] - 1, interval.max( d ) );
+			blocks.add( new FinalInterval( min.clone(), max.clone() ) );
+
+			int d = 0;
+			for ( ; d < n; ++d )
+			{
+				min[ d ] += blockSize[ d ];
+				if ( min[ d ] <= interval.max( d ) )
+					break;
+				min[ d ] = interval.min( d );
+			}
+			if ( d == n )
+				return blocks;
+		}
+	}
+
+	private class RelabelTask< S extends IntegerType< S >, T extends IntegerType< T > > extends RecursiveAction
+	{
+
+		private final RandomAccessibleInterval< S > source;
+
+		private final RandomAccessibleInterval< T > target;
+
+		private final List< Interval > blocks;
+
+		private final int min;
+
+		private final int max;
+
+		public RelabelTask(
+				final RandomAccessibleInterval< S > source,
+				final RandomAccessibleInterval< T > target,
+				final List< Interval > blocks,
+				final int min,
+				final int max )
+		{
+			super();
+			this.source = source;
+			this.target = target;
+			this.blocks = blocks;
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if ( max - min > 1 )
+			{
+				final int mid = ( min + max ) >>> 1;
+				invokeAll(
+						new RelabelTask<>( source, target, blocks, min, mid ),
+						new RelabelTask<>( source, target, blocks, mid, max ) );
+				return;
+			}
+			for ( int i = min; i < max; ++i )
+				relabel( Views.interval( source, blocks.get( i ) ), Views.interval( target, blocks.get( i ) ) );
+		}
+
+	}
+
+}
@@ -0,0 +1,103 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.graph.UndirectedGraph;
+import org.janelia.saalfeldlab.graph.edge.Edge;
+import org.janelia.saalfeldlab.graph.edge.EdgeStore;
+
+import gnu.trove.iterator.TLongIntIterator;
+
+/**
+ * Minimum weight over all valid edges incident to a node whose multiplicity
+ * is at least {@code minimumMultiplicity}, i.e. over the edges that are
+ * considered by the local minimum test in {@link RegionMerging}. Node ids are dense, the
+ * store grows on demand. {@code NaN} weights are ignored.
+ */
+public class IncidentWeightMinima
+{
+
+	private final int minimumMultiplicity;
+
+	private double[] minima;
+
+	public IncidentWeightMinima( final int minimumMultiplicity )
+	{
+		this.minimumMultiplicity = minimumMultiplicity;
+		this.minima = new double[ 0 ];
+	}
+
+	/**
+	 * Compute minima of all nodes from all valid edges of {@code g}.
+	 */
+	public void compute( final UndirectedGraph g )
+	{
+		Arrays.fill( minima, Double.MAX_VALUE );
+		final EdgeStore edges = g.edges();
+		final Edge e = new Edge( edges );
+		for ( int k = edges.nextValid( 0 ); k < edges.size(); k = edges.nextValid( k + 1 ) )
+		{
+			e.setIndex( k );
+			if ( e.multiplicity() >= minimumMultiplicity )
+			{
+				add( e.from(), e.weight() );
+				add( e.to(), e.weight() );
+			}
+		}
+	}
+
+	/**
+	 * Re-compute minimum of {@code node} from its current neighbors, e.g.
+	 * after contractions or re-weighting.
+	 */
+	public void update( final UndirectedGraph g, final long node, final Edge e )
+	{
+		ensureSize( node );
+		final int n = ( int ) node;
+		minima[ n ] = Double.MAX_VALUE;
+		for ( final TLongIntIterator it = g.nodeEdgeIterator( node ); it.hasNext(); )
+		{
+			it.advance();
+			e.setIndex( it.value() );
+			if ( e.isValid() && e.multiplicity() >= minimumMultiplicity )
+				add( node, e.weight() );
+		}
+	}
+
+	private void add( final long node, final double weight )
+	{
+		ensureSize( node );
+		final int n = ( int ) node;
+		if ( weight < minima[ n ] )
+			minima[ n ] = weight;
+	}
+
+	public double minimum( final long node )
+	{
+		return node < minima.length ? minima[ ( int ) node ] : Double.MAX_VALUE;
+	}
+
+	/**
+	 * An edge with {@code weight} between {@code from} and {@code to} that is
+	 * considered for the minima is dominated if it is not a local minimum and
+	 * does not share the minimum weight at either node. Such an edge cannot
+	 * be part of a plateau that contains a local minimum.
+	 */
+	public boolean isDominated( final long from, final long to, final double weight )
+	{
+		final double m1 = minimum( from );
+		final double m2 = minimum( to );
+		return ( m1 < weight || m2 < weight ) && m1 != weight && m2 != weight;
+	}
+
+	private void ensureSize( final long node )
+	{
+		if ( node < minima.length )
+			return;
+		final int oldSize = minima.length;
+		final int newSize = ( int ) Math.max( node + 1, 2l * oldSize );
+		minima = Arrays.copyOf( minima, newSize );
+		Arrays.fill( minima, oldSize, newSize, Double.MAX_VALUE );
+	}
+
+}
@@ -0,0 +1,112 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * Read merge logs written by {@link FileMergeSink}, possibly while they are
+ * still being written: {@link #size()} only counts complete records, and
+ * {@link #replay(long, MergeSink)} returns the position to continue from
+ * when more merges become available.
+ */
+public class MergeLogReader implements Closeable
+{
+
+	private static final int BUFFER_RECORDS = 1 << 12;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect( BUFFER_RECORDS * FileMergeSink.RECORD_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+
+	public MergeLogReader( final Path file ) throws IOException
+	{
+		super();
+		this.channel = FileChannel.open( file, StandardOpenOption.READ );
+
+		final ByteBuffer header = ByteBuffer.allocate( FileMergeSink.HEADER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+		while ( header.hasRemaining() )
+			if ( channel.read( header, header.position() ) < 0 )
+				throw new IOException( "Incomplete merge log header in " + file );
+		header.flip();
+		final int magic = header.getInt();
+		final int version = header.getInt();
+		final int recordBytes = header.getInt();
+		if ( magic != FileMergeSink.MAGIC || version != FileMergeSink.VERSION || recordBytes != FileMergeSink.RECORD_BYTES )
+			throw new IOException( "Not a merge log of version " + FileMergeSink.VERSION + ": " + file );
+	}
+
+	/**
+	 * @return number of complete merge records in the file
+	 */
+	public long size() throws IOException
+	{
+		return ( channel.size() - FileMergeSink.HEADER_BYTES ) / FileMergeSink.RECORD_BYTES;
+	}
+
+	/**
+	 * Pass all merges from {@code first} up to the current {@link #size()}
+	 * to {@code sink} in order.
+	 *
+	 * @return index of the next merge, i.e. {@code first} for the next call
+	 */
+	public long replay( final long first, final MergeSink sink ) throws IOException
+	{
+		final long size = size();
+		for ( long index = first; index < size; )
+		{
+			final int n = ( int ) Math.min( size - index, BUFFER_RECORDS );
+			buffer.clear().limit( n * FileMergeSink.RECORD_BYTES );
+			final long position = FileMergeSink.HEADER_BYTES + index * FileMergeSink.RECORD_BYTES;
+			while ( buffer.hasRemaining() )
+				channel.read( buffer, position + buffer.position() );
+			buffer.flip();
+			for ( int i = 0; i < n; ++i )
+				sink.add( buffer.getLong(), Double.longBitsToDouble( buffer.getLong() ), buffer.getLong(), buffer.getLong() );
+			index += n;
+		}
+		return Math.max( first, size );
+	}
+
+	/**
+	 * @return all merges in the layout of the in memory merge log of
+	 *         {@link RegionMerging}
+	 */
+	public TLongArrayList read() throws IOException
+	{
+		final TLongArrayList merges = new TLongArrayList();
+		replay( 0, MergeSink.of( merges ) );
+		return merges;
+	}
+
+	/**
+	 * Map all current merge records read only. Merge {@code i} is at
+	 * positions {@code i * }{@link RegionMerging#MERGES_LOG_STEP_SIZE}
+	 * {@code + }{@link RegionMerging#MERGES_LOG_EDGE_INDEX_OFFSET} etc. of
+	 * the returned buffer, as in the in memory merge log. A single mapping
+	 * is limited to 2GB, use {@link #replay(long, MergeSink)} for larger
+	 * logs.
+	 */
+	public LongBuffer map() throws IOException
+	{
+		final long bytes = size() * FileMergeSink.RECORD_BYTES;
+		if ( bytes > Integer.MAX_VALUE )
+			throw new IOException( "Merge log of " + bytes + " bytes exceeds maximum mapping size." );
+		return channel.map( MapMode.READ_ONLY, FileMergeSink.HEADER_BYTES, bytes ).order( ByteOrder.LITTLE_ENDIAN ).asLongBuffer();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+}
@@ -0,0 +1,37 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * Receives the merges of {@link RegionMerging} in the order in which they
+ * happen: index of the contracted edge, its weight, and the roots of the two
+ * merged regions before the merge.
+ */
+public interface MergeSink
+{
+
+	public void add( long edgeIndex, double weight, long from, long to );
+
+	/**
+	 * Make all merges so far available to consumers, called by
+	 * {@link RegionMerging} after each iteration.
+	 */
+	public default void flush()
+	{}
+
+	/**
+	 * Append merges to {@code merges} in steps of
+	 * {@link RegionMerging#MERGES_LOG_STEP_SIZE}, with the weight stored as
+	 * raw long bits.
+	 */
+	public static MergeSink of( final TLongArrayList merges )
+	{
+		return ( edgeIndex, weight, from, to ) -> {
+			merges.add( edgeIndex );
+			merges.add( Double.doubleToRawLongBits( weight ) );
+			merges.add( from );
+			merges.add( to );
+		};
+	}
+
+}
@@ -0,0 +1,237 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import java.io.Serializable;
+
+import org.janelia.saalfeldlab.util.unionfind.ArrayStoreUnionFind;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * Merge tree (dendrogram) of a merge log over dense fragment ids
+ * {@code 0 ... nFragments - 1}. Tree nodes {@code 0 ... nFragments - 1} are
+ * the fragments, node {@code nFragments + i} is created by merge {@code i}
+ * and is the parent of the two regions that it merged. Each merge node has a
+ * height, the maximum of the merge weight and the heights of its children,
+ * so heights never decrease towards the root even if weights of later
+ * merges are smaller, e.g. after re-weighting. For logs with monotone
+ * weights, heights are the merge weights.
+ *
+ * The segmentation at threshold {@code t} joins all merges with height
+ * {@code <= t}. Segments are identified by their smallest fragment id.
+ * {@link #lut(double)} computes the segment of all fragments in a single
+ * pass over the tree, {@link #segment(int, double)} walks up from a single
+ * fragment.
+ */
+public class MergeTree implements Serializable
+{
+
+	public static final int NO_PARENT = -1;
+
+	private final int nFragments;
+
+	private final int[] parents;
+
+	private final double[] heights;
+
+	private final int[] representatives;
+
+	private MergeTree( final int nFragments, final int[] parents, final double[] heights, final int[] representatives )
+	{
+		super();
+		this.nFragments = nFragments;
+		this.parents = parents;
+		this.heights = heights;
+		this.representatives = representatives;
+	}
+
+	/**
+	 * Build merge tree from a merge log in the layout of
+	 * {@link RegionMerging}.
+	 */
+	public static MergeTree fromMergeLog( final TLongArrayList merges, final int nFragments )
+	{
+		final Builder builder = new Builder( nFragments );
+		for ( int i = 0; i < merges.size(); i += RegionMerging.MERGES_LOG_STEP_SIZE )
+			builder.add(
+					merges.get( i + RegionMerging.MERGES_LOG_EDGE_INDEX_OFFSET ),
+					Double.longBitsToDouble( merges.get( i + RegionMerging.MERGES_LOG_WEIGHT_OFFSET ) ),
+					merges.get( i + RegionMerging.MERGES_LOG_FROM_OFFSET ),
+					merges.get( i + RegionMerging.MERGES_LOG_TO_OFFSET ) );
+		return builder.build();
+	}
+
+	public int nFragments()
+	{
+		return nFragments;
+	}
+
+	public int nMerges()
+	{
+		return heights.length;
+	}
+
+	public int nNodes()
+	{
+		return parents.length;
+	}
+
+	/**
+	 * @return parent of tree {@code node}, or {@link #NO_PARENT} for roots
+	 */
+	public int parent( final int node )
+	{
+		return parents[ node ];
+	}
+
+	/**
+	 * @return height of tree {@code node}, negative infinity for fragments
+	 */
+	public double height( final int node )
+	{
+		return node < nFragments ? Double.NEGATIVE_INFINITY : heights[ node - nFragments ];
+	}
+
+	/**
+	 * @return smallest fragment id below tree {@code node}
+	 */
+	public int representative( final int node )
+	{
+		return node < nFragments ? node : representatives[ node - nFragments ];
+	}
+
+	/**
+	 * @return segment of {@code fragment} at {@code threshold}
+	 */
+	public int segment( final int fragment, final double threshold )
+	{
+		int node = fragment;
+		for ( int parent = parents[ node ]; parent != NO_PARENT && heights[ parent - nFragments ] <= threshold; parent = parents[ node ] )
+			node = parent;
+		return representative( node );
+	}
+
+	/**
+	 * @return segment of each fragment at {@code threshold}
+	 */
+	public int[] lut( final double threshold )
+	{
+		return lut( threshold, new int[ nFragments ] );
+	}
+
+	/**
+	 * Write segment of each fragment at {@code threshold} into {@code lut}.
+	 * Merge nodes are visited from the roots down, parents are created
+	 * after their children, so each node inherits the segment of its parent
+	 * if the parent is joined at {@code threshold}.
+	 *
+	 * @return {@code lut}
+	 */
+	public int[] lut( final double threshold, final int[] lut )
+	{
+		final int nMerges = nMerges();
+		final int[] segments = new int[ nMerges ];
+		for ( int i = nMerges - 1; i >= 0; --i )
+		{
+			final int parent = parents[ nFragments + i ];
+			segments[ i ] = parent != NO_PARENT && heights[ parent - nFragments ] <= threshold
+					? segments[ parent - nFragments ]
+					: representatives[ i ];
+		}
+		for ( int fragment = 0; fragment < nFragments; ++fragment )
+		{
+			final int parent = parents[ fragment ];
+			lut[ fragment ] = parent != NO_PARENT && heights[ parent - nFragments ] <= threshold
+					? segments[ parent - nFragments ]
+					: fragment;
+		}
+		return lut;
+	}
+
+	/**
+	 * @return number of segments at {@code threshold}
+	 */
+	public int nSegments( final double threshold )
+	{
+		int nJoined = 0;
+		for ( final double height : heights )
+			if ( height <= threshold )
+				++nJoined;
+		return nFragments - nJoined;
+	}
+
+	/**
+	 * Build a {@link MergeTree} from merges as they are passed to
+	 * {@link #add}, e.g. from {@link MergeLogReader#replay} or directly from
+	 * {@link RegionMerging}. Merges of fragments that are already in the
+	 * same region are ignored.
+	 */
+	public static class Builder implements MergeSink
+	{
+
+		private final int nFragments;
+
+		private final ArrayStoreUnionFind regions;
+
+		private final int[] regionNodes;
+
+		private final TIntArrayList parents;
+
+		private final TDoubleArrayList heights = new TDoubleArrayList();
+
+		private final TIntArrayList representatives = new TIntArrayList();
+
+		public Builder( final int nFragments )
+		{
+			super();
+			this.nFragments = nFragments;
+			this.regions = new ArrayStoreUnionFind( nFragments );
+			this.regionNodes = new int[ nFragments ];
+			this.parents = new TIntArrayList( nFragments );
+			for ( int fragment = 0; fragment < nFragments; ++fragment )
+			{
+				regionNodes[ fragment ] = fragment;
+				parents.add( NO_PARENT );
+			}
+		}
+
+		@Override
+		public void add( final long edgeIndex, final double weight, final long from, final long to )
+		{
+			if ( from < 0 || from >= nFragments || to < 0 || to >= nFragments )
+				throw new IllegalArgumentException( "Merge of " + from + " and " + to + " outside of " + nFragments + " fragments." );
+			final long r1 = regions.findRoot( from );
+			final long r2 = regions.findRoot( to );
+			if ( r1 == r2 )
+				return;
+
+			final int node1 = regionNodes[ ( int ) r1 ];
+			final int node2 = regionNodes[ ( int ) r2 ];
+			final int node = nFragments + heights.size();
+			parents.set( node1, node );
+			parents.set( node2, node );
+			parents.add( NO_PARENT );
+			heights.add( Math.max( weight, Math.max( height( node1 ), height( node2 ) ) ) );
+			representatives.add( Math.min( representative( node1 ), representative( node2 ) ) );
+			regionNodes[ ( int ) regions.join( r1, r2 ) ] = node;
+		}
+
+		public MergeTree build()
+		{
+			return new MergeTree( nFragments, parents.toArray(), heights.toArray(), representatives.toArray() );
+		}
+
+		private double height( final int node )
+		{
+			return node < nFragments ? Double.NEGATIVE_INFINITY : heights.get( node - nFragments );
+		}
+
+		private int representative( final int node )
+		{
+			return node < nFragments ? node : representatives.get( node - nFragments );
+		}
+
+	}
+
+}
@@ -0,0 +1,440 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.graph.UndirectedGraph;
+import org.janelia.saalfeldlab.graph.edge.Edge;
+import org.janelia.saalfeldlab.graph.edge.EdgeMerger;
+import org.janelia.saalfeldlab.graph.edge.EdgeStore;
+import org.janelia.saalfeldlab.graph.edge.EdgeWeight;
+import org.janelia.saalfeldlab.util.heap.IndexedDoubleMinHeap;
+import org.janelia.saalfeldlab.util.unionfind.HashMapStoreUnionFind;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+
+/**
+ * Priority queue driven alternative to
+ * {@link RegionMerging#mergeLocallyMinimalEdges}. Instead of sweeping over
+ * all edges once per iteration, candidate edges are kept in an
+ * {@link IndexedDoubleMinHeap} keyed by weight and only edges around a
+ * contraction are re-weighted and re-inserted.
+ *
+ * An edge is merged under the same conditions as in
+ * {@link RegionMerging#mergeLocallyMinimalEdges}: it must be locally minimal,
+ * contractible, not adjacent to a non-contracting edge and exceed the minimum
+ * multiplicity, and plateaus are only merged if all of their edges satisfy
+ * these conditions. Edges that fail the test are not re-inserted into the
+ * heap but wait for the edge that blocks them (e.g. a smaller neighbor) to
+ * change, and obsolete or stale heap entries are discarded lazily. The order
+ * of merges is global instead of per iteration and may therefore differ from
+ * {@link RegionMerging#mergeLocallyMinimalEdges}.
+ */
+public class PriorityQueueRegionMerging
+{
+
+	public static Logger LOG = LoggerFactory.getLogger( MethodHandles.lookup().lookupClass() );
+
+	public static Pair< TLongArrayList, HashMapStoreUnionFind > mergeLocallyMinimalEdges(
+			final UndirectedGraph g,
+			final EdgeMerger merger,
+			final EdgeWeight edgeWeight,
+			final double threshold )
+	{
+		return mergeLocallyMinimalEdges( g, merger, edgeWeight, threshold, 0, new TIntHashSet() );
+	}
+
+	public static Pair< TLongArrayList, HashMapStoreUnionFind > mergeLocallyMinimalEdges(
+			final UndirectedGraph g,
+			final EdgeMerger merger,
+			final EdgeWeight edgeWeight,
+			final double threshold,
+			final int minimumMultiplicity,
+			final TIntHashSet nonContractingEdges )
+	{
+		final EdgeStore edges = g.edges();
+		final Edge e1 = new Edge( edges );
+		final Edge e2 = new Edge( edges );
+		final Edge e3 = new Edge( edges );
+		final int nEdges = e1.size();
+
+		final HashMapStoreUnionFind regionMapping = new HashMapStoreUnionFind();
+
+		final TLongArrayList merges = new TLongArrayList();
+		final MergeSink mergeSink = MergeSink.of( merges );
+
+		final IndexedDoubleMinHeap heap = new IndexedDoubleMinHeap( nEdges );
+		final Waiters waiters = new Waiters( nEdges );
+		final Neighborhood neighborhood = new Neighborhood();
+
+		for ( int k = edges.nextObsolete( 0 ); k < nEdges; k = edges.nextObsolete( k + 1 ) )
+			edges.weight( k, Double.POSITIVE_INFINITY );
+
+		for ( int k = edges.nextValid( 0 ); k < nEdges; k = edges.nextValid( k + 1 ) )
+		{
+			e1.setIndex( k );
+			if ( e1.isStale() )
+			{
+				e1.weight( edgeWeight.weight( e1 ) );
+				e1.setActive();
+			}
+
+			if ( e1.weight() <= threshold )
+				heap.push( k, e1.weight() );
+		}
+
+		final TIntArrayList plateau = new TIntArrayList();
+		final TIntArrayList plateauStack = new TIntArrayList();
+		final TIntArrayList plateauNeighbors = new TIntArrayList();
+		final TIntHashSet visited = new TIntHashSet();
+		final TIntArrayList woken = new TIntArrayList();
+		final TLongHashSet touchedNodes = new TLongHashSet();
+
+		int nPopped = 0;
+
+		while ( !heap.isEmpty() )
+		{
+			++nPopped;
+			final int k = heap.pop();
+			e1.setIndex( k );
+
+			// lazy deletion
+			if ( e1.isObsolete() )
+				continue;
+
+			if ( e1.isStale() )
+			{
+				e1.weight( edgeWeight.weight( e1 ) );
+				e1.setActive();
+				if ( e1.weight() <= threshold )
+					heap.push( k, e1.weight() );
+				continue;
+			}
+
+			final double w = e1.weight();
+			neighborhood.inspect( g, e1, k, e2, nonContractingEdges, minimumMultiplicity, null );
+
+			if ( w > neighborhood.minimum )
+			{
+				waiters.await( k, neighborhood.minimumEdge );
+				continue;
+			}
+
+			if ( nonContractingEdges.contains( k ) )
+				continue;
+
+			if ( neighborhood.nonContractibleNeighbor >= 0 )
+			{
+				waiters.await( k, neighborhood.nonContractibleNeighbor );
+				continue;
+			}
+
+			plateau.resetQuick();
+			if ( neighborhood.isPlateau )
+			{
+				final int blocker = collectPlateau( g, k, e3, e2, neighborhood, nonContractingEdges, minimumMultiplicity, plateau, plateauStack, plateauNeighbors, visited );
+				if ( blocker >= 0 )
+				{
+					waiters.await( k, blocker );
+					continue;
+				}
+			}
+			else
+				plateau.add( k );
+
+			touchedNodes.clear();
+			woken.resetQuick();
+			for ( int i = 0; i < plateau.size(); ++i )
+			{
+				final int index = plateau.get( i );
+				e1.setIndex( index );
+				if ( e1.isObsolete() || e1.multiplicity() <= minimumMultiplicity )
+					continue;
+				final long from = e1.from();
+				final long to = e1.to();
+				if ( regionMapping.findRoot( from ) == regionMapping.findRoot( to ) )
+					continue;
+				// edges waiting for an edge of either region need to be
+				// re-tested after the contraction
+				wakeIncident( g, from, waiters, woken );
+				wakeIncident( g, to, waiters, woken );
+				waiters.wake( index, woken );
+				// the contracted node keeps either id, the removed node has
+				// no edges left
+				if ( RegionMerging.mergeEdge( g, e1, index, regionMapping, merger, mergeSink ) )
+				{
+					touchedNodes.add( from );
+					touchedNodes.add( to );
+				}
+			}
+
+			for ( final TLongIterator nodeIt = touchedNodes.iterator(); nodeIt.hasNext(); )
+			{
+				final long node = nodeIt.next();
+				for ( final TLongIntIterator it = g.nodeEdgeIterator( node ); it.hasNext(); )
+				{
+					it.advance();
+					final int index = it.value();
+					e1.setIndex( index );
+					if ( e1.isStale() )
+					{
+						e1.weight( edgeWeight.weight( e1 ) );
+						e1.setActive();
+						waiters.wake( index, woken );
+					}
+					push( heap, waiters, index, e1.weight(), threshold );
+				}
+			}
+
+			for ( int i = 0; i < woken.size(); ++i )
+			{
+				final int index = woken.get( i );
+				e1.setIndex( index );
+				if ( e1.isValid() )
+					push( heap, waiters, index, e1.weight(), threshold );
+			}
+		}
+
+		LOG.debug( "Finished after {} heap operations with {} merges.", nPopped, merges.size() / RegionMerging.MERGES_LOG_STEP_SIZE );
+
+		return new ValuePair<>( merges, regionMapping );
+	}
+
+	private static void push(
+			final IndexedDoubleMinHeap heap,
+			final Waiters waiters,
+			final int index,
+			final double weight,
+			final double threshold )
+	{
+		if ( weight <= threshold )
+		{
+			waiters.cancel( index );
+			heap.push( index, weight );
+		}
+		else
+			heap.remove( index );
+	}
+
+	private static void wakeIncident( final UndirectedGraph g, final long node, final Waiters waiters, final TIntArrayList woken )
+	{
+		for ( final TLongIntIterator it = g.nodeEdgeIterator( node ); it.hasNext(); )
+		{
+			it.advance();
+			waiters.wake( it.value(), woken );
+		}
+	}
+
+	/**
+	 * Collect the plateau that contains edge {@code k} into {@code plateau},
+	 * sorted by edge index. Only edges that are part of a plateau themselves
+	 * are added, as in {@link RegionMerging#mergeLocallyMinimalEdges}.
+	 *
+	 * @return -1 if all edges of the plateau can be merged, otherwise an edge
+	 *         that prevents merging of the plateau.
+	 */
+	private static int collectPlateau(
+			final UndirectedGraph g,
+			final int k,
+			final Edge e,
+			final Edge e2,
+			final Neighborhood neighborhood,
+			final TIntHashSet nonContractingEdges,
+			final int minimumMultiplicity,
+			final TIntArrayList plateau,
+			final TIntArrayList stack,
+			final TIntArrayList neighbors,
+			final TIntHashSet visited )
+	{
+		visited.clear();
+		stack.resetQuick();
+		stack.add( k );
+		visited.add( k );
+		while ( !stack.isEmpty() )
+		{
+			final int m = stack.removeAt( stack.size() - 1 );
+			e.setIndex( m );
+			neighbors.resetQuick();
+			neighborhood.inspect( g, e, m, e2, nonContractingEdges, minimumMultiplicity, neighbors );
+			for ( int i = 0; i < neighbors.size(); ++i )
+			{
+				final int n = neighbors.get( i );
+				if ( visited.add( n ) )
+					stack.add( n );
+			}
+
+			if ( !neighborhood.isPlateau )
+				continue;
+
+			if ( e.weight() > neighborhood.minimum )
+				return neighborhood.minimumEdge;
+			if ( nonContractingEdges.contains( m ) )
+				return m;
+			if ( neighborhood.nonContractibleNeighbor >= 0 )
+				return neighborhood.nonContractibleNeighbor;
+
+			plateau.add( m );
+		}
+		plateau.sort();
+		return -1;
+	}
+
+	/**
+	 * Neighborhood of an edge as inspected by
+	 * {@link RegionMerging#findMinimaAndPlateaus}.
+	 */
+	private static final class Neighborhood
+	{
+
+		private double minimum;
+
+		private int minimumEdge;
+
+		private int nonContractibleNeighbor;
+
+		private boolean isPlateau;
+
+		private final long[] connectedNodes = new long[ 2 ];
+
+		/**
+		 * @param plateauNeighbors
+		 *            if not {@code null}, collect all neighbors that would be
+		 *            joined with {@code e} into the same plateau.
+		 */
+		public void inspect(
+				final UndirectedGraph g,
+				final Edge e,
+				final int k,
+				final Edge e2,
+				final TIntHashSet nonContractingEdges,
+				final int minimumMultiplicity,
+				final TIntArrayList plateauNeighbors )
+		{
+			minimum = Double.MAX_VALUE;
+			minimumEdge = -1;
+			nonContractibleNeighbor = -1;
+			isPlateau = false;
+
+			final double w = e.weight();
+			final boolean isMultiple = e.multiplicity() >= minimumMultiplicity;
+			connectedNodes[ 0 ] = e.from();
+			connectedNodes[ 1 ] = e.to();
+
+			for ( final long nodeId : connectedNodes )
+				for ( final TLongIntIterator it = g.nodeEdgeIterator( nodeId ); it.hasNext(); )
+				{
+					it.advance();
+					final int otherEdgeIndex = it.value();
+
+					if ( otherEdgeIndex == k || nodeId == it.key() )
+						continue;
+
+					e2.setIndex( otherEdgeIndex );
+					final double w2 = e2.weight();
+
+					if ( e2.multiplicity() < minimumMultiplicity )
+					{
+						// the neighbor joins e into its plateau
+						if ( plateauNeighbors != null && isMultiple && w == w2 )
+							plateauNeighbors.add( otherEdgeIndex );
+						continue;
+					}
+
+					if ( w2 < minimum )
+					{
+						minimum = w2;
+						minimumEdge = otherEdgeIndex;
+					}
+
+					if ( nonContractingEdges.contains( otherEdgeIndex ) )
+						nonContractibleNeighbor = otherEdgeIndex;
+
+					if ( w == w2 )
+					{
+						isPlateau = true;
+						if ( plateauNeighbors != null )
+							plateauNeighbors.add( otherEdgeIndex );
+					}
+				}
+		}
+
+	}
+
+	/**
+	 * Edges that are not re-inserted into the heap because they are blocked by
+	 * another edge. Each edge waits for at most one blocking edge, the waiting
+	 * edges of each blocking edge are stored as doubly linked list.
+	 */
+	private static final class Waiters
+	{
+
+		private final int[] blocker;
+
+		private final int[] previous;
+
+		private final int[] next;
+
+		private final int[] head;
+
+		public Waiters( final int size )
+		{
+			this.blocker = new int[ size ];
+			this.previous = new int[ size ];
+			this.next = new int[ size ];
+			this.head = new int[ size ];
+			Arrays.fill( blocker, -1 );
+			Arrays.fill( head, -1 );
+		}
+
+		public void await( final int edge, final int blockingEdge )
+		{
+			cancel( edge );
+			final int first = head[ blockingEdge ];
+			blocker[ edge ] = blockingEdge;
+			previous[ edge ] = -1;
+			next[ edge ] = first;
+			if ( first >= 0 )
+				previous[ first ] = edge;
+			head[ blockingEdge ] = edge;
+		}
+
+		public void cancel( final int edge )
+		{
+			final int blockingEdge = blocker[ edge ];
+			if ( blockingEdge < 0 )
+				return;
+			final int p = previous[ edge ];
+			final int n = next[ edge ];
+			if ( p >= 0 )
+				next[ p ] = n;
+			else
+				head[ blockingEdge ] = n;
+			if ( n >= 0 )
+				previous[ n ] = p;
+			blocker[ edge ] = -1;
+		}
+
+		public void wake( final int blockingEdge, final TIntArrayList woken )
+		{
+			for ( int edge = head[ blockingEdge ]; edge >= 0; )
+			{
+				final int n = next[ edge ];
+				blocker[ edge ] = -1;
+				woken.add( edge );
+				edge = n;
+			}
+			head[ blockingEdge ] = -1;
+		}
+
+	}
+
+}
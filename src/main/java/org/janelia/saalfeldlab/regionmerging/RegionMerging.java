@@ -2,21 +2,26 @@ package org.janelia.saalfeldlab.regionmerging;
 
 import java.lang.invoke.MethodHandles;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.stream.IntStream;
 
 import org.janelia.saalfeldlab.graph.UndirectedGraph;
 import org.janelia.saalfeldlab.graph.edge.Edge;
 import org.janelia.saalfeldlab.graph.edge.EdgeMerger;
+import org.janelia.saalfeldlab.graph.edge.EdgeStore;
 import org.janelia.saalfeldlab.graph.edge.EdgeWeight;
+import org.janelia.saalfeldlab.util.unionfind.ArrayStoreUnionFind;
 import org.janelia.saalfeldlab.util.unionfind.HashMapStoreUnionFind;
 import org.janelia.saalfeldlab.util.unionfind.Stringify;
+import org.janelia.saalfeldlab.util.unionfind.UnionFind;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import gnu.trove.iterator.TLongIntIterator;
-import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.list.array.TLongArrayList;
-import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.set.hash.TIntHashSet;
 import gnu.trove.set.hash.TLongHashSet;
 import net.imglib2.util.Pair;
@@ -37,6 +42,14 @@ public class RegionMerging
 
 	public static final int MERGES_LOG_STEP_SIZE = 4;
 
+	public static final int PARALLEL_BLOCK_SIZE = 1 << 14;
+
+	/**
+	 * Disable compaction of edges, see
+	 * {@link #mergeLocallyMinimalEdges(UndirectedGraph, EdgeMerger, EdgeWeight, double, int, TIntHashSet, ForkJoinPool, UnionFind, double)}.
+	 */
+	public static final double NO_COMPACTION = 1.0;
+
 	public static Pair< TLongArrayList, HashMapStoreUnionFind > mergeLocallyMinimalEdges(
 			final UndirectedGraph g,
 			final EdgeMerger merger,
@@ -54,13 +67,201 @@ public class RegionMerging
 			final int minimumMultiplicity,
 			final TIntHashSet nonContractingEdges )
 	{
-		final TDoubleArrayList edges = g.edges();
-		final Edge e1 = new Edge( edges, merger.dataSize() );
-		final Edge e2 = new Edge( edges, merger.dataSize() );
+		return mergeLocallyMinimalEdges( g, merger, edgeWeight, threshold, minimumMultiplicity, nonContractingEdges, null );
+	}
+
+	/**
+	 * @param pool
+	 *            if not {@code null}, the initial search for minima and
+	 *            plateaus over all edges and large batches of edge weights
+	 *            run in parallel in this pool, i.e. {@code edgeWeight} must
+	 *            be safe to use from multiple threads.
+	 */
+	public static Pair< TLongArrayList, HashMapStoreUnionFind > mergeLocallyMinimalEdges(
+			final UndirectedGraph g,
+			final EdgeMerger merger,
+			final EdgeWeight edgeWeight,
+			final double threshold,
+			final int minimumMultiplicity,
+			final TIntHashSet nonContractingEdges,
+			final ForkJoinPool pool )
+	{
+		return mergeLocallyMinimalEdges( g, merger, edgeWeight, threshold, minimumMultiplicity, nonContractingEdges, pool, new HashMapStoreUnionFind() );
+	}
 
-		final HashMapStoreUnionFind regionMapping = new HashMapStoreUnionFind();
+	/**
+	 * @param regionMapping
+	 *            {@link UnionFind} that maps nodes of {@code g} to merged
+	 *            regions, e.g. an {@link ArrayStoreUnionFind} for dense node
+	 *            ids.
+	 */
+	public static < U extends UnionFind > Pair< TLongArrayList, U > mergeLocallyMinimalEdges(
+			final UndirectedGraph g,
+			final EdgeMerger merger,
+			final EdgeWeight edgeWeight,
+			final double threshold,
+			final int minimumMultiplicity,
+			final TIntHashSet nonContractingEdges,
+			final ForkJoinPool pool,
+			final U regionMapping )
+	{
+		return mergeLocallyMinimalEdges( g, merger, edgeWeight, threshold, minimumMultiplicity, nonContractingEdges, pool, regionMapping, NO_COMPACTION );
+	}
 
+	/**
+	 * @param maxObsoleteFraction
+	 *            edges of {@code g} are compacted
+	 *            ({@link UndirectedGraph#compact()}) between iterations
+	 *            whenever more than this fraction of them is obsolete, e.g.
+	 *            {@code 0.5}. {@link #NO_COMPACTION} keeps all edges at their
+	 *            indices, as do all other overloads. Indices in
+	 *            {@code nonContractingEdges} are rewritten accordingly, edge
+	 *            indices in the merge log always refer to the edges of
+	 *            {@code g} before the first compaction.
+	 */
+	public static < U extends UnionFind > Pair< TLongArrayList, U > mergeLocallyMinimalEdges(
+			final UndirectedGraph g,
+			final EdgeMerger merger,
+			final EdgeWeight edgeWeight,
+			final double threshold,
+			final int minimumMultiplicity,
+			final TIntHashSet nonContractingEdges,
+			final ForkJoinPool pool,
+			final U regionMapping,
+			final double maxObsoleteFraction )
+	{
 		final TLongArrayList merges = new TLongArrayList();
+		mergeLocallyMinimalEdges( g, merger, edgeWeight, threshold, minimumMultiplicity, nonContractingEdges, pool, regionMapping, maxObsoleteFraction, MergeSink.of( merges ) );
+		return new ValuePair<>( merges, regionMapping );
+	}
+
+	/**
+	 * @param merges
+	 *            receives all merges as they happen and is flushed after
+	 *            each iteration, e.g. a {@link FileMergeSink} to stream
+	 *            merges to disk instead of keeping them in memory.
+	 * @return {@code regionMapping}
+	 */
+	public static < U extends UnionFind > U mergeLocallyMinimalEdges(
+			final UndirectedGraph g,
+			final EdgeMerger merger,
+			final EdgeWeight edgeWeight,
+			final double threshold,
+			final int minimumMultiplicity,
+			final TIntHashSet nonContractingEdges,
+			final ForkJoinPool pool,
+			final U regionMapping,
+			final double maxObsoleteFraction,
+			final MergeSink merges )
+	{
+		mergeAtThreshold( g, merger, edgeWeight, threshold, minimumMultiplicity, nonContractingEdges, pool, regionMapping, maxObsoleteFraction, merges, null );
+		return regionMapping;
+	}
+
+	/**
+	 * Merge regions for each of the non-decreasing {@code thresholds} and
+	 * pass the regions after each threshold to {@code regions}. Merging at a
+	 * threshold continues from the graph and regions of the previous
+	 * threshold instead of starting over from a new graph, so regions are
+	 * nested across thresholds and each merge is done only once. Each
+	 * threshold still starts with a full pass over all edges of {@code g}
+	 * and allocates per edge state for all of them, i.e. a sweep of
+	 * {@code k} thresholds costs up to {@code k - 1} more such passes than a
+	 * single run at the largest threshold. Compaction with
+	 * {@code maxObsoleteFraction} shrinks the edges of later passes.
+	 * {@code regions} must not keep
+	 * {@code regionMapping} beyond the call, e.g.
+	 * {@link ArrayStoreUnionFind#clone()} it for a snapshot. Edge indices
+	 * in {@code merges} refer to the edges of {@code g} before the first
+	 * compaction across all thresholds.
+	 *
+	 * @return {@code regionMapping}
+	 */
+	public static < U extends UnionFind > U sweepThresholds(
+			final UndirectedGraph g,
+			final EdgeMerger merger,
+			final EdgeWeight edgeWeight,
+			final double[] thresholds,
+			final int minimumMultiplicity,
+			final TIntHashSet nonContractingEdges,
+			final ForkJoinPool pool,
+			final U regionMapping,
+			final double maxObsoleteFraction,
+			final MergeSink merges,
+			final ThresholdConsumer< U > regions )
+	{
+		for ( int i = 1; i < thresholds.length; ++i )
+			if ( !( thresholds[ i - 1 ] <= thresholds[ i ] ) )
+				throw new IllegalArgumentException( "Thresholds not sorted: " + thresholds[ i - 1 ] + " > " + thresholds[ i ] );
+
+		int[] originalIndices = null;
+		for ( final double threshold : thresholds )
+		{
+			originalIndices = mergeAtThreshold( g, merger, edgeWeight, threshold, minimumMultiplicity, nonContractingEdges, pool, regionMapping, maxObsoleteFraction, merges, originalIndices );
+			LOG.debug( "Finished threshold {} with {} live nodes.", threshold, g.nLiveNodes() );
+			regions.accept( threshold, regionMapping );
+		}
+		return regionMapping;
+	}
+
+	/**
+	 * Sweep {@code thresholds} as in
+	 * {@link #sweepThresholds(UndirectedGraph, EdgeMerger, EdgeWeight, double[], int, TIntHashSet, ForkJoinPool, UnionFind, double, MergeSink, ThresholdConsumer)}
+	 * for dense node ids {@code 0 ... g.nNodes() - 1}.
+	 *
+	 * @return lookup table from node to region for each threshold
+	 */
+	public static long[][] sweepThresholds(
+			final UndirectedGraph g,
+			final EdgeMerger merger,
+			final EdgeWeight edgeWeight,
+			final double[] thresholds,
+			final int minimumMultiplicity,
+			final TIntHashSet nonContractingEdges,
+			final ForkJoinPool pool )
+	{
+		final long[][] luts = new long[ thresholds.length ][];
+		final int[] index = { 0 };
+		sweepThresholds( g, merger, edgeWeight, thresholds, minimumMultiplicity, nonContractingEdges, pool, new ArrayStoreUnionFind( g.nNodes() ), NO_COMPACTION, ( edgeIndex, weight, from, to ) -> {}, ( threshold, regionMapping ) -> {
+			final long[] lut = new long[ g.nNodes() ];
+			for ( int node = 0; node < lut.length; ++node )
+				lut[ node ] = regionMapping.findRoot( node );
+			luts[ index[ 0 ]++ ] = lut;
+		} );
+		return luts;
+	}
+
+	public static interface ThresholdConsumer< U extends UnionFind >
+	{
+		public void accept( double threshold, U regionMapping );
+	}
+
+	/**
+	 * Merge until no locally minimal edge below {@code threshold} is left.
+	 *
+	 * @param originalIndices
+	 *            original index of each edge of {@code g} after compactions
+	 *            of a previous call, or {@code null}
+	 * @return original index of each edge of {@code g} after compactions,
+	 *         or {@code originalIndices} if no compaction took place
+	 */
+	private static int[] mergeAtThreshold(
+			final UndirectedGraph g,
+			final EdgeMerger merger,
+			final EdgeWeight edgeWeight,
+			final double threshold,
+			final int minimumMultiplicity,
+			final TIntHashSet nonContractingEdges,
+			final ForkJoinPool pool,
+			final UnionFind regionMapping,
+			final double maxObsoleteFraction,
+			final MergeSink merges,
+			int[] originalIndices )
+	{
+		final EdgeStore edges = g.edges();
+		final Edge e1 = new Edge( edges );
+		final Edge e2 = new Edge( edges );
+		final int nEdges = e1.size();
 
 //		for ( int k = 0; k < e1.size(); ++k )
 //		{
@@ -68,85 +269,313 @@ public class RegionMerging
 //			e1.weight( edgeWeight.weight( e1, counts.get( e1.from() ), counts.get( e1.to() ) ) );
 //		}
 
-		boolean changed = true;
+		// per edge state is kept across iterations and only updated for edges
+		// that were touched by the contractions of the previous iteration
+		final boolean[] localMinimum = new boolean[ nEdges ];
+		final boolean[] isInPlateau = new boolean[ nEdges ];
+		final boolean[] isNeighborOfNonContractable = new boolean[ nEdges ];
+		final boolean[] isValidPlateau = new boolean[ nEdges ];
+		final boolean[] isQueued = new boolean[ nEdges ];
+
+		// first iteration visits all edges
+		g.clearDirtyEdges();
+		final TIntArrayList staleEdges = new TIntArrayList();
+		int nObsolete = 0;
+		for ( int k = edges.nextObsolete( 0 ); k < nEdges; k = edges.nextObsolete( k + 1 ) )
+		{
+			edges.weight( k, Double.POSITIVE_INFINITY );
+			++nObsolete;
+		}
+		for ( int k = edges.nextStale( 0 ); k < nEdges; k = edges.nextStale( k + 1 ) )
+			staleEdges.add( k );
+		updateWeights( e1, edgeWeight, staleEdges.toArray(), pool );
+		final IncidentWeightMinima minima = new IncidentWeightMinima( minimumMultiplicity );
+		minima.compute( g );
+		// plateaus of the first iteration are keyed by dense edge indices,
+		// later iterations only touch few edges. Obsolete edges are skipped
+		// and are never local minima.
+		UnionFind plateausUnionFind = new ArrayStoreUnionFind( nEdges );
+		if ( pool == null )
+			findMinimaAndPlateaus( g, localMinimum, isInPlateau, isNeighborOfNonContractable, nonContractingEdges, minima, e1, e2, plateausUnionFind, threshold, minimumMultiplicity );
+		else
+			findMinimaAndPlateaus( g, localMinimum, isInPlateau, isNeighborOfNonContractable, nonContractingEdges, minima, plateausUnionFind, threshold, minimumMultiplicity, pool, PARALLEL_BLOCK_SIZE );
+		final TIntArrayList validEdges = new TIntArrayList();
+		for ( int k = edges.nextValid( 0 ); k < nEdges; k = edges.nextValid( k + 1 ) )
+			validEdges.add( k );
+		int[] candidates = validEdges.toArray();
+
+		final TIntArrayList queue = new TIntArrayList();
+		final TIntArrayList equalWeightNeighbors = new TIntArrayList();
+		final long[] connectedNodes = new long[ 2 ];
+		final TLongHashSet touchedNodes = new TLongHashSet();
+
 		int iteration = 1;
-		while ( changed )
+		while ( true )
 		{
 
-			changed = false;
+			final boolean changed = mergeCandidates( g, candidates, localMinimum, isInPlateau, isNeighborOfNonContractable, isValidPlateau, nonContractingEdges, originalIndices, e1, plateausUnionFind, regionMapping, merger, merges, minimumMultiplicity );
+			merges.flush();
+
+			LOG.debug(
+					"Finished iteration {} with {} candidate edges, {} local minima and {} plateau edges.",
+					iteration,
+					candidates.length,
+					new Stringify( () -> "" + IntStream.range( 0, localMinimum.length ).mapToObj( i -> localMinimum[ i ] ).filter( m -> m ).count() ),
+					new Stringify( () -> "" + IntStream.range( 0, localMinimum.length ).mapToObj( i -> isInPlateau[ i ] ).filter( m -> m ).count() ) );
+
+			++iteration;
 
-			for ( int k = 0; k < e1.size(); ++k )
+			if ( !changed )
+				break;
+
+			// re-weight edges touched by contract and re-test them along with
+			// all edges that share a node with them
+			final int[] dirtyEdges = g.dirtyEdges().toArray();
+			g.clearDirtyEdges();
+			queue.resetQuick();
+			touchedNodes.clear();
+			staleEdges.resetQuick();
+			for ( final int k : dirtyEdges )
 			{
 				e1.setIndex( k );
-				if ( e1.isValid() && e1.isStale() )
+				if ( e1.isObsolete() )
 				{
-					e1.weight( edgeWeight.weight( e1 ) );
-					e1.setActive();
-				}
-				else if ( e1.isObsolete() )
 					e1.weight( Double.POSITIVE_INFINITY );
+					localMinimum[ k ] = false;
+					isInPlateau[ k ] = false;
+					isNeighborOfNonContractable[ k ] = false;
+					++nObsolete;
+				}
+				else if ( e1.isStale() )
+					staleEdges.add( k );
+				// neighbors of obsolete edges need to be re-tested as well,
+				// e.g. the edges of the remaining node after contracting a
+				// node with a single edge
+				touchedNodes.add( e1.from() );
+				touchedNodes.add( e1.to() );
 			}
-			final boolean[] localMinimum = new boolean[ e1.size() ];
-			Arrays.fill( localMinimum, true );
-			final boolean[] isInPlateau = new boolean[ e1.size() ];
-			final boolean[] isNeighborOfNonContractable = new boolean[ e1.size() ];
 
-			final HashMapStoreUnionFind plateausUnionFind = new HashMapStoreUnionFind();
+			updateWeights( e1, edgeWeight, staleEdges.toArray(), pool );
 
-			findMinimaAndPlateaus( g, localMinimum, isInPlateau, isNeighborOfNonContractable, nonContractingEdges, e1, e2, plateausUnionFind, threshold, minimumMultiplicity );
-
-			final boolean[] isValidPlateau = new boolean[ e1.size() ];
-			Arrays.fill( isValidPlateau, true );
-			final TLongHashSet plateauRoots = new TLongHashSet();
+			// remove obsolete edges when they dominate scans and move the per
+			// edge state along, the queue is still empty
+			if ( maxObsoleteFraction < NO_COMPACTION && nObsolete > maxObsoleteFraction * edges.size() )
+			{
+				final int[] newIndices = g.compact();
+				final int nValid = edges.size();
+				remap( newIndices, nValid, localMinimum );
+				remap( newIndices, nValid, isInPlateau );
+				remap( newIndices, nValid, isNeighborOfNonContractable );
+				remap( newIndices, nValid, isValidPlateau );
+
+				final int[] nonContracting = nonContractingEdges.toArray();
+				nonContractingEdges.clear();
+				for ( final int k : nonContracting )
+					if ( k < newIndices.length && newIndices[ k ] >= 0 )
+						nonContractingEdges.add( newIndices[ k ] );
+
+				final int[] compactedOriginalIndices = new int[ nValid ];
+				for ( int k = 0; k < newIndices.length; ++k )
+					if ( newIndices[ k ] >= 0 )
+						compactedOriginalIndices[ newIndices[ k ] ] = originalIndices == null ? k : originalIndices[ k ];
+				originalIndices = compactedOriginalIndices;
+				nObsolete = 0;
+			}
 
-			for ( int k = 0; k < localMinimum.length; ++k )
+			// all weights are up to date, update minima of touched nodes
+			for ( final TLongIterator nodeIt = touchedNodes.iterator(); nodeIt.hasNext(); )
 			{
-				e1.setIndex( k );
-				if ( e1.isObsolete() )
-					continue;
-				final boolean isMinimum = localMinimum[ k ];
-				final boolean isPlateau = isInPlateau[ k ];
-				final boolean isContractible = !nonContractingEdges.contains( k );
-				final boolean noNonContractibleNeighbor = !isNeighborOfNonContractable[ k ];
-				if ( isMinimum && !isPlateau )
-				{
-					if ( isContractible && noNonContractibleNeighbor && e1.multiplicity() > minimumMultiplicity && mergeEdge( g, e1, k, regionMapping, merger, merges ) )
-						changed = true;
-				}
-				else if ( isPlateau )
+				final long nodeId = nodeIt.next();
+				minima.update( g, nodeId, e2 );
+				for ( final TLongIntIterator it = g.nodeEdgeIterator( nodeId ); it.hasNext(); )
 				{
-					final long root = plateausUnionFind.findRoot( k );
-					// no &&= in java
-					isValidPlateau[ ( int ) root ] &= isMinimum && isContractible && noNonContractibleNeighbor;
-					if ( !plateauRoots.contains( root ) )
-						plateauRoots.add( root );
+					it.advance();
+					enqueue( it.value(), queue, isQueued );
 				}
 			}
 
-			for ( int k = 0; k < localMinimum.length; ++k )
+			plateausUnionFind = new HashMapStoreUnionFind();
+			// plateaus may extend beyond the re-tested edges and need to be
+			// visited entirely
+			for ( int i = 0; i < queue.size(); ++i )
+			{
+				final int k = queue.get( i );
+				equalWeightNeighbors.resetQuick();
+				findMinimumAndPlateau( g, k, localMinimum, isInPlateau, isNeighborOfNonContractable, nonContractingEdges, minima, e1, e2, plateausUnionFind, threshold, minimumMultiplicity, connectedNodes, equalWeightNeighbors );
+				for ( int n = 0; n < equalWeightNeighbors.size(); ++n )
+					enqueue( equalWeightNeighbors.get( n ), queue, isQueued );
+			}
 
-				if ( isInPlateau[ k ] )
-				{
-					final long root = plateausUnionFind.findRoot( k );
-					if ( isValidPlateau[ ( int ) root ] )
-					{
-						e1.setIndex( k );
-						if ( e1.isValid() && e1.multiplicity() > minimumMultiplicity && mergeEdge( g, e1, k, regionMapping, merger, merges ) )
-							changed = true;
-					}
-				}
+			for ( int i = 0; i < queue.size(); ++i )
+				isQueued[ queue.get( i ) ] = false;
+			queue.sort();
+			candidates = queue.toArray();
 
-			LOG.debug(
-					"Finished iteration {} with {} local minima and {} plateau edges.",
-					iteration,
-					new Stringify( () -> "" + IntStream.range( 0, localMinimum.length ).mapToObj( i -> localMinimum[ i ] ).filter( m -> m ).count() ),
-					new Stringify( () -> "" + IntStream.range( 0, localMinimum.length ).mapToObj( i -> isInPlateau[ i ] ).filter( m -> m ).count() ) );
+		}
 
-			++iteration;
+		return originalIndices;
+
+	}
+
+	/**
+	 * Compute weights of {@code staleEdges} in a single batch, or in parallel
+	 * batches of {@link #PARALLEL_BLOCK_SIZE} edges in {@code pool} if not
+	 * {@code null}, and set them active.
+	 */
+	private static void updateWeights( final Edge e, final EdgeWeight edgeWeight, final int[] staleEdges, final ForkJoinPool pool )
+	{
+		final double[] weights = new double[ staleEdges.length ];
+		if ( pool == null || staleEdges.length <= PARALLEL_BLOCK_SIZE )
+			edgeWeight.weights( e, staleEdges, 0, staleEdges.length, weights );
+		else
+			pool.invoke( new WeightsTask( e.store(), edgeWeight, staleEdges, weights, 0, staleEdges.length ) );
+
+		for ( int i = 0; i < staleEdges.length; ++i )
+		{
+			e.setIndex( staleEdges[ i ] );
+			e.weight( weights[ i ] );
+			e.setActive();
 		}
+	}
 
-		return new ValuePair<>( merges, regionMapping );
+	private static class WeightsTask extends RecursiveAction
+	{
+
+		private final EdgeStore edges;
+
+		private final EdgeWeight edgeWeight;
+
+		private final int[] indices;
+
+		private final double[] weights;
+
+		private final int min;
+
+		private final int max;
+
+		public WeightsTask( final EdgeStore edges, final EdgeWeight edgeWeight, final int[] indices, final double[] weights, final int min, final int max )
+		{
+			super();
+			this.edges = edges;
+			this.edgeWeight = edgeWeight;
+			this.indices = indices;
+			this.weights = weights;
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if ( max - min > PARALLEL_BLOCK_SIZE )
+			{
+				final int mid = ( min + max ) >>> 1;
+				invokeAll(
+						new WeightsTask( edges, edgeWeight, indices, weights, min, mid ),
+						new WeightsTask( edges, edgeWeight, indices, weights, mid, max ) );
+				return;
+			}
+			edgeWeight.weights( new Edge( edges ), indices, min, max - min, weights );
+		}
+
+	}
+
+	/**
+	 * Move per edge {@code state} to the new indices of a compaction and
+	 * clear the state of all edges at {@code nValid} and beyond.
+	 */
+	private static void remap( final int[] newIndices, final int nValid, final boolean[] state )
+	{
+		for ( int k = 0; k < newIndices.length; ++k )
+			if ( newIndices[ k ] >= 0 )
+				state[ newIndices[ k ] ] = state[ k ];
+		Arrays.fill( state, nValid, newIndices.length, false );
+	}
+
+	private static void enqueue( final int k, final TIntArrayList queue, final boolean[] isQueued )
+	{
+		if ( !isQueued[ k ] )
+		{
+			isQueued[ k ] = true;
+			queue.add( k );
+		}
+	}
+
+	/**
+	 * Merge all candidate edges that are local minima or part of a valid
+	 * plateau. Candidates must be sorted and contain all members of each
+	 * plateau they intersect with.
+	 *
+	 * @return {@code true} if any edge was merged.
+	 */
+	private static boolean mergeCandidates(
+			final UndirectedGraph g,
+			final int[] candidates,
+			final boolean[] localMinimum,
+			final boolean[] isInPlateau,
+			final boolean[] isNeighborOfNonContractable,
+			final boolean[] isValidPlateau,
+			final TIntHashSet nonContractingEdges,
+			final int[] originalIndices,
+			final Edge e1,
+			final UnionFind plateausUnionFind,
+			final UnionFind regionMapping,
+			final EdgeMerger merger,
+			final MergeSink merges,
+			final int minimumMultiplicity )
+	{
+		boolean changed = false;
+
+		for ( final int k : candidates )
+			isValidPlateau[ k ] = true;
+
+		// plateaus are validated before any contraction: plateau edges that
+		// become obsolete through merging a local minimum still invalidate
+		// their plateau
+		for ( final int k : candidates )
+		{
+			if ( !isInPlateau[ k ] )
+				continue;
+			final boolean isMinimum = localMinimum[ k ];
+			final boolean isContractible = !nonContractingEdges.contains( k );
+			final boolean noNonContractibleNeighbor = !isNeighborOfNonContractable[ k ];
+			final long root = plateausUnionFind.findRoot( k );
+			// no &&= in java
+			isValidPlateau[ ( int ) root ] &= isMinimum && isContractible && noNonContractibleNeighbor;
+		}
+
+		for ( final int k : candidates )
+		{
+			e1.setIndex( k );
+			if ( e1.isObsolete() )
+				continue;
+			final boolean isMinimum = localMinimum[ k ];
+			final boolean isPlateau = isInPlateau[ k ];
+			final boolean isContractible = !nonContractingEdges.contains( k );
+			final boolean noNonContractibleNeighbor = !isNeighborOfNonContractable[ k ];
+			if ( isMinimum && !isPlateau && isContractible && noNonContractibleNeighbor && e1.multiplicity() > minimumMultiplicity && mergeEdge( g, e1, originalIndex( k, originalIndices ), regionMapping, merger, merges ) )
+				changed = true;
+		}
+
+		for ( final int k : candidates )
+
+			if ( isInPlateau[ k ] )
+			{
+				final long root = plateausUnionFind.findRoot( k );
+				if ( isValidPlateau[ ( int ) root ] )
+				{
+					e1.setIndex( k );
+					if ( e1.isValid() && e1.multiplicity() > minimumMultiplicity && mergeEdge( g, e1, originalIndex( k, originalIndices ), regionMapping, merger, merges ) )
+						changed = true;
+				}
+			}
+
+		return changed;
+	}
 
+	private static int originalIndex( final int k, final int[] originalIndices )
+	{
+		return originalIndices == null ? k : originalIndices[ k ];
 	}
 
 	public static void findMinimaAndPlateaus(
@@ -155,99 +584,330 @@ public class RegionMerging
 			final boolean[] isInPlateau,
 			final boolean[] isNeighborOfNonContractable,
 			final TIntHashSet nonConctractableEdges,
+			final IncidentWeightMinima minima,
 			final Edge e1,
 			final Edge e2,
-			final HashMapStoreUnionFind plateausUnionFind,
+			final UnionFind plateausUnionFind,
 			final double threshold,
 			final int minimumMultiplicity )
 	{
 
 		final long[] connectedNodes = new long[ 2 ];
+		final EdgeStore edges = g.edges();
+
+		for ( int k = edges.nextValid( 0 ); k < edges.size(); k = edges.nextValid( k + 1 ) )
+			findMinimumAndPlateau( g, k, localMinimum, isInPlateau, isNeighborOfNonContractable, nonConctractableEdges, minima, e1, e2, plateausUnionFind, threshold, minimumMultiplicity, connectedNodes, null );
+	}
+
+	/**
+	 * Parallel version of {@link #findMinimaAndPlateaus} that splits the edge
+	 * index range into blocks of {@code blockSize} edges and processes them
+	 * in {@code pool}. Each block uses its own {@link Edge} instances and
+	 * collects its plateau joins locally. The joins are applied to
+	 * {@code plateausUnionFind} in block order once all blocks are done, so
+	 * {@code localMinimum}, {@code isInPlateau},
+	 * {@code isNeighborOfNonContractable} and the plateaus are identical to
+	 * the sequential version.
+	 */
+	public static void findMinimaAndPlateaus(
+			final UndirectedGraph g,
+			final boolean[] localMinimum,
+			final boolean[] isInPlateau,
+			final boolean[] isNeighborOfNonContractable,
+			final TIntHashSet nonConctractableEdges,
+			final IncidentWeightMinima minima,
+			final UnionFind plateausUnionFind,
+			final double threshold,
+			final int minimumMultiplicity,
+			final ForkJoinPool pool,
+			final int blockSize )
+	{
+		final int nEdges = g.edges().size();
+		final int nBlocks = ( nEdges + blockSize - 1 ) / blockSize;
+		final TIntArrayList[] plateauJoins = new TIntArrayList[ nBlocks ];
+
+		pool.invoke( new MinimaAndPlateausTask(
+				0,
+				nBlocks,
+				blockSize,
+				nEdges,
+				g,
+				localMinimum,
+				isInPlateau,
+				isNeighborOfNonContractable,
+				nonConctractableEdges,
+				minima,
+				plateauJoins,
+				threshold,
+				minimumMultiplicity ) );
+
+		for ( final TIntArrayList joins : plateauJoins )
+			for ( int i = 0; i < joins.size(); i += 2 )
+				plateausUnionFind.join( plateausUnionFind.findRoot( joins.get( i ) ), plateausUnionFind.findRoot( joins.get( i + 1 ) ) );
+	}
+
+	private static class MinimaAndPlateausTask extends RecursiveAction
+	{
 
-		for ( int k = 0; k < e1.size(); ++k )
+		private final int blockMin;
+
+		private final int blockMax;
+
+		private final int blockSize;
+
+		private final int nEdges;
+
+		private final UndirectedGraph g;
+
+		private final boolean[] localMinimum;
+
+		private final boolean[] isInPlateau;
+
+		private final boolean[] isNeighborOfNonContractable;
+
+		private final TIntHashSet nonConctractableEdges;
+
+		private final IncidentWeightMinima minima;
+
+		private final TIntArrayList[] plateauJoins;
+
+		private final double threshold;
+
+		private final int minimumMultiplicity;
+
+		public MinimaAndPlateausTask(
+				final int blockMin,
+				final int blockMax,
+				final int blockSize,
+				final int nEdges,
+				final UndirectedGraph g,
+				final boolean[] localMinimum,
+				final boolean[] isInPlateau,
+				final boolean[] isNeighborOfNonContractable,
+				final TIntHashSet nonConctractableEdges,
+				final IncidentWeightMinima minima,
+				final TIntArrayList[] plateauJoins,
+				final double threshold,
+				final int minimumMultiplicity )
 		{
-			e1.setIndex( k );
-			if ( e1.isObsolete() )
+			super();
+			this.blockMin = blockMin;
+			this.blockMax = blockMax;
+			this.blockSize = blockSize;
+			this.nEdges = nEdges;
+			this.g = g;
+			this.localMinimum = localMinimum;
+			this.isInPlateau = isInPlateau;
+			this.isNeighborOfNonContractable = isNeighborOfNonContractable;
+			this.nonConctractableEdges = nonConctractableEdges;
+			this.minima = minima;
+			this.plateauJoins = plateauJoins;
+			this.threshold = threshold;
+			this.minimumMultiplicity = minimumMultiplicity;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if ( blockMax - blockMin > 1 )
 			{
-				localMinimum[ k ] = false;
-				continue;
+				final int blockMid = ( blockMin + blockMax ) >>> 1;
+				invokeAll(
+						new MinimaAndPlateausTask( blockMin, blockMid, blockSize, nEdges, g, localMinimum, isInPlateau, isNeighborOfNonContractable, nonConctractableEdges, minima, plateauJoins, threshold, minimumMultiplicity ),
+						new MinimaAndPlateausTask( blockMid, blockMax, blockSize, nEdges, g, localMinimum, isInPlateau, isNeighborOfNonContractable, nonConctractableEdges, minima, plateauJoins, threshold, minimumMultiplicity ) );
+				return;
 			}
 
+			if ( blockMin >= blockMax )
+				return;
+
+			final Edge e1 = new Edge( g.edges() );
+			final Edge e2 = new Edge( g.edges() );
+			final long[] connectedNodes = new long[ 2 ];
+			final TIntArrayList joins = new TIntArrayList();
+			final int min = blockMin * blockSize;
+			final int max = Math.min( min + blockSize, nEdges );
+			for ( int k = g.edges().nextValid( min ); k < max; k = g.edges().nextValid( k + 1 ) )
+				findMinimumAndPlateau( g, k, localMinimum, isInPlateau, isNeighborOfNonContractable, nonConctractableEdges, minima, e1, e2, null, joins, threshold, minimumMultiplicity, connectedNodes, null );
+			plateauJoins[ blockMin ] = joins;
+		}
+
+	}
+
+	/**
+	 * Test if edge {@code k} is a local minimum or part of a plateau and join
+	 * it with its plateau neighbors in {@code plateausUnionFind}.
+	 *
+	 * @param equalWeightNeighbors
+	 *            if not {@code null}, all neighbors with the same weight as
+	 *            edge {@code k} are added.
+	 */
+	public static void findMinimumAndPlateau(
+			final UndirectedGraph g,
+			final int k,
+			final boolean[] localMinimum,
+			final boolean[] isInPlateau,
+			final boolean[] isNeighborOfNonContractable,
+			final TIntHashSet nonConctractableEdges,
+			final IncidentWeightMinima minima,
+			final Edge e1,
+			final Edge e2,
+			final UnionFind plateausUnionFind,
+			final double threshold,
+			final int minimumMultiplicity,
+			final long[] connectedNodes,
+			final TIntArrayList equalWeightNeighbors )
+	{
+		findMinimumAndPlateau( g, k, localMinimum, isInPlateau, isNeighborOfNonContractable, nonConctractableEdges, minima, e1, e2, plateausUnionFind, null, threshold, minimumMultiplicity, connectedNodes, equalWeightNeighbors );
+	}
+
+	/**
+	 * Plateau joins go into {@code plateausUnionFind} if it is not
+	 * {@code null}, otherwise they are appended to {@code plateauJoins} as
+	 * pairs of edge indices.
+	 */
+	private static void findMinimumAndPlateau(
+			final UndirectedGraph g,
+			final int k,
+			final boolean[] localMinimum,
+			final boolean[] isInPlateau,
+			final boolean[] isNeighborOfNonContractable,
+			final TIntHashSet nonConctractableEdges,
+			final IncidentWeightMinima minima,
+			final Edge e1,
+			final Edge e2,
+			final UnionFind plateausUnionFind,
+			final TIntArrayList plateauJoins,
+			final double threshold,
+			final int minimumMultiplicity,
+			final long[] connectedNodes,
+			final TIntArrayList equalWeightNeighbors )
+	{
+		e1.setIndex( k );
+		isInPlateau[ k ] = false;
+		isNeighborOfNonContractable[ k ] = false;
+		if ( e1.isObsolete() )
+		{
+			localMinimum[ k ] = false;
+			return;
+		}
+
+		if ( plateausUnionFind != null )
 			plateausUnionFind.findRoot( k );
 
-			final double w = e1.weight();
-			if ( w > threshold )
-			{
-				localMinimum[ k ] = false;
-				continue;
-			}
-			connectedNodes[ 0 ] = e1.from();
-			connectedNodes[ 1 ] = e1.to();
+		final double w = e1.weight();
+		if ( w > threshold )
+		{
+			localMinimum[ k ] = false;
+			return;
+		}
+
+		// edges that are dominated at either node are not local minima and
+		// any plateau that they are part of is invalidated by a neighbor
+		// that is not a local minimum either, no need to visit neighbors.
+		// That neighbor may become obsolete in the same pass, see
+		// mergeCandidates.
+		if ( minima != null && e1.multiplicity() >= minimumMultiplicity && minima.isDominated( e1.from(), e1.to(), w ) )
+		{
+			localMinimum[ k ] = false;
+			return;
+		}
 
-			boolean isPlateau = false;
+		connectedNodes[ 0 ] = e1.from();
+		connectedNodes[ 1 ] = e1.to();
 
-			double minimumValue = Double.MAX_VALUE;
+		boolean isPlateau = false;
 
-			for ( final long nodeId : connectedNodes )
+		double minimumValue = Double.MAX_VALUE;
+
+		for ( final long nodeId : connectedNodes )
+		{
+			for ( final TLongIntIterator it = g.nodeEdgeIterator( nodeId ); it.hasNext(); )
 			{
-				final TLongIntHashMap neighboringEdges = g.nodeEdgeMap().get( nodeId );
-				for ( final TLongIntIterator it = neighboringEdges.iterator(); it.hasNext(); )
-				{
-					it.advance();
-					final int otherEdgeIndex = it.value();
+				it.advance();
+				final int otherEdgeIndex = it.value();
 
-					if ( otherEdgeIndex == k )
-						continue;
+				if ( otherEdgeIndex == k )
+					continue;
 
-					if ( nodeId == it.key() )
-						continue;
+				if ( nodeId == it.key() )
+					continue;
 
-					e2.setIndex( otherEdgeIndex );
-					if ( e2.multiplicity() < minimumMultiplicity )
-						continue;
+				e2.setIndex( otherEdgeIndex );
 
-					final double w2 = e2.weight();
+				final double w2 = e2.weight();
 
-					minimumValue = Math.min( w2, minimumValue );
+				if ( equalWeightNeighbors != null && w == w2 )
+					equalWeightNeighbors.add( otherEdgeIndex );
 
-					if ( nonConctractableEdges.contains( otherEdgeIndex ) )
-						isNeighborOfNonContractable[ k ] = true;
+				if ( e2.multiplicity() < minimumMultiplicity )
+					continue;
 
-					if ( w == w2 )
-					{
-						isPlateau = true;
+				minimumValue = Math.min( w2, minimumValue );
+
+				if ( nonConctractableEdges.contains( otherEdgeIndex ) )
+					isNeighborOfNonContractable[ k ] = true;
+
+				if ( w == w2 )
+				{
+					isPlateau = true;
+					if ( plateausUnionFind != null )
 						plateausUnionFind.join( plateausUnionFind.findRoot( k ), plateausUnionFind.findRoot( otherEdgeIndex ) );
+					else
+					{
+						plateauJoins.add( k );
+						plateauJoins.add( otherEdgeIndex );
 					}
-
 				}
-			}
 
-			localMinimum[ k ] = w <= minimumValue;
-			isInPlateau[ k ] = isPlateau;
+			}
 		}
+
+		localMinimum[ k ] = w <= minimumValue;
+		isInPlateau[ k ] = isPlateau;
 	}
 
 	public static boolean mergeEdge(
 			final UndirectedGraph g,
 			final Edge e,
 			final long index,
-			final HashMapStoreUnionFind regionMapping,
+			final UnionFind regionMapping,
 			final EdgeMerger merger,
 			final TLongArrayList merges )
 	{
-		final long r1 = regionMapping.findRoot( e.from() );
-		final long r2 = regionMapping.findRoot( e.to() );
+		return mergeEdge( g, e, index, regionMapping, merger, MergeSink.of( merges ) );
+	}
+
+	/**
+	 * Merge the regions of {@code e} if they differ. Regions are joined by
+	 * {@link UnionFind#join(long, long)} and the edges of the node in the
+	 * region of the new root take precedence in
+	 * {@link UndirectedGraph#contract}, independent of which node remains in
+	 * {@code g}. Nodes of {@code g} are therefore not necessarily roots in
+	 * {@code regionMapping}.
+	 *
+	 * @return {@code true} if the regions were merged
+	 */
+	public static boolean mergeEdge(
+			final UndirectedGraph g,
+			final Edge e,
+			final long index,
+			final UnionFind regionMapping,
+			final EdgeMerger merger,
+			final MergeSink merges )
+	{
+		final long from = e.from();
+		final long to = e.to();
+		final long r1 = regionMapping.findRoot( from );
+		final long r2 = regionMapping.findRoot( to );
 		if ( r1 == r2 )
 			return false;
 
 		final long newNode = regionMapping.join( r1, r2 );
 
-		merges.add( index );
-		merges.add( Double.doubleToRawLongBits( e.weight() ) );
-		merges.add( r1 );
-		merges.add( r2 );
+		merges.add( index, e.weight(), r1, r2 );
 
-		g.contract( e, newNode, r1, r2, merger );
+		g.contract( e, newNode == r1 ? from : to, from, to, merger );
 		return true;
 	}
 
@@ -0,0 +1,174 @@
+package org.janelia.saalfeldlab.util.heap;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap over the items {@code 0 ... capacity - 1} with a
+ * {@code double} key per item. Every item is contained at most once and its
+ * position is tracked, so keys can be updated and items removed in
+ * O(log size). Ties are broken by item index, lower indices first.
+ */
+public class IndexedDoubleMinHeap
+{
+
+	private final double[] keys;
+
+	private final int[] heap;
+
+	private final int[] positions;
+
+	private int size;
+
+	public IndexedDoubleMinHeap( final int capacity )
+	{
+		super();
+		this.keys = new double[ capacity ];
+		this.heap = new int[ capacity ];
+		this.positions = new int[ capacity ];
+		Arrays.fill( this.positions, -1 );
+		this.size = 0;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public int capacity()
+	{
+		return positions.length;
+	}
+
+	public boolean contains( final int item )
+	{
+		return positions[ item ] >= 0;
+	}
+
+	public double key( final int item )
+	{
+		return keys[ item ];
+	}
+
+	/**
+	 * Insert {@code item} or update its key if it is already contained.
+	 */
+	public void push( final int item, final double key )
+	{
+		final int position = positions[ item ];
+		keys[ item ] = key;
+		if ( position < 0 )
+		{
+			heap[ size ] = item;
+			positions[ item ] = size;
+			siftUp( size );
+			++size;
+		}
+		else
+		{
+			siftUp( position );
+			siftDown( positions[ item ] );
+		}
+	}
+
+	public int peek()
+	{
+		assert size > 0: "Heap is empty!";
+		return heap[ 0 ];
+	}
+
+	public double peekKey()
+	{
+		return keys[ peek() ];
+	}
+
+	public int pop()
+	{
+		final int item = peek();
+		removeAt( 0 );
+		return item;
+	}
+
+	public boolean remove( final int item )
+	{
+		final int position = positions[ item ];
+		if ( position < 0 )
+			return false;
+		removeAt( position );
+		return true;
+	}
+
+	public void clear()
+	{
+		for ( int i = 0; i < size; ++i )
+			positions[ heap[ i ] ] = -1;
+		size = 0;
+	}
+
+	private void removeAt( final int position )
+	{
+		final int item = heap[ position ];
+		positions[ item ] = -1;
+		--size;
+		if ( position == size )
+			return;
+		final int last = heap[ size ];
+		heap[ position ] = last;
+		positions[ last ] = position;
+		siftUp( position );
+		siftDown( positions[ last ] );
+	}
+
+	private boolean less( final int item1, final int item2 )
+	{
+		final double k1 = keys[ item1 ];
+		final double k2 = keys[ item2 ];
+		return k1 < k2 || k1 == k2 && item1 < item2;
+	}
+
+	private void siftUp( int position )
+	{
+		final int item = heap[ position ];
+		while ( position > 0 )
+		{
+			final int parentPosition = ( position - 1 ) >>> 1;
+			final int parent = heap[ parentPosition ];
+			if ( !less( item, parent ) )
+				break;
+			heap[ position ] = parent;
+			positions[ parent ] = position;
+			position = parentPosition;
+		}
+		heap[ position ] = item;
+		positions[ item ] = position;
+	}
+
+	private void siftDown( int position )
+	{
+		final int item = heap[ position ];
+		final int half = size >>> 1;
+		while ( position < half )
+		{
+			int childPosition = 2 * position + 1;
+			int child = heap[ childPosition ];
+			final int rightPosition = childPosition + 1;
+			if ( rightPosition < size && less( heap[ rightPosition ], child ) )
+			{
+				childPosition = rightPosition;
+				child = heap[ childPosition ];
+			}
+			if ( !less( child, item ) )
+				break;
+			heap[ position ] = child;
+			positions[ child ] = position;
+			position = childPosition;
+		}
+		heap[ position ] = item;
+		positions[ item ] = position;
+	}
+
+}
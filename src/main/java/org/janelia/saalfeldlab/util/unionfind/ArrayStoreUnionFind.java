@@ -0,0 +1,134 @@
+package org.janelia.saalfeldlab.util.unionfind;
+
+import java.util.Arrays;
+
+/**
+ * {@link UnionFind} for dense ids {@code 0 ... size() - 1} that keeps parents
+ * and ranks in a {@code long[]} and a {@code byte[]} and uses path halving in
+ * {@link #findRoot}. Ids beyond {@link #size()} grow the store and all ids in
+ * between are added as singleton sets. {@link #join} picks the same
+ * representative as {@link HashMapStoreUnionFind#join}.
+ */
+public class ArrayStoreUnionFind implements UnionFind
+{
+
+	private long[] parents;
+
+	private byte[] ranks;
+
+	private int size;
+
+	private int nSets;
+
+	public ArrayStoreUnionFind()
+	{
+		this( 0 );
+	}
+
+	public ArrayStoreUnionFind( final int size )
+	{
+		this.parents = new long[ size ];
+		this.ranks = new byte[ size ];
+		this.size = size;
+		this.nSets = size;
+		for ( int i = 0; i < size; ++i )
+			this.parents[ i ] = i;
+	}
+
+	public ArrayStoreUnionFind( final long[] parents, final byte[] ranks, final int nSets )
+	{
+		assert parents.length == ranks.length;
+		this.parents = parents;
+		this.ranks = ranks;
+		this.size = parents.length;
+		this.nSets = nSets;
+	}
+
+	@Override
+	public long findRoot( final long id )
+	{
+		ensureSize( id );
+
+		int index = ( int ) id;
+		long parent = parents[ index ];
+		while ( parent != index )
+		{
+			final long grandParent = parents[ ( int ) parent ];
+			parents[ index ] = grandParent;
+			index = ( int ) grandParent;
+			parent = parents[ index ];
+		}
+
+		return index;
+	}
+
+	@Override
+	public long join( final long id1, final long id2 )
+	{
+		ensureSize( Math.max( id1, id2 ) );
+
+		if ( id1 == id2 )
+			return id1;
+
+		--nSets;
+
+		final int i1 = ( int ) id1;
+		final int i2 = ( int ) id2;
+		final byte r1 = ranks[ i1 ];
+		final byte r2 = ranks[ i2 ];
+
+		if ( r1 < r2 )
+		{
+			parents[ i1 ] = id2;
+			return id2;
+		}
+
+		else
+		{
+			parents[ i2 ] = id1;
+			if ( r1 == r2 )
+				ranks[ i1 ] = ( byte ) ( r1 + 1 );
+			return id1;
+		}
+
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public int setCount()
+	{
+		return nSets;
+	}
+
+	@Override
+	public ArrayStoreUnionFind clone()
+	{
+		return new ArrayStoreUnionFind( Arrays.copyOf( parents, size ), Arrays.copyOf( ranks, size ), nSets );
+	}
+
+	private void ensureSize( final long id )
+	{
+		if ( id < size )
+			return;
+
+		assert id < Integer.MAX_VALUE: "Id exceeds capacity of array store: " + id;
+
+		final int newSize = ( int ) id + 1;
+		if ( newSize > parents.length )
+		{
+			final int capacity = ( int ) Math.min( Math.max( newSize, 2l * parents.length ), Integer.MAX_VALUE - 8 );
+			parents = Arrays.copyOf( parents, capacity );
+			ranks = Arrays.copyOf( ranks, capacity );
+		}
+		for ( int i = size; i < newSize; ++i )
+			parents[ i ] = i;
+		nSets += newSize - size;
+		size = newSize;
+	}
+
+}
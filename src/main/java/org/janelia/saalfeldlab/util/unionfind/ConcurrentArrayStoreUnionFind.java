@@ -0,0 +1,111 @@
+package org.janelia.saalfeldlab.util.unionfind;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free {@link UnionFind} for a fixed number of dense ids
+ * {@code 0 ... size() - 1} that can be shared between threads. Parent and
+ * rank of each id are packed into a single entry of an
+ * {@link AtomicLongArray}: {@link #findRoot} uses path splitting through
+ * compare-and-set and {@link #join} links roots by compare-and-set, retrying
+ * if either root changed concurrently.
+ *
+ * Unlike the sequential implementations, {@link #join} accepts arbitrary ids,
+ * not only roots, and breaks rank ties by the smaller id, independent of
+ * argument order, so the representative of a joined set may differ from
+ * {@link HashMapStoreUnionFind} while the sets are the same. Ids outside of
+ * {@code 0 ... size() - 1} are not supported.
+ */
+public class ConcurrentArrayStoreUnionFind implements UnionFind
+{
+
+	private static final int RANK_SHIFT = 56;
+
+	private static final long PARENT_MASK = ( 1l << RANK_SHIFT ) - 1;
+
+	private static final long RANK_INCREMENT = 1l << RANK_SHIFT;
+
+	private final AtomicLongArray parents;
+
+	private final AtomicInteger nSets;
+
+	public ConcurrentArrayStoreUnionFind( final int size )
+	{
+		this.parents = new AtomicLongArray( size );
+		this.nSets = new AtomicInteger( size );
+		for ( int i = 0; i < size; ++i )
+			this.parents.set( i, i );
+	}
+
+	@Override
+	public long findRoot( final long id )
+	{
+		int current = ( int ) id;
+		while ( true )
+		{
+			final long entry = parents.get( current );
+			final int parent = ( int ) ( entry & PARENT_MASK );
+			if ( parent == current )
+				return current;
+
+			final int grandParent = ( int ) ( parents.get( parent ) & PARENT_MASK );
+			// path splitting: point to grand parent unless parent changed in
+			// the mean time
+			if ( grandParent != parent )
+				parents.compareAndSet( current, entry, entry & ~PARENT_MASK | grandParent );
+			current = parent;
+		}
+	}
+
+	@Override
+	public long join( final long id1, final long id2 )
+	{
+		while ( true )
+		{
+			final int r1 = ( int ) findRoot( id1 );
+			final int r2 = ( int ) findRoot( id2 );
+			if ( r1 == r2 )
+				return r1;
+
+			final long entry1 = parents.get( r1 );
+			final long entry2 = parents.get( r2 );
+			// roots changed after findRoot
+			if ( ( entry1 & PARENT_MASK ) != r1 || ( entry2 & PARENT_MASK ) != r2 )
+				continue;
+
+			final long rank1 = entry1 >>> RANK_SHIFT;
+			final long rank2 = entry2 >>> RANK_SHIFT;
+
+			// total order of (rank, id) prevents cycles between concurrent
+			// joins
+			final boolean keepFirst = rank1 > rank2 || rank1 == rank2 && r1 < r2;
+			final int root = keepFirst ? r1 : r2;
+			final int child = keepFirst ? r2 : r1;
+			final long rootEntry = keepFirst ? entry1 : entry2;
+			final long childEntry = keepFirst ? entry2 : entry1;
+
+			if ( parents.compareAndSet( child, childEntry, childEntry & ~PARENT_MASK | root ) )
+			{
+				// ranks are a heuristic, no need to retry
+				if ( rank1 == rank2 )
+					parents.compareAndSet( root, rootEntry, rootEntry + RANK_INCREMENT );
+				nSets.decrementAndGet();
+				return root;
+			}
+		}
+	}
+
+	@Override
+	public int size()
+	{
+		return parents.length();
+	}
+
+	@Override
+	public int setCount()
+	{
+		return nSets.get();
+	}
+
+}
@@ -2,7 +2,7 @@ package org.janelia.saalfeldlab.util.unionfind;
 
 import gnu.trove.map.hash.TLongLongHashMap;
 
-public class HashMapStoreUnionFind
+public class HashMapStoreUnionFind implements UnionFind
 {
 	private final TLongLongHashMap parents;
 
@@ -33,6 +33,7 @@ public class HashMapStoreUnionFind
 		this.nSets = nSets;
 	}
 
+	@Override
 	public long findRoot( final long id )
 	{
 
@@ -65,6 +66,7 @@ public class HashMapStoreUnionFind
 
 	}
 
+	@Override
 	public long join( final long id1, final long id2 )
 	{
 
@@ -107,11 +109,13 @@ public class HashMapStoreUnionFind
 
 	}
 
+	@Override
 	public int size()
 	{
 		return parents.size();
 	}
 
+	@Override
 	public int setCount()
 	{
 		return nSets;
@@ -0,0 +1,23 @@
+package org.janelia.saalfeldlab.util.unionfind;
+
+public interface UnionFind
+{
+
+	/**
+	 * Find the representative of the set that contains {@code id}. Unknown
+	 * ids are added as singleton sets.
+	 */
+	public long findRoot( long id );
+
+	/**
+	 * Join the sets represented by the roots {@code id1} and {@code id2}.
+	 *
+	 * @return representative of the joined set.
+	 */
+	public long join( long id1, long id2 );
+
+	public int size();
+
+	public int setCount();
+
+}
@@ -0,0 +1,165 @@
+package org.janelia.saalfeldlab.graph;
+
+import java.util.Random;
+
+import org.janelia.saalfeldlab.graph.edge.ColumnarEdgeStore;
+import org.janelia.saalfeldlab.graph.edge.Edge;
+import org.janelia.saalfeldlab.graph.edge.EdgeMerger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+public class UndirectedGraphTest
+{
+
+	@Test
+	public void testAdjacency()
+	{
+		final Random rng = new Random( 100 );
+		final int nNodes = 100;
+		final EdgeMerger merger = new EdgeMerger.MIN_AFFINITY_MERGER();
+		final ColumnarEdgeStore store = new ColumnarEdgeStore( merger.dataSize() );
+		final Edge e = new Edge( store );
+		for ( int i = 0; i < 5 * nNodes; ++i )
+		{
+			final int from = rng.nextInt( nNodes );
+			final int to = rng.nextInt( nNodes );
+			if ( from != to )
+				e.add( Double.NaN, rng.nextDouble(), from, to, 1 );
+		}
+
+		// expected adjacency: first edge for each pair of nodes
+		final TLongIntHashMap[] expected = new TLongIntHashMap[ nNodes ];
+		for ( int n = 0; n < nNodes; ++n )
+			expected[ n ] = new TLongIntHashMap();
+		final double[] expectedAffinities = new double[ e.size() ];
+		for ( int i = 0; i < e.size(); ++i )
+		{
+			e.setIndex( i );
+			final int from = ( int ) e.from();
+			final int to = ( int ) e.to();
+			if ( expected[ from ].contains( to ) )
+			{
+				final int first = expected[ from ].get( to );
+				expectedAffinities[ first ] = Math.min( expectedAffinities[ first ], e.affinity() );
+			}
+			else
+			{
+				expected[ from ].put( to, i );
+				expected[ to ].put( from, i );
+				expectedAffinities[ i ] = e.affinity();
+			}
+		}
+
+		final UndirectedGraph g = new UndirectedGraph( nNodes, store, merger );
+		Assert.assertEquals( nNodes, g.nNodes() );
+		for ( int n = 0; n < nNodes; ++n )
+		{
+			Assert.assertEquals( expected[ n ].size(), g.adjacency().degree( n ) );
+			long previous = -1;
+			for ( final TLongIntIterator it = g.nodeEdgeIterator( n ); it.hasNext(); )
+			{
+				it.advance();
+				Assert.assertTrue( it.key() > previous );
+				previous = it.key();
+				Assert.assertEquals( expected[ n ].get( it.key() ), it.value() );
+				Assert.assertEquals( it.value(), g.edgeIndex( n, it.key() ) );
+				e.setIndex( it.value() );
+				Assert.assertTrue( e.isValid() );
+				Assert.assertEquals( expectedAffinities[ it.value() ], e.affinity(), 0.0 );
+			}
+		}
+
+		for ( int i = 0; i < e.size(); ++i )
+		{
+			e.setIndex( i );
+			Assert.assertEquals( expected[ ( int ) e.from() ].get( e.to() ) == i, e.isValid() );
+		}
+	}
+
+	@Test
+	public void testContract()
+	{
+		final EdgeMerger merger = new EdgeMerger.MIN_AFFINITY_MERGER();
+		final ColumnarEdgeStore store = new ColumnarEdgeStore( merger.dataSize() );
+		final Edge e = new Edge( store );
+		e.add( Double.NaN, 0.5, 0, 1, 1 );
+		e.add( Double.NaN, 0.3, 0, 2, 1 );
+		e.add( Double.NaN, 0.1, 1, 2, 1 );
+		e.add( Double.NaN, 0.4, 1, 3, 1 );
+
+		final UndirectedGraph g = new UndirectedGraph( 4, store, merger );
+		e.setIndex( 0 );
+		// 1 has the larger adjacency and remains, the edge of 0 to 2 survives
+		Assert.assertEquals( 1, g.contract( e, 0, 0, 1, merger ) );
+
+		Assert.assertEquals( 3, g.edgeIndex( 1, 3 ) );
+		Assert.assertEquals( -1, g.edgeIndex( 1, 0 ) );
+		Assert.assertEquals( 1, g.edgeIndex( 1, 2 ) );
+		Assert.assertEquals( 1, g.edgeIndex( 2, 1 ) );
+		Assert.assertEquals( 3, g.edgeIndex( 3, 1 ) );
+		Assert.assertEquals( -1, g.edgeIndex( 2, 0 ) );
+		Assert.assertEquals( -1, g.edgeIndex( 3, 0 ) );
+		Assert.assertFalse( g.nodeEdgeIterator( 0 ).hasNext() );
+		Assert.assertEquals( 4, g.nNodes() );
+		Assert.assertEquals( 3, g.nLiveNodes() );
+
+		e.setIndex( 1 );
+		Assert.assertEquals( 0.1, e.affinity(), 0.0 );
+		Assert.assertTrue( e.isValid() && e.isStale() );
+		Assert.assertEquals( 1, e.from() );
+		Assert.assertEquals( 2, e.to() );
+		e.setIndex( 2 );
+		Assert.assertTrue( e.isObsolete() );
+		// edges of the remaining node point away from the contracted node, too
+		e.setIndex( 3 );
+		Assert.assertEquals( 1, e.from() );
+		Assert.assertEquals( 3, e.to() );
+
+		Assert.assertEquals( 1, g.contract( e, 3, 1, 3, merger ) );
+		Assert.assertEquals( 2, g.nLiveNodes() );
+		Assert.assertFalse( g.nodeEdgeIterator( 3 ).hasNext() );
+		Assert.assertEquals( 1, g.edgeIndex( 1, 2 ) );
+		Assert.assertEquals( 1, g.edgeIndex( 2, 1 ) );
+	}
+
+	@Test
+	@SuppressWarnings( "deprecation" )
+	public void testNodeEdgeMap()
+	{
+		final EdgeMerger merger = new EdgeMerger.MIN_AFFINITY_MERGER();
+		final ColumnarEdgeStore store = new ColumnarEdgeStore( merger.dataSize() );
+		final Edge e = new Edge( store );
+		e.add( Double.NaN, 0.5, 0, 1, 1 );
+		e.add( Double.NaN, 0.3, 0, 2, 1 );
+		e.add( Double.NaN, 0.1, 1, 2, 1 );
+		e.add( Double.NaN, 0.4, 1, 3, 1 );
+
+		final UndirectedGraph g = new UndirectedGraph( 5, store, merger );
+		e.setIndex( 0 );
+		g.contract( e, 0, 0, 1, merger );
+
+		// map of all live nodes, including nodes without neighbors
+		final TLongObjectHashMap< TLongIntHashMap > nodeEdgeMap = g.nodeEdgeMap();
+		Assert.assertEquals( g.nLiveNodes(), nodeEdgeMap.size() );
+		Assert.assertFalse( nodeEdgeMap.containsKey( 0 ) );
+		Assert.assertTrue( nodeEdgeMap.get( 4 ).isEmpty() );
+		for ( final long node : nodeEdgeMap.keys() )
+		{
+			Assert.assertEquals( g.degree( node ), nodeEdgeMap.get( node ).size() );
+			for ( final TLongIntIterator it = g.nodeEdgeIterator( node ); it.hasNext(); )
+			{
+				it.advance();
+				Assert.assertEquals( it.value(), nodeEdgeMap.get( node ).get( it.key() ) );
+			}
+		}
+
+		// changes to the map change the graph
+		nodeEdgeMap.get( 2 ).remove( 1 );
+		Assert.assertEquals( -1, g.edgeIndex( 2, 1 ) );
+	}
+
+}
@@ -0,0 +1,77 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.util.stream.DoubleStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EdgeCreatorTest
+{
+
+	@Test
+	public void testAffinityHistogram()
+	{
+		final EdgeCreator creator = new EdgeCreator.AffinityHistogram( 4, 0.0, 1.0 );
+		final Edge e = new Edge( new ColumnarEdgeStore( creator.dataSize() ) );
+		final double[] affinities = { 0.1, 0.3, 0.6, 1.0 };
+		final long[] from = { 0, 1, 2, 3 };
+		final long[] to = { 1, 2, 3, 4 };
+		final long[] multiplicities = { 1, 1, 2, 1 };
+
+		Assert.assertEquals( 0, e.addAll( null, affinities, from, to, multiplicities, 0, 2, creator ) );
+		Assert.assertEquals( 2, e.addAll( null, affinities, from, to, multiplicities, 2, 2, creator ) );
+		Assert.assertEquals( 4, e.size() );
+
+		final int[] expectedBins = { 0, 1, 2, 3 };
+		for ( int k = 0; k < e.size(); ++k )
+		{
+			e.setIndex( k );
+			Assert.assertTrue( Double.isNaN( e.weight() ) );
+			Assert.assertEquals( affinities[ k ], e.affinity(), 0.0 );
+			Assert.assertEquals( from[ k ], e.from() );
+			Assert.assertEquals( to[ k ], e.to() );
+			Assert.assertEquals( multiplicities[ k ], e.multiplicity() );
+			Assert.assertTrue( e.isValid() && e.isStale() );
+			Assert.assertEquals( 1, Edge.dtl( e.getData( 0 ) ) );
+			for ( int bin = 0; bin < 4; ++bin )
+				Assert.assertEquals( bin == expectedBins[ k ] ? 1 : 0, Edge.dtl( e.getData( bin + 1 ) ) );
+		}
+	}
+
+	@Test
+	public void testComposedCreator()
+	{
+		final EdgeCreator.DataStreamCreator constant = new EdgeCreator.DataStreamCreator()
+		{
+
+			@Override
+			public DoubleStream createData( final double weight, final double affinity, final long from, final long to, final long multiplicity )
+			{
+				return DoubleStream.of( affinity, multiplicity );
+			}
+
+			@Override
+			public int dataSize()
+			{
+				return 2;
+			}
+		};
+		final EdgeCreator creator = new EdgeCreator.ComposedCreator( new EdgeCreator.AffinityHistogram( 2, 0.0, 1.0 ), constant );
+		Assert.assertEquals( 5, creator.dataSize() );
+
+		final Edge e = new Edge( new InterleavedEdgeStore( creator.dataSize() ) );
+		final int index = creator.create( e, Double.NaN, 0.75, 3, 4, 2 );
+		Assert.assertEquals( index, e.index() );
+		Assert.assertEquals( 1, Edge.dtl( e.getData( 0 ) ) );
+		Assert.assertEquals( 0, Edge.dtl( e.getData( 1 ) ) );
+		Assert.assertEquals( 1, Edge.dtl( e.getData( 2 ) ) );
+		Assert.assertEquals( 0.75, e.getData( 3 ), 0.0 );
+		Assert.assertEquals( 2.0, e.getData( 4 ), 0.0 );
+
+		final int copy = e.add( e );
+		e.setIndex( copy );
+		for ( int i = 0; i < creator.dataSize(); ++i )
+			Assert.assertEquals( Edge.dtl( e.store().getData( index, i ) ), Edge.dtl( e.getData( i ) ) );
+	}
+
+}
@@ -0,0 +1,200 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EdgeDataLayoutTest
+{
+
+	@Test
+	public void testSameAsSeparateAccumulators()
+	{
+		final Random rng = new Random( 100 );
+		final int nEdges = 100;
+		final int nBins = 16;
+		final QuantileSketch sketch = new QuantileSketch( 8 );
+
+		final EdgeDataLayout layout = new EdgeDataLayout()
+				.add( "affinity", new EdgeCreator.NoDataSerializableCreator(), new EdgeMerger.AVG_AFFINITY_MERGER() )
+				.add( "histogram", new EdgeCreator.AffinityHistogram( nBins, 0.0, 1.0 ), new EdgeMerger.MEDIAN_AFFINITY_MERGER( nBins ) )
+				.add( "sketch", new EdgeCreator.AffinitySketch( sketch ), new EdgeMerger.QUANTILE_SKETCH_MERGER( sketch ) );
+		Assert.assertEquals( nBins + 1 + sketch.dataSize(), layout.dataSize() );
+		Assert.assertEquals( 0, layout.offset( "histogram" ) );
+		Assert.assertEquals( nBins + 1, layout.offset( "sketch" ) );
+
+		final EdgeCreator creator = layout.creator();
+		final EdgeMerger merger = layout.merger();
+		final EdgeWeight histogramWeight = layout.weight( "histogram", new EdgeWeight.MedianAffinityWeight( nBins, 0.0, 1.0 ) );
+		final EdgeWeight sketchWeight = layout.weight( "sketch", new EdgeWeight.SketchMedianAffinityWeight( sketch ) );
+
+		final Edge composed = new Edge( new ColumnarEdgeStore( layout.dataSize() ) );
+		final Edge composedSource = new Edge( composed.store() );
+		final Edge affinities = new Edge( new ColumnarEdgeStore( 0 ) );
+		final Edge affinitiesSource = new Edge( affinities.store() );
+		final Edge histogram = new Edge( new ColumnarEdgeStore( nBins + 1 ) );
+		final Edge histogramSource = new Edge( histogram.store() );
+		final Edge sketches = new Edge( new ColumnarEdgeStore( sketch.dataSize() ) );
+		final Edge sketchesSource = new Edge( sketches.store() );
+		final EdgeMerger histogramMerger = new EdgeMerger.MEDIAN_AFFINITY_MERGER( nBins );
+		final EdgeMerger sketchMerger = new EdgeMerger.QUANTILE_SKETCH_MERGER( sketch );
+		final EdgeMerger affinityMerger = new EdgeMerger.AVG_AFFINITY_MERGER();
+
+		for ( int k = 0; k < nEdges; ++k )
+		{
+			final double affinity = rng.nextDouble();
+			final long multiplicity = 1 + rng.nextInt( 3 );
+			creator.create( composed, Double.NaN, affinity, k, k + 1, multiplicity );
+			affinities.add( Double.NaN, affinity, k, k + 1, multiplicity );
+			new EdgeCreator.AffinityHistogram( nBins, 0.0, 1.0 ).create( histogram, Double.NaN, affinity, k, k + 1, multiplicity );
+			new EdgeCreator.AffinitySketch( sketch ).create( sketches, Double.NaN, affinity, k, k + 1, multiplicity );
+		}
+
+		for ( int k = 1; k < nEdges; ++k )
+		{
+			final int target = rng.nextInt( k );
+			composedSource.setIndex( k );
+			composed.setIndex( target );
+			merger.merge( composedSource, composed );
+
+			affinitiesSource.setIndex( k );
+			affinities.setIndex( target );
+			affinityMerger.merge( affinitiesSource, affinities );
+
+			histogramSource.setIndex( k );
+			histogram.setIndex( target );
+			histogramMerger.merge( histogramSource, histogram );
+
+			sketchesSource.setIndex( k );
+			sketches.setIndex( target );
+			sketchMerger.merge( sketchesSource, sketches );
+		}
+
+		final EdgeWeight histogramReference = new EdgeWeight.MedianAffinityWeight( nBins, 0.0, 1.0 );
+		final EdgeWeight sketchReference = new EdgeWeight.SketchMedianAffinityWeight( sketch );
+		for ( int k = 0; k < nEdges; ++k )
+		{
+			composed.setIndex( k );
+			affinities.setIndex( k );
+			histogram.setIndex( k );
+			sketches.setIndex( k );
+			Assert.assertEquals( layout.dataSize(), composed.getDataSize() );
+			Assert.assertEquals( histogram.multiplicity(), composed.multiplicity() );
+			Assert.assertEquals( sketches.multiplicity(), composed.multiplicity() );
+			Assert.assertEquals( affinities.affinity(), composed.affinity(), 0.0 );
+			for ( int i = 0; i < nBins + 1; ++i )
+				Assert.assertEquals( Edge.dtl( histogram.getData( i ) ), Edge.dtl( composed.getData( layout.offset( "histogram" ) + i ) ) );
+			for ( int i = 0; i < sketch.dataSize(); ++i )
+				Assert.assertEquals( Edge.dtl( sketches.getData( i ) ), Edge.dtl( composed.getData( layout.offset( "sketch" ) + i ) ) );
+			Assert.assertEquals( histogramReference.weight( histogram ), histogramWeight.weight( composed ), 0.0 );
+			Assert.assertEquals( sketchReference.weight( sketches ), sketchWeight.weight( composed ), 0.0 );
+		}
+	}
+
+	@Test
+	public void testNestedLayout()
+	{
+		final Random rng = new Random( 100 );
+		final int nEdges = 100;
+		final int nBins = 16;
+		final QuantileSketch sketch = new QuantileSketch( 8 );
+
+		// same accumulators in the same order, once flat and once with the
+		// histogram and sketch in an inner layout
+		final EdgeDataLayout flat = new EdgeDataLayout()
+				.add( "affinity", new EdgeCreator.NoDataSerializableCreator(), new EdgeMerger.AVG_AFFINITY_MERGER() )
+				.add( "histogram", new EdgeCreator.AffinityHistogram( nBins, 0.0, 1.0 ), new EdgeMerger.MEDIAN_AFFINITY_MERGER( nBins ) )
+				.add( "sketch", new EdgeCreator.AffinitySketch( sketch ), new EdgeMerger.QUANTILE_SKETCH_MERGER( sketch ) );
+		final EdgeDataLayout inner = new EdgeDataLayout()
+				.add( "histogram", new EdgeCreator.AffinityHistogram( nBins, 0.0, 1.0 ), new EdgeMerger.MEDIAN_AFFINITY_MERGER( nBins ) )
+				.add( "sketch", new EdgeCreator.AffinitySketch( sketch ), new EdgeMerger.QUANTILE_SKETCH_MERGER( sketch ) );
+		final EdgeDataLayout nested = new EdgeDataLayout()
+				.add( "affinity", new EdgeCreator.NoDataSerializableCreator(), new EdgeMerger.AVG_AFFINITY_MERGER() )
+				.add( "inner", inner.creator(), inner.merger() );
+		Assert.assertEquals( flat.dataSize(), nested.dataSize() );
+
+		final EdgeWeight flatWeight = flat.weight( "sketch", new EdgeWeight.SketchMedianAffinityWeight( sketch ) );
+		final EdgeWeight nestedWeight = nested.weight( "inner", inner.weight( "sketch", new EdgeWeight.SketchMedianAffinityWeight( sketch ) ) );
+		final EdgeWeight nestedHistogramWeight = nested.weight( "inner", inner.weight( "histogram", new EdgeWeight.MedianAffinityWeight( nBins, 0.0, 1.0 ) ) );
+		final EdgeWeight histogramReference = new EdgeWeight.MedianAffinityWeight( nBins, 0.0, 1.0 );
+
+		final EdgeCreator flatCreator = flat.creator();
+		final EdgeCreator nestedCreator = nested.creator();
+		final EdgeMerger flatMerger = flat.merger();
+		final EdgeMerger nestedMerger = nested.merger();
+		final Edge flatEdge = new Edge( new ColumnarEdgeStore( flat.dataSize() ) );
+		final Edge flatSource = new Edge( flatEdge.store() );
+		final Edge nestedEdge = new Edge( new ColumnarEdgeStore( nested.dataSize() ) );
+		final Edge nestedSource = new Edge( nestedEdge.store() );
+		final Edge histogram = new Edge( new ColumnarEdgeStore( nBins + 1 ) );
+		final Edge histogramSource = new Edge( histogram.store() );
+		final EdgeMerger histogramMerger = new EdgeMerger.MEDIAN_AFFINITY_MERGER( nBins );
+
+		for ( int k = 0; k < nEdges; ++k )
+		{
+			final double affinity = rng.nextDouble();
+			final long multiplicity = 1 + rng.nextInt( 3 );
+			flatCreator.create( flatEdge, Double.NaN, affinity, k, k + 1, multiplicity );
+			nestedCreator.create( nestedEdge, Double.NaN, affinity, k, k + 1, multiplicity );
+			new EdgeCreator.AffinityHistogram( nBins, 0.0, 1.0 ).create( histogram, Double.NaN, affinity, k, k + 1, multiplicity );
+		}
+
+		for ( int k = 1; k < nEdges; ++k )
+		{
+			final int target = rng.nextInt( k );
+			flatSource.setIndex( k );
+			flatEdge.setIndex( target );
+			flatMerger.merge( flatSource, flatEdge );
+			nestedSource.setIndex( k );
+			nestedEdge.setIndex( target );
+			nestedMerger.merge( nestedSource, nestedEdge );
+			histogramSource.setIndex( k );
+			histogram.setIndex( target );
+			histogramMerger.merge( histogramSource, histogram );
+			Assert.assertEquals( 0, nestedEdge.getDataOffset() );
+			Assert.assertEquals( nested.dataSize(), nestedEdge.getDataSize() );
+		}
+
+		for ( int k = 0; k < nEdges; ++k )
+		{
+			flatEdge.setIndex( k );
+			nestedEdge.setIndex( k );
+			histogram.setIndex( k );
+			Assert.assertEquals( flatEdge.multiplicity(), nestedEdge.multiplicity() );
+			Assert.assertEquals( flatEdge.affinity(), nestedEdge.affinity(), 0.0 );
+			for ( int i = 0; i < flat.dataSize(); ++i )
+				Assert.assertEquals( Edge.dtl( flatEdge.getData( i ) ), Edge.dtl( nestedEdge.getData( i ) ) );
+			Assert.assertEquals( flatWeight.weight( flatEdge ), nestedWeight.weight( nestedEdge ), 0.0 );
+			Assert.assertEquals( histogramReference.weight( histogram ), nestedHistogramWeight.weight( nestedEdge ), 0.0 );
+			Assert.assertEquals( nested.dataSize(), nestedEdge.getDataSize() );
+		}
+
+		// view is restored if the weight throws
+		final EdgeWeight failing = nested.weight( "inner", new EdgeWeight()
+		{
+			@Override
+			public double weight( final Edge e )
+			{
+				throw new IllegalStateException();
+			}
+
+			@Override
+			public int dataSize()
+			{
+				return inner.dataSize();
+			}
+		} );
+		try
+		{
+			failing.weight( nestedEdge );
+			Assert.fail();
+		}
+		catch ( final IllegalStateException e )
+		{
+			Assert.assertEquals( 0, nestedEdge.getDataOffset() );
+			Assert.assertEquals( nested.dataSize(), nestedEdge.getDataSize() );
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.util.Random;
+
+import org.janelia.saalfeldlab.graph.UndirectedGraph;
+import org.junit.Assert;
+import org.junit.Test;
+
+import gnu.trove.list.array.TDoubleArrayList;
+
+public class EdgeStatusBitmapTest
+{
+
+	@Test
+	public void testSameAsStatusScan()
+	{
+		final Random rng = new Random( 100 );
+		final int nEdges = 300;
+		final EdgeStore[] stores = {
+				new ColumnarEdgeStore( 1 ),
+				new InterleavedEdgeStore( 1 ),
+				new OffHeapEdgeStore( 1, 64 ) };
+
+		for ( final EdgeStore store : stores )
+		{
+			final Edge e = new Edge( store );
+			for ( int k = 0; k < nEdges; ++k )
+				e.add( Double.NaN, rng.nextDouble(), k, k + 1, 1 );
+
+			for ( int iteration = 0; iteration < 2 * nEdges; ++iteration )
+			{
+				e.setIndex( rng.nextInt( store.size() ) );
+				switch ( rng.nextInt( 5 ) )
+				{
+				case 0:
+					e.setActive();
+					break;
+				case 1:
+					e.setStale();
+					break;
+				case 2:
+				case 3:
+					e.setObsolete();
+					break;
+				default:
+					e.remove();
+				}
+				// long runs of obsolete edges
+				if ( iteration == nEdges )
+					for ( int k = 10; k < 200; ++k )
+						store.status( k, Edge.OBSOLETE_MASK );
+			}
+
+			final int size = store.size();
+			for ( int k = 0; k <= size; ++k )
+			{
+				Assert.assertEquals( naiveNext( store, k, Edge.OBSOLETE_MASK, 0 ), store.nextValid( k ) );
+				Assert.assertEquals( naiveNext( store, k, Edge.OBSOLETE_MASK, Edge.OBSOLETE_MASK ), store.nextObsolete( k ) );
+				Assert.assertEquals( naiveNext( store, k, Edge.STATUS_MASK, Edge.STALE_MASK ), store.nextStale( k ) );
+			}
+
+			// copies are initialized from the status of the source
+			final EdgeStore copy = store instanceof InterleavedEdgeStore
+					? new InterleavedEdgeStore( ( ( InterleavedEdgeStore ) store ).data(), 1 )
+					: ColumnarEdgeStore.copyOf( store );
+			for ( int k = 0; k <= size; ++k )
+				Assert.assertEquals( store.nextValid( k ), copy.nextValid( k ) );
+		}
+	}
+
+	private static int naiveNext( final EdgeStore store, final int index, final int mask, final int status )
+	{
+		int k = index;
+		while ( k < store.size() && ( store.status( k ) & mask ) != status )
+			++k;
+		return k;
+	}
+
+	@Test
+	public void testSharedInterleavedStore()
+	{
+		final EdgeMerger merger = new EdgeMerger.AVG_AFFINITY_MERGER();
+		final TDoubleArrayList data = new TDoubleArrayList();
+		final InterleavedEdgeStore store = new InterleavedEdgeStore( data, merger.dataSize() );
+		final Edge e1 = new Edge( store );
+		for ( int k = 0; k < 10; ++k )
+			e1.add( Double.NaN, 0.5, k, k + 1, 1 );
+
+		// cursors and graph over the same store share one status bitmap
+		final Edge e2 = new Edge( store );
+		final UndirectedGraph g = new UndirectedGraph( 11, store, merger );
+		e1.setIndex( 3 );
+		e1.setObsolete();
+		Assert.assertEquals( 3, e2.store().nextObsolete( 0 ) );
+		Assert.assertEquals( 4, g.edges().nextValid( 3 ) );
+
+		// a cursor over the list gets its own store, initialized from the list
+		final Edge e3 = new Edge( data, merger.dataSize() );
+		Assert.assertNotSame( store, e3.store() );
+		Assert.assertEquals( 3, e3.store().nextObsolete( 0 ) );
+		Assert.assertEquals( 4, e3.store().nextValid( 3 ) );
+	}
+
+}
@@ -0,0 +1,67 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EdgeStoreTest
+{
+
+	@Test
+	public void testAddCounts()
+	{
+		final int dataSize = 37;
+		final EdgeStore[] stores = {
+				new InterleavedEdgeStore( dataSize ),
+				new ColumnarEdgeStore( dataSize ),
+				new OffHeapEdgeStore( dataSize, 2 ) };
+		for ( final EdgeStore store : stores )
+		{
+			final Random rng = new Random( 100 );
+			final Edge target = new Edge( store );
+			final Edge source = new Edge( store );
+			final long[][] expected = new long[ 5 ][ dataSize ];
+			for ( int k = 0; k < expected.length; ++k )
+			{
+				target.setIndex( target.add( Double.NaN, 0.5, k, k + 1, 1 ) );
+				for ( int i = 0; i < dataSize; ++i )
+				{
+					expected[ k ][ i ] = rng.nextInt( 1 << 20 );
+					target.setData( i, Edge.ltd( expected[ k ][ i ] ) );
+				}
+			}
+
+			// across chunks of the off heap store
+			source.setIndex( 4 );
+			target.setIndex( 0 );
+			target.addCounts( source, 0, dataSize );
+			for ( int i = 0; i < dataSize; ++i )
+				expected[ 0 ][ i ] += expected[ 4 ][ i ];
+
+			source.setIndex( 1 );
+			target.setIndex( 2 );
+			target.addCounts( source, 3, 10 );
+			for ( int i = 3; i < 13; ++i )
+				expected[ 2 ][ i ] += expected[ 1 ][ i ];
+
+			// data view
+			source.setIndex( 3 );
+			source.setDataView( 5, 20 );
+			target.setIndex( 1 );
+			target.setDataView( 5, 20 );
+			target.addCounts( source, 1, 19 );
+			target.resetDataView();
+			for ( int i = 6; i < 25; ++i )
+				expected[ 1 ][ i ] += expected[ 3 ][ i ];
+
+			for ( int k = 0; k < expected.length; ++k )
+			{
+				target.setIndex( k );
+				for ( int i = 0; i < dataSize; ++i )
+					Assert.assertEquals( expected[ k ][ i ], Edge.dtl( target.getData( i ) ) );
+			}
+		}
+	}
+
+}
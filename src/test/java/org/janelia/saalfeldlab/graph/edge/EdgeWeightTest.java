@@ -3,8 +3,10 @@ package org.janelia.saalfeldlab.graph.edge;
 import java.lang.invoke.MethodHandles;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.stream.IntStream;
 
 import org.janelia.saalfeldlab.graph.edge.EdgeWeight.MedianAffinityWeight;
+import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,4 +40,91 @@ public class EdgeWeightTest
 		LOG.debug( medianRef + " " + MedianAffinityWeight.medianFromHistogram( nBins, Arrays.stream( histogram ), N, min, binWidth ) );
 	}
 
+	@Test
+	public void testBatchSameAsSingleWeights()
+	{
+		final Random rng = new Random( 100 );
+		final int nEdges = 200;
+		final int nBins = 32;
+		final EdgeCreator creator = new EdgeCreator.AffinityHistogram( nBins, 0.0, 1.0 );
+		final EdgeMerger merger = new EdgeMerger.MEDIAN_AFFINITY_MERGER( nBins );
+		final Edge e = new Edge( new ColumnarEdgeStore( creator.dataSize() ) );
+		final Edge source = new Edge( e.store() );
+
+		for ( int k = 0; k < nEdges; ++k )
+			creator.create( e, Double.NaN, rng.nextDouble(), k, k + 1, 1 + rng.nextInt( 3 ) );
+		for ( int k = 1; k < nEdges; ++k )
+		{
+			source.setIndex( k );
+			e.setIndex( rng.nextInt( k ) );
+			merger.merge( source, e );
+		}
+
+		final EdgeWeight[] edgeWeights = {
+				new EdgeWeight.OneMinusAffinity(),
+				new EdgeWeight.MedianAffinityWeight( nBins, 0.0, 1.0 ),
+				new EdgeWeight.PercentileAffinityWeight( nBins, 0.0, 1.0, 0.0 ),
+				new EdgeWeight.PercentileAffinityWeight( nBins, 0.0, 1.0, 0.3 ),
+				new EdgeWeight.PercentileAffinityWeight( nBins, 0.0, 1.0, 1.0 ) };
+
+		// unordered subset of edges, written into the middle of the buffer
+		final int[] indices = new int[ nEdges / 2 ];
+		for ( int i = 0; i < indices.length; ++i )
+			indices[ i ] = rng.nextInt( nEdges );
+		final int offset = 10;
+		final int length = indices.length - 20;
+
+		for ( final EdgeWeight edgeWeight : edgeWeights )
+		{
+			final double[] weights = new double[ indices.length ];
+			edgeWeight.weights( new Edge( e.store() ), indices, offset, length, weights );
+			for ( int i = 0; i < indices.length; ++i )
+			{
+				if ( i < offset || i >= offset + length )
+				{
+					Assert.assertEquals( 0.0, weights[ i ], 0.0 );
+					continue;
+				}
+				e.setIndex( indices[ i ] );
+				Assert.assertEquals( edgeWeight.weight( e ), weights[ i ], 0.0 );
+			}
+		}
+
+		// sketch weights and slices of a layout
+		final QuantileSketch sketch = new QuantileSketch( 8 );
+		final EdgeDataLayout layout = new EdgeDataLayout()
+				.add( "histogram", creator, merger )
+				.add( "sketch", new EdgeCreator.AffinitySketch( sketch ), new EdgeMerger.QUANTILE_SKETCH_MERGER( sketch ) );
+		final Edge composed = new Edge( new ColumnarEdgeStore( layout.dataSize() ) );
+		for ( int k = 0; k < nEdges; ++k )
+			layout.creator().create( composed, Double.NaN, rng.nextDouble(), k, k + 1, 1 );
+		final EdgeWeight[] layoutWeights = {
+				layout.weight( "histogram", new EdgeWeight.MedianAffinityWeight( nBins, 0.0, 1.0 ) ),
+				layout.weight( "sketch", new EdgeWeight.SketchMedianAffinityWeight( sketch ) ),
+				layout.weight( "sketch", new EdgeWeight.SketchPercentileAffinityWeight( sketch, 0.3 ) ) };
+		for ( final EdgeWeight edgeWeight : layoutWeights )
+		{
+			final double[] weights = new double[ indices.length ];
+			final Edge batch = new Edge( composed.store() );
+			edgeWeight.weights( batch, indices, offset, length, weights );
+			Assert.assertEquals( layout.dataSize(), batch.getDataSize() );
+			for ( int i = offset; i < offset + length; ++i )
+			{
+				composed.setIndex( indices[ i ] );
+				Assert.assertEquals( edgeWeight.weight( composed ), weights[ i ], 0.0 );
+			}
+		}
+
+		final double binWidth = 1.0 / nBins;
+		for ( int k = 0; k < nEdges; ++k )
+		{
+			e.setIndex( k );
+			final long count = Edge.dtl( e.getData( 0 ) );
+			Assert.assertEquals(
+					EdgeWeight.MedianAffinityWeight.medianFromHistogram( nBins, IntStream.range( 1, nBins + 1 ).mapToLong( i -> Edge.dtl( e.getData( i ) ) ), count, 0.0, binWidth ),
+					EdgeWeight.affinityAt( e, nBins, 0.5 * count, true, 0.0, binWidth ),
+					0.0 );
+		}
+	}
+
 }
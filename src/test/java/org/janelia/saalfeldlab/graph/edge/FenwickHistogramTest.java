@@ -0,0 +1,75 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FenwickHistogramTest
+{
+
+	@Test
+	public void testSameWeightsAsLinearHistogram()
+	{
+		final Random rng = new Random( 100 );
+		final int nEdges = 200;
+		for ( final int nBins : new int[] { 1, 7, 16, 256 } )
+		{
+			final EdgeCreator linearCreator = new EdgeCreator.AffinityHistogram( nBins, 0.0, 1.0 );
+			final EdgeCreator fenwickCreator = new EdgeCreator.FenwickAffinityHistogram( nBins, 0.0, 1.0 );
+			final EdgeMerger histogramMerger = new EdgeMerger.MEDIAN_AFFINITY_MERGER( nBins );
+			final Edge linear = new Edge( new ColumnarEdgeStore( nBins + 1 ) );
+			final Edge fenwick = new Edge( new ColumnarEdgeStore( nBins + 1 ) );
+			final Edge linearSource = new Edge( linear.store() );
+			final Edge fenwickSource = new Edge( fenwick.store() );
+
+			final EdgeWeight[] linearWeights = {
+					new EdgeWeight.MedianAffinityWeight( nBins, 0.0, 1.0 ),
+					new EdgeWeight.PercentileAffinityWeight( nBins, 0.0, 1.0, 0.1 ),
+					new EdgeWeight.PercentileAffinityWeight( nBins, 0.0, 1.0, 0.9 ) };
+			final EdgeWeight[] fenwickWeights = {
+					new EdgeWeight.FenwickMedianAffinityWeight( nBins, 0.0, 1.0 ),
+					new EdgeWeight.FenwickPercentileAffinityWeight( nBins, 0.0, 1.0, 0.1 ),
+					new EdgeWeight.FenwickPercentileAffinityWeight( nBins, 0.0, 1.0, 0.9 ) };
+
+			for ( int k = 0; k < nEdges; ++k )
+			{
+				final double affinity = rng.nextDouble();
+				linearCreator.create( linear, Double.NaN, affinity, k, k + 1, 1 );
+				fenwickCreator.create( fenwick, Double.NaN, affinity, k, k + 1, 1 );
+			}
+
+			for ( int k = 0; k < nEdges; ++k )
+			{
+				// merge random edges into each other to get larger counts
+				final int source = rng.nextInt( nEdges );
+				if ( source != k && rng.nextBoolean() )
+				{
+					linearSource.setIndex( source );
+					fenwickSource.setIndex( source );
+					linear.setIndex( k );
+					fenwick.setIndex( k );
+					histogramMerger.merge( linearSource, linear );
+					histogramMerger.merge( fenwickSource, fenwick );
+				}
+			}
+
+			for ( int k = 0; k < nEdges; ++k )
+			{
+				linear.setIndex( k );
+				fenwick.setIndex( k );
+				Assert.assertEquals( Edge.dtl( linear.getData( 0 ) ), FenwickHistogram.count( fenwick, 0 ) );
+				long prefixSum = 0;
+				for ( int bin = 0; bin < nBins; ++bin )
+				{
+					Assert.assertEquals( Edge.dtl( linear.getData( bin + 1 ) ), FenwickHistogram.binCount( fenwick, 0, bin ) );
+					prefixSum += Edge.dtl( linear.getData( bin + 1 ) );
+					Assert.assertEquals( prefixSum, FenwickHistogram.prefixSum( fenwick, 0, bin + 1 ) );
+				}
+				for ( int i = 0; i < linearWeights.length; ++i )
+					Assert.assertEquals( linearWeights[ i ].weight( linear ), fenwickWeights[ i ].weight( fenwick ), 1e-12 );
+			}
+		}
+	}
+
+}
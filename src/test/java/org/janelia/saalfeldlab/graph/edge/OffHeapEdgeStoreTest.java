@@ -0,0 +1,240 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.graph.UndirectedGraph;
+import org.janelia.saalfeldlab.regionmerging.RegionMerging;
+import org.junit.Assert;
+import org.junit.Test;
+
+import gnu.trove.list.array.TLongArrayList;
+
+public class OffHeapEdgeStoreTest
+{
+
+	private static final int DATA_SIZE = 2;
+
+	private static void addRandomEdges( final Random rng, final int nNodes, final int nEdges, final EdgeStore... stores )
+	{
+		for ( int i = 0; i < nEdges; ++i )
+		{
+			final long from = rng.nextInt( nNodes );
+			final long to = ( from + 1 + rng.nextInt( nNodes - 1 ) ) % nNodes;
+			final double affinity = rng.nextInt( 10 ) / 10.0;
+			final long multiplicity = 1 + rng.nextInt( 3 );
+			final double d0 = rng.nextDouble();
+			final double d1 = rng.nextDouble();
+			for ( final EdgeStore store : stores )
+			{
+				final int index = store.add( Double.NaN, affinity, from, to, multiplicity, Edge.STALE_MASK );
+				store.setData( index, 0, d0 );
+				store.setData( index, 1, d1 );
+			}
+		}
+	}
+
+	private static void assertEqualStores( final EdgeStore expected, final EdgeStore actual )
+	{
+		Assert.assertEquals( expected.size(), actual.size() );
+		Assert.assertEquals( expected.dataSize(), actual.dataSize() );
+		for ( int index = 0; index < expected.size(); ++index )
+		{
+			Assert.assertEquals( expected.weight( index ), actual.weight( index ), 0.0 );
+			Assert.assertEquals( expected.affinity( index ), actual.affinity( index ), 0.0 );
+			Assert.assertEquals( expected.from( index ), actual.from( index ) );
+			Assert.assertEquals( expected.to( index ), actual.to( index ) );
+			Assert.assertEquals( expected.multiplicity( index ), actual.multiplicity( index ) );
+			Assert.assertEquals( expected.status( index ), actual.status( index ) );
+			for ( int i = 0; i < expected.dataSize(); ++i )
+				Assert.assertEquals( expected.getData( index, i ), actual.getData( index, i ), 0.0 );
+		}
+	}
+
+	@Test
+	public void testAddRemoveAcrossChunks()
+	{
+		final Random rng = new Random( 100 );
+		final ColumnarEdgeStore reference = new ColumnarEdgeStore( DATA_SIZE );
+		final OffHeapEdgeStore store = new OffHeapEdgeStore( DATA_SIZE, 8 );
+		addRandomEdges( rng, 20, 100, reference, store );
+		Assert.assertEquals( 104, store.capacity() );
+		assertEqualStores( reference, store );
+
+		for ( int i = 0; i < 40; ++i )
+		{
+			final int index = rng.nextInt( reference.size() );
+			reference.remove( index );
+			store.remove( index );
+			assertEqualStores( reference, store );
+		}
+		reference.remove( reference.size() - 1 );
+		store.remove( store.size() - 1 );
+		assertEqualStores( reference, store );
+	}
+
+	@Test
+	public void testMergeMappedFile() throws IOException
+	{
+		final Random rng = new Random( 200 );
+		final int nNodes = 200;
+		final Path file = Files.createTempFile( "edges", ".bin" );
+		try (final OffHeapEdgeStore store = OffHeapEdgeStore.mapped( file, DATA_SIZE, 64 ))
+		{
+			final ColumnarEdgeStore reference = new ColumnarEdgeStore( DATA_SIZE );
+			addRandomEdges( rng, nNodes, 4 * nNodes, reference, store );
+			Assert.assertTrue( store.isMapped() );
+
+			final EdgeMerger merger = new EdgeMerger.AVG_AFFINITY_MERGER();
+			final EdgeWeight ew = new EdgeWeight.OneMinusAffinity();
+			final TLongArrayList referenceMerges = RegionMerging.mergeLocallyMinimalEdges( new UndirectedGraph( nNodes, reference, merger ), merger, ew, 0.5 ).getA();
+			final TLongArrayList merges = RegionMerging.mergeLocallyMinimalEdges( new UndirectedGraph( nNodes, store, merger ), merger, ew, 0.5 ).getA();
+
+			Assert.assertTrue( referenceMerges.size() > 0 );
+			Assert.assertEquals( referenceMerges, merges );
+			assertEqualStores( reference, store );
+		}
+		finally
+		{
+			Files.delete( file );
+		}
+	}
+
+	@Test
+	public void testReopenMapped() throws IOException
+	{
+		final Random rng = new Random( 250 );
+		final Path file = Files.createTempFile( "edges", ".bin" );
+		final Path overflowFile = file.resolveSibling( file.getFileName() + ".overflow" );
+		try
+		{
+			final ColumnarEdgeStore reference = new ColumnarEdgeStore( DATA_SIZE );
+			final long[] overflow = new long[ 3000 ];
+			try (final OffHeapEdgeStore store = OffHeapEdgeStore.mapped( file, DATA_SIZE, 64 ))
+			{
+				addRandomEdges( rng, 20, 300, reference, store );
+				for ( int i = 0; i < 30; ++i )
+				{
+					final int index = rng.nextInt( reference.size() );
+					reference.remove( index );
+					store.remove( index );
+					reference.status( 2 * i, Edge.OBSOLETE_MASK );
+					store.status( 2 * i, Edge.OBSOLETE_MASK );
+				}
+				Assert.assertEquals( 0, store.allocateOverflow( overflow.length ) );
+				for ( int i = 0; i < overflow.length; ++i )
+				{
+					overflow[ i ] = rng.nextLong();
+					store.setOverflow( i, overflow[ i ] );
+				}
+			}
+
+			try (final OffHeapEdgeStore store = OffHeapEdgeStore.open( file ))
+			{
+				Assert.assertTrue( store.isMapped() );
+				Assert.assertEquals( 64, store.edgesPerChunk() );
+				assertEqualStores( reference, store );
+				for ( int index = 0; index < reference.size(); ++index )
+				{
+					Assert.assertEquals( reference.nextValid( index ), store.nextValid( index ) );
+					Assert.assertEquals( reference.nextStale( index ), store.nextStale( index ) );
+				}
+				Assert.assertEquals( overflow.length, store.overflowSize() );
+				for ( int i = 0; i < overflow.length; ++i )
+					Assert.assertEquals( overflow[ i ], store.getOverflow( i ) );
+
+				// reopened stores continue to grow in the same file
+				addRandomEdges( rng, 20, 100, reference, store );
+				Assert.assertEquals( overflow.length, store.allocateOverflow( 5 ) );
+				store.setOverflow( overflow.length + 4, 7 );
+			}
+
+			try (final OffHeapEdgeStore store = OffHeapEdgeStore.open( file ))
+			{
+				assertEqualStores( reference, store );
+				Assert.assertEquals( overflow.length + 5, store.overflowSize() );
+				Assert.assertEquals( overflow[ 0 ], store.getOverflow( 0 ) );
+				Assert.assertEquals( 7, store.getOverflow( overflow.length + 4 ) );
+			}
+		}
+		finally
+		{
+			Files.delete( file );
+			Files.deleteIfExists( overflowFile );
+		}
+	}
+
+	@Test
+	public void testSerialization() throws IOException, ClassNotFoundException
+	{
+		final Random rng = new Random( 300 );
+		final OffHeapEdgeStore store = new OffHeapEdgeStore( DATA_SIZE, 16 );
+		addRandomEdges( rng, 20, 50, store );
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (final ObjectOutputStream out = new ObjectOutputStream( bytes ))
+		{
+			out.writeObject( store );
+		}
+		try (final ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ))
+		{
+			final OffHeapEdgeStore copy = ( OffHeapEdgeStore ) in.readObject();
+			Assert.assertEquals( 16, copy.edgesPerChunk() );
+			assertEqualStores( store, copy );
+		}
+	}
+
+	@Test
+	public void testGrowChunks() throws IOException
+	{
+		final Random rng = new Random( 400 );
+		final int nEdges = 5 * OffHeapEdgeStore.INITIAL_CHUNK_EDGES + 7;
+
+		// small stores do not allocate full chunks
+		final OffHeapEdgeStore small = new OffHeapEdgeStore( DATA_SIZE );
+		Assert.assertEquals( 0, small.capacity() );
+		addRandomEdges( rng, 20, 3, small );
+		Assert.assertEquals( OffHeapEdgeStore.INITIAL_CHUNK_EDGES, small.capacity() );
+		Assert.assertTrue( small.edgesPerChunk() > OffHeapEdgeStore.INITIAL_CHUNK_EDGES );
+
+		final Path file = Files.createTempFile( "edges", ".bin" );
+		final int edgesPerChunk = 4 * OffHeapEdgeStore.INITIAL_CHUNK_EDGES;
+		try (final OffHeapEdgeStore mapped = OffHeapEdgeStore.mapped( file, DATA_SIZE, edgesPerChunk ))
+		{
+			final ColumnarEdgeStore reference = new ColumnarEdgeStore( DATA_SIZE );
+			final OffHeapEdgeStore store = new OffHeapEdgeStore( DATA_SIZE, edgesPerChunk );
+			for ( int i = 0; i < nEdges; ++i )
+			{
+				addRandomEdges( rng, 20, 1, reference, store, mapped );
+				// last chunk doubles until it is full size
+				final int full = i / edgesPerChunk * edgesPerChunk;
+				final int capacity = full + Math.max( Integer.highestOneBit( i - full ) * 2, OffHeapEdgeStore.INITIAL_CHUNK_EDGES );
+				Assert.assertEquals( capacity, store.capacity() );
+				Assert.assertEquals( capacity, mapped.capacity() );
+			}
+			assertEqualStores( reference, store );
+			assertEqualStores( reference, mapped );
+
+			for ( int i = 0; i < 10; ++i )
+			{
+				final int index = rng.nextInt( reference.size() );
+				reference.remove( index );
+				store.remove( index );
+				mapped.remove( index );
+			}
+			assertEqualStores( reference, store );
+			assertEqualStores( reference, mapped );
+		}
+		finally
+		{
+			Files.delete( file );
+		}
+	}
+
+}
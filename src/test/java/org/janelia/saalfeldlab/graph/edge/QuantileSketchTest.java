@@ -0,0 +1,84 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QuantileSketchTest
+{
+
+	@Test
+	public void testRankError()
+	{
+		final Random rng = new Random( 100 );
+		final int nValues = 10000;
+		final QuantileSketch sketch = new QuantileSketch( 64 );
+		final EdgeCreator creator = new EdgeCreator.AffinitySketch( sketch );
+		final EdgeMerger merger = new EdgeMerger.QUANTILE_SKETCH_MERGER( sketch );
+		final Edge target = new Edge( new ColumnarEdgeStore( creator.dataSize() ) );
+		final Edge source = new Edge( target.store() );
+
+		final double[] values = new double[ nValues ];
+		for ( int i = 0; i < nValues; ++i )
+		{
+			// skewed distribution
+			values[ i ] = Math.pow( rng.nextDouble(), 3 );
+			creator.create( target, Double.NaN, values[ i ], i, i + 1, 1 );
+		}
+
+		// merge pairs of sketches until a single sketch is left, as in
+		// contractions of parallel edges
+		for ( int step = 1; step < nValues; step *= 2 )
+			for ( int i = 0; i + step < nValues; i += 2 * step )
+			{
+				source.setIndex( i + step );
+				target.setIndex( i );
+				merger.merge( source, target );
+				Assert.assertTrue( sketch.size( target, 0 ) <= sketch.nCentroids() );
+			}
+
+		target.setIndex( 0 );
+		Arrays.sort( values );
+		Assert.assertEquals( nValues, sketch.count( target, 0 ) );
+		Assert.assertEquals( nValues, target.multiplicity() );
+		Assert.assertEquals( values[ 0 ], sketch.quantile( target, 0, 0.0 ), 0.0 );
+		Assert.assertEquals( values[ nValues - 1 ], sketch.quantile( target, 0, 1.0 ), 0.0 );
+		for ( final double q : new double[] { 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99 } )
+		{
+			final double estimate = sketch.quantile( target, 0, q );
+			int rank = Arrays.binarySearch( values, estimate );
+			rank = rank < 0 ? -rank - 1 : rank;
+			Assert.assertEquals( q, ( double ) rank / nValues, 0.01 );
+		}
+
+		final EdgeWeight median = new EdgeWeight.SketchMedianAffinityWeight( sketch );
+		final EdgeWeight percentile = new EdgeWeight.SketchPercentileAffinityWeight( sketch, 0.5 );
+		Assert.assertEquals( 1 - sketch.quantile( target, 0, 0.5 ), median.weight( target ), 0.0 );
+		Assert.assertEquals( median.weight( target ), percentile.weight( target ), 0.0 );
+	}
+
+	@Test
+	public void testSmallSketch()
+	{
+		final QuantileSketch sketch = new QuantileSketch( 4 );
+		final EdgeCreator creator = new EdgeCreator.AffinitySketch( sketch );
+		final Edge target = new Edge( new ColumnarEdgeStore( creator.dataSize() ) );
+		final Edge source = new Edge( target.store() );
+		creator.create( target, Double.NaN, 0.2, 0, 1, 1 );
+		creator.create( target, Double.NaN, 0.6, 0, 1, 1 );
+
+		target.setIndex( 0 );
+		Assert.assertEquals( 0.2, sketch.quantile( target, 0, 0.5 ), 0.0 );
+
+		source.setIndex( 1 );
+		sketch.merge( source, target, 0 );
+		Assert.assertEquals( 2, sketch.size( target, 0 ) );
+		Assert.assertEquals( 2, sketch.count( target, 0 ) );
+		Assert.assertEquals( 0.4, sketch.quantile( target, 0, 0.5 ), 1e-12 );
+		Assert.assertEquals( 0.2, sketch.quantile( target, 0, 0.0 ), 0.0 );
+		Assert.assertEquals( 0.6, sketch.quantile( target, 0, 1.0 ), 0.0 );
+	}
+
+}
@@ -0,0 +1,201 @@
+package org.janelia.saalfeldlab.graph.edge;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SparseHistogramTest
+{
+
+	@Test
+	public void testSameWeightsAsDenseHistogram()
+	{
+		final Random rng = new Random( 100 );
+		final int nEdges = 300;
+		for ( final int nBins : new int[] { 1, 7, 256 } )
+		{
+			final SparseHistogram histogram = new SparseHistogram( nBins, 0.0, 1.0, 2 );
+			final EdgeCreator denseCreator = new EdgeCreator.AffinityHistogram( nBins, 0.0, 1.0 );
+			final EdgeCreator sparseCreator = new EdgeCreator.SparseAffinityHistogram( histogram );
+			final EdgeMerger denseMerger = new EdgeMerger.MEDIAN_AFFINITY_MERGER( nBins );
+			final EdgeMerger sparseMerger = new EdgeMerger.SPARSE_HISTOGRAM_MERGER( histogram );
+			final Edge dense = new Edge( new ColumnarEdgeStore( denseCreator.dataSize() ) );
+			final Edge sparse = new Edge( new ColumnarEdgeStore( sparseCreator.dataSize() ) );
+			final Edge denseSource = new Edge( dense.store() );
+			final Edge sparseSource = new Edge( sparse.store() );
+
+			final EdgeWeight[] denseWeights = {
+					new EdgeWeight.MedianAffinityWeight( nBins, 0.0, 1.0 ),
+					new EdgeWeight.PercentileAffinityWeight( nBins, 0.0, 1.0, 0.0 ),
+					new EdgeWeight.PercentileAffinityWeight( nBins, 0.0, 1.0, 0.3 ),
+					new EdgeWeight.PercentileAffinityWeight( nBins, 0.0, 1.0, 1.0 ) };
+			final EdgeWeight[] sparseWeights = {
+					new EdgeWeight.SparseMedianAffinityWeight( histogram ),
+					new EdgeWeight.SparsePercentileAffinityWeight( histogram, 0.0 ),
+					new EdgeWeight.SparsePercentileAffinityWeight( histogram, 0.3 ),
+					new EdgeWeight.SparsePercentileAffinityWeight( histogram, 1.0 ) };
+
+			for ( int k = 0; k < nEdges; ++k )
+			{
+				final double affinity = rng.nextDouble();
+				denseCreator.create( dense, Double.NaN, affinity, k, k + 1, 1 );
+				sparseCreator.create( sparse, Double.NaN, affinity, k, k + 1, 1 );
+			}
+
+			// merge edges into a shrinking set of targets, sources are
+			// discarded as in UndirectedGraph
+			final boolean[] isDiscarded = new boolean[ nEdges ];
+			for ( int iteration = 0; iteration < 2 * nEdges; ++iteration )
+			{
+				final int source = rng.nextInt( nEdges );
+				final int target = rng.nextInt( nEdges );
+				if ( source == target || isDiscarded[ source ] || isDiscarded[ target ] )
+					continue;
+				denseSource.setIndex( source );
+				sparseSource.setIndex( source );
+				dense.setIndex( target );
+				sparse.setIndex( target );
+				denseMerger.merge( denseSource, dense );
+				sparseMerger.merge( sparseSource, sparse );
+				isDiscarded[ source ] = true;
+			}
+
+			// counts beyond 16 bits
+			sparse.setIndex( 0 );
+			dense.setIndex( 0 );
+			if ( !isDiscarded[ 0 ] )
+			{
+				histogram.add( sparse, 0, 0, 1 << 20 );
+				dense.setData( 0, Edge.ltd( Edge.dtl( dense.getData( 0 ) ) + ( 1 << 20 ) ) );
+				dense.setData( 1, Edge.ltd( Edge.dtl( dense.getData( 1 ) ) + ( 1 << 20 ) ) );
+			}
+
+			for ( int k = 0; k < nEdges; ++k )
+			{
+				if ( isDiscarded[ k ] )
+					continue;
+				dense.setIndex( k );
+				sparse.setIndex( k );
+				Assert.assertEquals( Edge.dtl( dense.getData( 0 ) ), histogram.count( sparse, 0 ) );
+				for ( int bin = 0; bin < nBins; ++bin )
+					Assert.assertEquals( Edge.dtl( dense.getData( bin + 1 ) ), histogram.binCount( sparse, 0, bin ) );
+				for ( int i = 0; i < denseWeights.length; ++i )
+					Assert.assertEquals( denseWeights[ i ].weight( dense ), sparseWeights[ i ].weight( sparse ), 1e-12 );
+			}
+		}
+	}
+
+	@Test
+	public void testPromotion()
+	{
+		final SparseHistogram histogram = new SparseHistogram( 100, 0.0, 1.0, 1 );
+		final EdgeStore store = new ColumnarEdgeStore( histogram.dataSize() );
+		final Edge e = new Edge( store );
+		final Edge source = new Edge( store );
+		e.setIndex( e.add( Double.NaN, 0.5, 0, 1, 1 ) );
+		histogram.add( e, 0, 50, 1 );
+		histogram.add( e, 0, 10, 1 );
+		histogram.add( e, 0, 50, 2 );
+		Assert.assertFalse( histogram.isDense( e, 0 ) );
+		Assert.assertEquals( 0, store.overflowSize() );
+
+		histogram.add( e, 0, 90, 1 );
+		Assert.assertTrue( histogram.isDense( e, 0 ) );
+		Assert.assertEquals( 100, store.overflowSize() );
+		Assert.assertEquals( 5, histogram.count( e, 0 ) );
+		Assert.assertEquals( 1, histogram.binCount( e, 0, 10 ) );
+		Assert.assertEquals( 3, histogram.binCount( e, 0, 50 ) );
+		Assert.assertEquals( 1, histogram.binCount( e, 0, 90 ) );
+
+		// sparse target adopts dense row of source
+		source.setIndex( 0 );
+		e.setIndex( e.add( Double.NaN, 0.5, 1, 2, 1 ) );
+		histogram.add( e, 0, 10, 2 );
+		histogram.merge( source, e, 0 );
+		Assert.assertTrue( histogram.isDense( e, 0 ) );
+		Assert.assertEquals( 100, store.overflowSize() );
+		Assert.assertEquals( 3, histogram.binCount( e, 0, 10 ) );
+		Assert.assertEquals( 7, histogram.count( e, 0 ) );
+
+		// dense source is released into dense target
+		source.setIndex( 1 );
+		e.setIndex( e.add( Double.NaN, 0.5, 2, 3, 1 ) );
+		histogram.add( e, 0, 1, 1 );
+		histogram.add( e, 0, 2, 1 );
+		histogram.add( e, 0, 3, 1 );
+		Assert.assertEquals( 200, store.overflowSize() );
+		histogram.merge( source, e, 0 );
+		Assert.assertEquals( 10, histogram.count( e, 0 ) );
+		Assert.assertEquals( 3, histogram.binCount( e, 0, 50 ) );
+		Assert.assertEquals( 1, histogram.binCount( e, 0, 3 ) );
+
+		// released row is reused and cleared
+		e.setIndex( e.add( Double.NaN, 0.5, 3, 4, 1 ) );
+		histogram.add( e, 0, 4, 1 << 20 );
+		Assert.assertTrue( histogram.isDense( e, 0 ) );
+		Assert.assertEquals( 200, store.overflowSize() );
+		Assert.assertEquals( 1 << 20, histogram.binCount( e, 0, 4 ) );
+		Assert.assertEquals( 0, histogram.binCount( e, 0, 50 ) );
+	}
+
+	@Test
+	public void testDenseRowsInStore() throws IOException, ClassNotFoundException
+	{
+		final SparseHistogram histogram = new SparseHistogram( 100, 0.0, 1.0, 1 );
+		final EdgeStore[] stores = {
+				new ColumnarEdgeStore( histogram.dataSize() ),
+				new InterleavedEdgeStore( histogram.dataSize() ),
+				new OffHeapEdgeStore( histogram.dataSize() ) };
+		for ( final EdgeStore store : stores )
+		{
+			final Edge e = new Edge( store );
+			e.setIndex( e.add( Double.NaN, 0.5, 0, 1, 1 ) );
+			histogram.add( e, 0, 10, 1 );
+			histogram.add( e, 0, 20, 1 );
+			histogram.add( e, 0, 30, 1 );
+			Assert.assertTrue( histogram.isDense( e, 0 ) );
+
+			// other instances read the same dense rows
+			final SparseHistogram other = new SparseHistogram( 100, 0.0, 1.0, 1 );
+			Assert.assertEquals( 1, other.binCount( e, 0, 10 ) );
+			Assert.assertEquals( 1, other.binCount( e, 0, 30 ) );
+
+			// copies get their own dense row
+			final Edge copy = new Edge( store );
+			copy.setIndex( copy.add( Double.NaN, 0.5, 1, 2, 1 ) );
+			histogram.copy( e, copy, 0 );
+			Assert.assertEquals( 200, store.overflowSize() );
+			histogram.add( copy, 0, 10, 5 );
+			Assert.assertEquals( 1, histogram.binCount( e, 0, 10 ) );
+			Assert.assertEquals( 6, histogram.binCount( copy, 0, 10 ) );
+			Assert.assertEquals( 3, histogram.count( e, 0 ) );
+			Assert.assertEquals( 8, histogram.count( copy, 0 ) );
+
+			// dense rows are serialized with the store
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (final ObjectOutputStream out = new ObjectOutputStream( bytes ))
+			{
+				out.writeObject( store );
+			}
+			try (final ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ))
+			{
+				final Edge deserialized = new Edge( ( EdgeStore ) in.readObject() );
+				final EdgeWeight weight = new EdgeWeight.SparseMedianAffinityWeight( new SparseHistogram( 100, 0.0, 1.0, 1 ) );
+				final EdgeWeight reference = new EdgeWeight.SparseMedianAffinityWeight( histogram );
+				for ( int k = 0; k < 2; ++k )
+				{
+					deserialized.setIndex( k );
+					e.setIndex( k );
+					Assert.assertEquals( reference.weight( e ), weight.weight( deserialized ), 0.0 );
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.graph.UndirectedGraph;
+import org.janelia.saalfeldlab.graph.edge.Edge;
+import org.janelia.saalfeldlab.graph.edge.EdgeMerger;
+import org.janelia.saalfeldlab.graph.edge.EdgeWeight;
+import org.janelia.saalfeldlab.util.unionfind.HashMapStoreUnionFind;
+import org.junit.Assert;
+import org.junit.Test;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+
+public class CompressedMergeLogTest
+{
+
+	@Test
+	public void testSameAsInMemoryLog() throws IOException
+	{
+		final Random rng = new Random( 100 );
+		final EdgeMerger merger = new EdgeMerger.AVG_AFFINITY_MERGER();
+		final EdgeWeight ew = new EdgeWeight.OneMinusAffinity();
+		final int nNodes = 2000;
+
+		final TDoubleArrayList store = new TDoubleArrayList();
+		final Edge e = new Edge( store, merger.dataSize() );
+		for ( int i = 0; i < 4 * nNodes; ++i )
+		{
+			final int from = rng.nextInt( nNodes );
+			final int to = rng.nextInt( nNodes );
+			if ( from != to )
+				e.add( Double.NaN, rng.nextInt( 100 ) / 100.0, from, to, 1 );
+		}
+
+		final TLongArrayList reference = RegionMerging.mergeLocallyMinimalEdges( new UndirectedGraph( nNodes, new TDoubleArrayList( store.toArray() ), merger ), merger, ew, 0.8 ).getA();
+		final long nMerges = reference.size() / RegionMerging.MERGES_LOG_STEP_SIZE;
+		Assert.assertTrue( nMerges > 100 );
+
+		final Path file = Files.createTempFile( "merges", ".bin" );
+		try
+		{
+			try (final CompressedMergeSink sink = new CompressedMergeSink( file, 64 ))
+			{
+				RegionMerging.mergeLocallyMinimalEdges( new UndirectedGraph( nNodes, store, merger ), merger, ew, 0.8, 0, new TIntHashSet(), null, new HashMapStoreUnionFind(), RegionMerging.NO_COMPACTION, sink );
+				Assert.assertEquals( nMerges, sink.size() );
+			}
+			Assert.assertTrue( Files.size( file ) < nMerges * FileMergeSink.RECORD_BYTES / 2 );
+
+			try (final CompressedMergeLogReader reader = new CompressedMergeLogReader( file ))
+			{
+				Assert.assertEquals( nMerges, reader.size() );
+				Assert.assertEquals( reference, reader.read() );
+
+				// random access and replay from the middle of a block
+				final long first = nMerges / 3 + 1;
+				final int block = reader.block( first );
+				Assert.assertTrue( reader.firstMerge( block ) <= first );
+				Assert.assertTrue( block + 1 == reader.nBlocks() || reader.firstMerge( block + 1 ) > first );
+				final TLongArrayList tail = new TLongArrayList();
+				Assert.assertEquals( nMerges, reader.replay( first, MergeSink.of( tail ) ) );
+				Assert.assertEquals( new TLongArrayList( Arrays.copyOfRange( reference.toArray(), ( int ) first * RegionMerging.MERGES_LOG_STEP_SIZE, reference.size() ) ), tail );
+			}
+		}
+		finally
+		{
+			Files.delete( file );
+		}
+	}
+
+	@Test
+	public void testReadWhileWriting() throws IOException
+	{
+		final Random rng = new Random( 100 );
+		final Path file = Files.createTempFile( "merges", ".bin" );
+		try (final CompressedMergeSink sink = new CompressedMergeSink( file, 4 );
+				final CompressedMergeLogReader reader = new CompressedMergeLogReader( file ))
+		{
+			final TLongArrayList reference = new TLongArrayList();
+			final MergeSink referenceSink = MergeSink.of( reference );
+			final TLongArrayList merges = new TLongArrayList();
+			final MergeSink consumer = MergeSink.of( merges );
+			Assert.assertEquals( 0, reader.replay( 0, consumer ) );
+
+			// extreme values for varints and zig-zag
+			final long[] values = { 0, 1, -1, Long.MAX_VALUE, Long.MIN_VALUE, 1l << 40 };
+			final double[] weights = { 0.0, -0.0, 0.5, Double.NaN, Double.POSITIVE_INFINITY, -1e300 };
+			for ( int i = 0; i < 10; ++i )
+			{
+				final long edgeIndex = values[ rng.nextInt( values.length ) ];
+				final double weight = weights[ rng.nextInt( weights.length ) ];
+				final long from = values[ rng.nextInt( values.length ) ];
+				final long to = rng.nextLong();
+				sink.add( edgeIndex, weight, from, to );
+				referenceSink.add( edgeIndex, weight, from, to );
+			}
+			// two full blocks were written, the rest is still buffered
+			long position = reader.replay( 0, consumer );
+			Assert.assertEquals( 8, position );
+			Assert.assertEquals( 2, reader.nBlocks() );
+
+			sink.flush();
+			position = reader.replay( position, consumer );
+			Assert.assertEquals( 10, position );
+			Assert.assertEquals( 3, reader.nBlocks() );
+			Assert.assertEquals( reference, merges );
+		}
+		finally
+		{
+			Files.delete( file );
+		}
+	}
+
+}
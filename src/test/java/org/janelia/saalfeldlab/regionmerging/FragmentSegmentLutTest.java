@@ -0,0 +1,99 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.janelia.saalfeldlab.util.unionfind.HashMapStoreUnionFind;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.view.Views;
+
+public class FragmentSegmentLutTest
+{
+
+	@Test
+	public void testSameAsFindRoot()
+	{
+		final Random rng = new Random( 100 );
+		final int nFragments = 100;
+		final long[] dimensions = { 17, 13, 9 };
+		final int[] blockSize = { 4, 5, 3 };
+
+		final HashMapStoreUnionFind uf = new HashMapStoreUnionFind();
+		for ( int i = 0; i < nFragments / 2; ++i )
+		{
+			final long r1 = uf.findRoot( rng.nextInt( nFragments ) );
+			final long r2 = uf.findRoot( rng.nextInt( nFragments ) );
+			if ( r1 != r2 )
+				uf.join( r1, r2 );
+		}
+
+		// labels beyond the dense table map to themselves
+		final long[] labels = new long[ ( int ) ( dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ) ];
+		final long[] expected = new long[ labels.length ];
+		for ( int i = 0; i < labels.length; ++i )
+		{
+			labels[ i ] = rng.nextInt( nFragments + 10 );
+			expected[ i ] = uf.findRoot( labels[ i ] );
+		}
+
+		final FragmentSegmentLut dense = FragmentSegmentLut.dense( uf, nFragments );
+		final FragmentSegmentLut sparse = FragmentSegmentLut.sparse( uf, labels.clone() );
+		Assert.assertTrue( dense.isDense() );
+		Assert.assertFalse( sparse.isDense() );
+		Assert.assertEquals( nFragments, dense.size() );
+		for ( int i = 0; i < labels.length; ++i )
+		{
+			Assert.assertEquals( expected[ i ], dense.segment( labels[ i ] ) );
+			Assert.assertEquals( expected[ i ], sparse.segment( labels[ i ] ) );
+		}
+		Assert.assertEquals( -1, sparse.segment( -1 ) );
+
+		final RandomAccessibleInterval< LongType > source = ArrayImgs.longs( labels.clone(), dimensions );
+		Assert.assertEquals( 5 * 3 * 3, FragmentSegmentLut.blocks( source, blockSize ).size() );
+
+		final long[] relabeled = new long[ labels.length ];
+		dense.relabel( source, ArrayImgs.longs( relabeled, dimensions ), blockSize, new ForkJoinPool( 3 ) );
+		Assert.assertArrayEquals( expected, relabeled );
+
+		final long[] inPlace = labels.clone();
+		final RandomAccessibleInterval< LongType > img = ArrayImgs.longs( inPlace, dimensions );
+		sparse.relabel( img, img, blockSize, null );
+		Assert.assertArrayEquals( expected, inPlace );
+
+		final Cursor< LongType > view = Views.flatIterable( dense.view( source, new LongType() ) ).cursor();
+		for ( int i = 0; i < labels.length; ++i )
+			Assert.assertEquals( expected[ i ], view.next().getIntegerLong() );
+		Assert.assertFalse( view.hasNext() );
+	}
+
+	@Test
+	public void testInvalidBlocks()
+	{
+		final FragmentSegmentLut lut = FragmentSegmentLut.dense( new long[] { 0, 0, 1 } );
+		final RandomAccessibleInterval< LongType > img = ArrayImgs.longs( 4, 3 );
+		for ( final int[] blockSize : new int[][] { { 2, 0 }, { 2, -1 }, { 2 }, { 2, 2, 2 } } )
+		{
+			try
+			{
+				lut.relabel( img, img, blockSize, null );
+				Assert.fail();
+			}
+			catch ( final IllegalArgumentException expected )
+			{}
+		}
+		try
+		{
+			lut.relabel( img, ArrayImgs.longs( 4, 3, 1 ), new int[] { 2, 2 }, null );
+			Assert.fail();
+		}
+		catch ( final IllegalArgumentException expected )
+		{}
+	}
+
+}
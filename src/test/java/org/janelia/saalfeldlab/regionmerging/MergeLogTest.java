@@ -0,0 +1,107 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.graph.UndirectedGraph;
+import org.janelia.saalfeldlab.graph.edge.Edge;
+import org.janelia.saalfeldlab.graph.edge.EdgeMerger;
+import org.janelia.saalfeldlab.graph.edge.EdgeWeight;
+import org.janelia.saalfeldlab.util.unionfind.HashMapStoreUnionFind;
+import org.junit.Assert;
+import org.junit.Test;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+
+public class MergeLogTest
+{
+
+	@Test
+	public void testSameAsInMemoryLog() throws IOException
+	{
+		final Random rng = new Random( 100 );
+		final EdgeMerger merger = new EdgeMerger.AVG_AFFINITY_MERGER();
+		final EdgeWeight ew = new EdgeWeight.OneMinusAffinity();
+		final int nNodes = 1000;
+
+		final TDoubleArrayList store = new TDoubleArrayList();
+		final Edge e = new Edge( store, merger.dataSize() );
+		for ( int i = 0; i < 4 * nNodes; ++i )
+		{
+			final int from = rng.nextInt( nNodes );
+			final int to = rng.nextInt( nNodes );
+			if ( from != to )
+				e.add( Double.NaN, rng.nextDouble(), from, to, 1 );
+		}
+
+		final TLongArrayList reference = RegionMerging.mergeLocallyMinimalEdges( new UndirectedGraph( nNodes, new TDoubleArrayList( store.toArray() ), merger ), merger, ew, 0.8 ).getA();
+		Assert.assertTrue( reference.size() > 0 );
+
+		final Path file = Files.createTempFile( "merges", ".bin" );
+		try (final FileMergeSink sink = new FileMergeSink( file, 7 ))
+		{
+			RegionMerging.mergeLocallyMinimalEdges( new UndirectedGraph( nNodes, store, merger ), merger, ew, 0.8, 0, new TIntHashSet(), null, new HashMapStoreUnionFind(), RegionMerging.NO_COMPACTION, sink );
+			Assert.assertEquals( reference.size() / RegionMerging.MERGES_LOG_STEP_SIZE, sink.size() );
+
+			// flushed after the last iteration, readable before close
+			try (final MergeLogReader reader = new MergeLogReader( file ))
+			{
+				Assert.assertEquals( sink.size(), reader.size() );
+				Assert.assertEquals( reference, reader.read() );
+
+				final LongBuffer mapped = reader.map();
+				Assert.assertEquals( reference.size(), mapped.capacity() );
+				for ( int i = 0; i < reference.size(); ++i )
+					Assert.assertEquals( reference.get( i ), mapped.get( i ) );
+			}
+		}
+		finally
+		{
+			Files.delete( file );
+		}
+	}
+
+	@Test
+	public void testReadWhileWriting() throws IOException
+	{
+		final Path file = Files.createTempFile( "merges", ".bin" );
+		try (final FileMergeSink sink = new FileMergeSink( file, 4 );
+				final MergeLogReader reader = new MergeLogReader( file ))
+		{
+			final TLongArrayList merges = new TLongArrayList();
+			final MergeSink consumer = MergeSink.of( merges );
+			long position = reader.replay( 0, consumer );
+			Assert.assertEquals( 0, position );
+
+			for ( int i = 0; i < 10; ++i )
+				sink.add( i, 0.1 * i, 2 * i, 2 * i + 1 );
+			// two full buffers were written, the rest is still buffered
+			position = reader.replay( position, consumer );
+			Assert.assertEquals( 8, position );
+
+			sink.flush();
+			position = reader.replay( position, consumer );
+			Assert.assertEquals( 10, position );
+
+			Assert.assertEquals( 10 * RegionMerging.MERGES_LOG_STEP_SIZE, merges.size() );
+			for ( int i = 0; i < 10; ++i )
+			{
+				final int offset = i * RegionMerging.MERGES_LOG_STEP_SIZE;
+				Assert.assertEquals( i, merges.get( offset + RegionMerging.MERGES_LOG_EDGE_INDEX_OFFSET ) );
+				Assert.assertEquals( 0.1 * i, Double.longBitsToDouble( merges.get( offset + RegionMerging.MERGES_LOG_WEIGHT_OFFSET ) ), 0.0 );
+				Assert.assertEquals( 2 * i, merges.get( offset + RegionMerging.MERGES_LOG_FROM_OFFSET ) );
+				Assert.assertEquals( 2 * i + 1, merges.get( offset + RegionMerging.MERGES_LOG_TO_OFFSET ) );
+			}
+		}
+		finally
+		{
+			Files.delete( file );
+		}
+	}
+
+}
@@ -0,0 +1,137 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.graph.UndirectedGraph;
+import org.janelia.saalfeldlab.graph.edge.Edge;
+import org.janelia.saalfeldlab.graph.edge.EdgeMerger;
+import org.janelia.saalfeldlab.graph.edge.EdgeWeight;
+import org.janelia.saalfeldlab.util.unionfind.ArrayStoreUnionFind;
+import org.janelia.saalfeldlab.util.unionfind.HashMapStoreUnionFind;
+import org.junit.Assert;
+import org.junit.Test;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+
+public class MergeTreeTest
+{
+
+	@Test
+	public void testSameAsReplay()
+	{
+		final Random rng = new Random( 100 );
+		final int nFragments = 1000;
+
+		// merges in order of increasing weight, as in Kruskal
+		final TLongArrayList merges = new TLongArrayList();
+		final MergeSink sink = MergeSink.of( merges );
+		final ArrayStoreUnionFind uf = new ArrayStoreUnionFind( nFragments );
+		double weight = 0.0;
+		for ( int i = 0; i < 4 * nFragments; ++i )
+		{
+			final long r1 = uf.findRoot( rng.nextInt( nFragments ) );
+			final long r2 = uf.findRoot( rng.nextInt( nFragments ) );
+			if ( r1 != r2 )
+			{
+				weight += rng.nextInt( 3 ) * 0.01;
+				sink.add( i, weight, r1, r2 );
+				uf.join( r1, r2 );
+			}
+		}
+
+		final MergeTree tree = MergeTree.fromMergeLog( merges, nFragments );
+		Assert.assertEquals( merges.size() / RegionMerging.MERGES_LOG_STEP_SIZE, tree.nMerges() );
+		Assert.assertEquals( nFragments + tree.nMerges(), tree.nNodes() );
+
+		for ( final double threshold : new double[] { Double.NEGATIVE_INFINITY, 0.0, 0.1, weight / 2, weight - 0.01, weight, Double.POSITIVE_INFINITY } )
+		{
+			final int[] expected = replay( merges, nFragments, threshold );
+			final int[] lut = tree.lut( threshold );
+			Assert.assertArrayEquals( expected, lut );
+			Assert.assertEquals( Arrays.stream( expected ).distinct().count(), tree.nSegments( threshold ) );
+			for ( int fragment = 0; fragment < nFragments; ++fragment )
+				Assert.assertEquals( lut[ fragment ], tree.segment( fragment, threshold ) );
+		}
+	}
+
+	@Test
+	public void testMonotoneHeights()
+	{
+		final MergeTree.Builder builder = new MergeTree.Builder( 4 );
+		builder.add( 0, 0.5, 2, 3 );
+		builder.add( 1, 0.2, 3, 1 );
+		// already merged
+		builder.add( 2, 0.1, 1, 2 );
+		builder.add( 3, 0.7, 0, 1 );
+		final MergeTree tree = builder.build();
+
+		Assert.assertEquals( 3, tree.nMerges() );
+		Assert.assertEquals( 0.5, tree.height( 4 ), 0.0 );
+		Assert.assertEquals( 0.5, tree.height( 5 ), 0.0 );
+		Assert.assertEquals( 0.7, tree.height( 6 ), 0.0 );
+		Assert.assertEquals( 5, tree.parent( 1 ) );
+		Assert.assertEquals( 5, tree.parent( 4 ) );
+		Assert.assertEquals( MergeTree.NO_PARENT, tree.parent( 6 ) );
+		Assert.assertEquals( 1, tree.representative( 5 ) );
+
+		Assert.assertArrayEquals( new int[] { 0, 1, 2, 3 }, tree.lut( 0.2 ) );
+		Assert.assertArrayEquals( new int[] { 0, 1, 1, 1 }, tree.lut( 0.5 ) );
+		Assert.assertArrayEquals( new int[] { 0, 0, 0, 0 }, tree.lut( 0.7 ) );
+		Assert.assertEquals( 2, tree.nSegments( 0.6 ) );
+	}
+
+	@Test
+	public void testRegionMergingSink()
+	{
+		final Random rng = new Random( 100 );
+		final EdgeMerger merger = new EdgeMerger.AVG_AFFINITY_MERGER();
+		final EdgeWeight ew = new EdgeWeight.OneMinusAffinity();
+		final int nNodes = 1000;
+
+		final TDoubleArrayList store = new TDoubleArrayList();
+		final Edge e = new Edge( store, merger.dataSize() );
+		for ( int i = 0; i < 4 * nNodes; ++i )
+		{
+			final int from = rng.nextInt( nNodes );
+			final int to = rng.nextInt( nNodes );
+			if ( from != to )
+				e.add( Double.NaN, rng.nextDouble(), from, to, 1 );
+		}
+
+		final MergeTree.Builder builder = new MergeTree.Builder( nNodes );
+		final HashMapStoreUnionFind uf = RegionMerging.mergeLocallyMinimalEdges( new UndirectedGraph( nNodes, store, merger ), merger, ew, 0.8, 0, new TIntHashSet(), null, new HashMapStoreUnionFind(), RegionMerging.NO_COMPACTION, builder );
+		final MergeTree tree = builder.build();
+		Assert.assertTrue( tree.nMerges() > 0 );
+
+		final int[] lut = tree.lut( Double.POSITIVE_INFINITY );
+		for ( int i = 0; i < nNodes; ++i )
+			for ( int k = i + 1; k < nNodes; ++k )
+				Assert.assertEquals( uf.findRoot( i ) == uf.findRoot( k ), lut[ i ] == lut[ k ] );
+		for ( int i = 0; i < nNodes; ++i )
+			Assert.assertTrue( lut[ i ] <= i );
+	}
+
+	private static int[] replay( final TLongArrayList merges, final int nFragments, final double threshold )
+	{
+		final ArrayStoreUnionFind uf = new ArrayStoreUnionFind( nFragments );
+		for ( int i = 0; i < merges.size(); i += RegionMerging.MERGES_LOG_STEP_SIZE )
+			if ( Double.longBitsToDouble( merges.get( i + RegionMerging.MERGES_LOG_WEIGHT_OFFSET ) ) <= threshold )
+				uf.join( uf.findRoot( merges.get( i + RegionMerging.MERGES_LOG_FROM_OFFSET ) ), uf.findRoot( merges.get( i + RegionMerging.MERGES_LOG_TO_OFFSET ) ) );
+
+		final int[] smallest = new int[ nFragments ];
+		Arrays.fill( smallest, nFragments );
+		for ( int fragment = 0; fragment < nFragments; ++fragment )
+		{
+			final int root = ( int ) uf.findRoot( fragment );
+			smallest[ root ] = Math.min( smallest[ root ], fragment );
+		}
+		final int[] lut = new int[ nFragments ];
+		for ( int fragment = 0; fragment < nFragments; ++fragment )
+			lut[ fragment ] = smallest[ ( int ) uf.findRoot( fragment ) ];
+		return lut;
+	}
+
+}
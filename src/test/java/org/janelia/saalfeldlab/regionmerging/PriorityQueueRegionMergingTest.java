@@ -0,0 +1,145 @@
+package org.janelia.saalfeldlab.regionmerging;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.graph.UndirectedGraph;
+import org.janelia.saalfeldlab.graph.edge.Edge;
+import org.janelia.saalfeldlab.graph.edge.EdgeMerger;
+import org.janelia.saalfeldlab.graph.edge.EdgeWeight;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+
+public class PriorityQueueRegionMergingTest
+{
+
+	public static Logger LOG = LoggerFactory.getLogger( MethodHandles.lookup().lookupClass() );
+
+	@Test
+	public void testSingleMerge()
+	{
+		final TDoubleArrayList store = new TDoubleArrayList();
+		final EdgeMerger merger = new EdgeMerger.MIN_AFFINITY_MERGER();
+		final EdgeWeight ew = ( e ) -> 1 - e.affinity();
+		final Edge e = new Edge( store, merger.dataSize() );
+
+		final double lowAffinity = 0.1;
+		final double highAffinity = 0.9;
+
+		e.add( Double.NaN, lowAffinity, 0, 2, 1 );
+		e.add( Double.NaN, lowAffinity, 1, 2, 1 );
+		e.add( Double.NaN, lowAffinity, 1, 5, 1 );
+		e.add( Double.NaN, highAffinity, 2, 3, 1 );
+		e.add( Double.NaN, lowAffinity, 2, 6, 1 );
+		e.add( Double.NaN, lowAffinity, 3, 4, 1 );
+		e.add( Double.NaN, lowAffinity, 3, 7, 1 );
+		e.add( Double.NaN, lowAffinity, 4, 8, 1 );
+
+		for ( int i = 0; i < e.size(); ++i )
+		{
+			e.setIndex( i );
+			e.setStale();
+			e.setValid();
+		}
+
+		final UndirectedGraph g = new UndirectedGraph( 9, store, merger );
+
+		final TLongArrayList merges = PriorityQueueRegionMerging.mergeLocallyMinimalEdges( g, merger, ew, 0.5 ).getA();
+
+		Assert.assertEquals( 4, merges.size() );
+		Assert.assertEquals( 3, merges.get( 0 ) );
+		Assert.assertEquals( 1 - highAffinity, Double.longBitsToDouble( merges.get( 1 ) ), 1e-20 );
+
+		for ( int i = 0; i < e.size(); ++i )
+		{
+			e.setIndex( i );
+			Assert.assertTrue( "Edge state for i=" + i + ": " + e.toString(), i == 3 ? e.isObsolete() : e.isValid() );
+			if ( e.isValid() )
+				Assert.assertEquals( 1 - lowAffinity, e.weight(), 1e-20 );
+		}
+	}
+
+	@Test
+	public void testConsecutiveMerge()
+	{
+		final TDoubleArrayList store = new TDoubleArrayList();
+		final EdgeMerger merger = new EdgeMerger.MIN_AFFINITY_MERGER();
+		final EdgeWeight ew = ( e ) -> 1 - e.affinity();
+		final Edge e = new Edge( store, merger.dataSize() );
+
+		e.add( Double.NaN, 0.1, 0, 2, 1 );
+		e.add( Double.NaN, 0.1, 1, 2, 1 );
+		e.add( Double.NaN, 0.1, 1, 5, 1 );
+		e.add( Double.NaN, 0.9, 2, 3, 1 );
+		e.add( Double.NaN, 0.1, 2, 6, 1 );
+		e.add( Double.NaN, 0.5, 3, 4, 1 );
+		e.add( Double.NaN, 0.1, 3, 7, 1 );
+		e.add( Double.NaN, 0.1, 4, 8, 1 );
+
+		for ( int i = 0; i < e.size(); ++i )
+		{
+			e.setIndex( i );
+			e.setStale();
+			e.setValid();
+		}
+
+		final UndirectedGraph g = new UndirectedGraph( 9, store, merger );
+
+		final TLongArrayList merges = PriorityQueueRegionMerging.mergeLocallyMinimalEdges( g, merger, ew, 0.8 ).getA();
+
+		Assert.assertEquals( 8, merges.size() );
+		Assert.assertEquals( 3, merges.get( 0 ) );
+		Assert.assertEquals( 5, merges.get( 4 ) );
+	}
+
+	@Test
+	public void testNoLocallyMinimalEdgeRemains()
+	{
+		final Random rng = new Random( 100 );
+		final EdgeMerger merger = new EdgeMerger.AVG_AFFINITY_MERGER();
+		final EdgeWeight ew = new EdgeWeight.OneMinusAffinity();
+		final int nNodes = 500;
+		final double threshold = 0.6;
+
+		for ( int trial = 0; trial < 10; ++trial )
+		{
+			final TDoubleArrayList store = new TDoubleArrayList();
+			final Edge e = new Edge( store, merger.dataSize() );
+			for ( int i = 0; i < 4 * nNodes; ++i )
+			{
+				final int from = rng.nextInt( nNodes );
+				final int to = rng.nextInt( nNodes );
+				// coarse affinities to create plateaus
+				if ( from != to )
+					e.add( Double.NaN, rng.nextInt( 20 ) / 20.0, from, to, 1 );
+			}
+			final TIntHashSet nonContractingEdges = new TIntHashSet();
+			for ( int i = 0; i < 10; ++i )
+				nonContractingEdges.add( rng.nextInt( e.size() ) );
+			for ( int i = 0; i < e.size(); ++i )
+			{
+				e.setIndex( i );
+				e.setStale();
+				e.setValid();
+			}
+
+			final UndirectedGraph g = new UndirectedGraph( nNodes, store, merger );
+			final TLongArrayList merges = PriorityQueueRegionMerging.mergeLocallyMinimalEdges( g, merger, ew, threshold, 0, nonContractingEdges ).getA();
+			Assert.assertTrue( merges.size() > 0 );
+
+			for ( int i = 0; i < merges.size(); i += RegionMerging.MERGES_LOG_STEP_SIZE )
+				Assert.assertTrue( Double.longBitsToDouble( merges.get( i + RegionMerging.MERGES_LOG_WEIGHT_OFFSET ) ) <= threshold );
+
+			// the result must be a fixed point of the sweep based merging
+			final TLongArrayList remainingMerges = RegionMerging.mergeLocallyMinimalEdges( g, merger, ew, threshold, 0, nonContractingEdges ).getA();
+			Assert.assertEquals( 0, remainingMerges.size() );
+		}
+	}
+
+}
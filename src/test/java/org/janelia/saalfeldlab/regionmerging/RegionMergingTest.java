@@ -1,11 +1,17 @@
 package org.janelia.saalfeldlab.regionmerging;
 
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.janelia.saalfeldlab.graph.UndirectedGraph;
 import org.janelia.saalfeldlab.graph.edge.Edge;
 import org.janelia.saalfeldlab.graph.edge.EdgeMerger;
 import org.janelia.saalfeldlab.graph.edge.EdgeWeight;
+import org.janelia.saalfeldlab.util.unionfind.ArrayStoreUnionFind;
+import org.janelia.saalfeldlab.util.unionfind.HashMapStoreUnionFind;
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -14,6 +20,8 @@ import org.slf4j.LoggerFactory;
 import gnu.trove.list.array.TDoubleArrayList;
 import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import net.imglib2.util.Pair;
 
 public class RegionMergingTest
 {
@@ -166,4 +174,315 @@ public class RegionMergingTest
 
 	}
 
+	@Test
+	public void testParallelMinimaAndPlateaus()
+	{
+
+		LOG.debug( "Running test: parallel minima and plateaus" );
+
+		final Random rng = new Random( 100 );
+		final EdgeMerger merger = new EdgeMerger.AVG_AFFINITY_MERGER();
+		final EdgeWeight ew = new EdgeWeight.OneMinusAffinity();
+		final int nNodes = 2000;
+		final double threshold = 0.7;
+
+		final TDoubleArrayList store = new TDoubleArrayList();
+		final Edge e = new Edge( store, merger.dataSize() );
+		for ( int i = 0; i < 5 * nNodes; ++i )
+		{
+			final int from = rng.nextInt( nNodes );
+			final int to = rng.nextInt( nNodes );
+			// coarse affinities to create plateaus
+			if ( from != to )
+				e.add( Double.NaN, rng.nextInt( 20 ) / 20.0, from, to, 1 + rng.nextInt( 3 ) );
+		}
+		final TIntHashSet nonContractingEdges = new TIntHashSet();
+		for ( int i = 0; i < 20; ++i )
+			nonContractingEdges.add( rng.nextInt( e.size() ) );
+
+		for ( int i = 0; i < e.size(); ++i )
+		{
+			e.setIndex( i );
+			e.setValid();
+			e.setStale();
+		}
+
+		final UndirectedGraph g = new UndirectedGraph( nNodes, new TDoubleArrayList( store.toArray() ), merger );
+		final Edge e1 = new Edge( g.edges() );
+		final Edge e2 = new Edge( g.edges() );
+		for ( int i = 0; i < e1.size(); ++i )
+		{
+			e1.setIndex( i );
+			e1.weight( e1.isValid() ? ew.weight( e1 ) : Double.POSITIVE_INFINITY );
+		}
+
+		final int nEdges = e1.size();
+		final boolean[] localMinimum = new boolean[ nEdges ];
+		final boolean[] isInPlateau = new boolean[ nEdges ];
+		final boolean[] isNeighborOfNonContractable = new boolean[ nEdges ];
+		final HashMapStoreUnionFind plateausUnionFind = new HashMapStoreUnionFind();
+		final IncidentWeightMinima minima = new IncidentWeightMinima( 2 );
+		minima.compute( g );
+		RegionMerging.findMinimaAndPlateaus( g, localMinimum, isInPlateau, isNeighborOfNonContractable, nonContractingEdges, minima, e1, e2, plateausUnionFind, threshold, 2 );
+
+		// minima only skip edges that are not local minima
+		final boolean[] localMinimumAllNeighbors = new boolean[ nEdges ];
+		RegionMerging.findMinimaAndPlateaus( g, localMinimumAllNeighbors, new boolean[ nEdges ], new boolean[ nEdges ], nonContractingEdges, null, e1, e2, new HashMapStoreUnionFind(), threshold, 2 );
+		Assert.assertArrayEquals( localMinimumAllNeighbors, localMinimum );
+
+		final boolean[] localMinimumParallel = new boolean[ nEdges ];
+		final boolean[] isInPlateauParallel = new boolean[ nEdges ];
+		final boolean[] isNeighborOfNonContractableParallel = new boolean[ nEdges ];
+		final HashMapStoreUnionFind plateausUnionFindParallel = new HashMapStoreUnionFind();
+		final ForkJoinPool pool = new ForkJoinPool( 4 );
+		RegionMerging.findMinimaAndPlateaus( g, localMinimumParallel, isInPlateauParallel, isNeighborOfNonContractableParallel, nonContractingEdges, minima, plateausUnionFindParallel, threshold, 2, pool, 100 );
+
+		Assert.assertArrayEquals( localMinimum, localMinimumParallel );
+		Assert.assertArrayEquals( isInPlateau, isInPlateauParallel );
+		Assert.assertArrayEquals( isNeighborOfNonContractable, isNeighborOfNonContractableParallel );
+		// plateaus are identical if the first edge of each plateau is the same
+		final TLongLongHashMap firstEdge = new TLongLongHashMap();
+		final TLongLongHashMap firstEdgeParallel = new TLongLongHashMap();
+		for ( int i = 0; i < nEdges; ++i )
+			if ( isInPlateau[ i ] )
+			{
+				final long root = plateausUnionFind.findRoot( i );
+				final long rootParallel = plateausUnionFindParallel.findRoot( i );
+				if ( !firstEdge.contains( root ) )
+					firstEdge.put( root, i );
+				if ( !firstEdgeParallel.contains( rootParallel ) )
+					firstEdgeParallel.put( rootParallel, i );
+				Assert.assertEquals( firstEdge.get( root ), firstEdgeParallel.get( rootParallel ) );
+			}
+
+		final TDoubleArrayList parallelStore = new TDoubleArrayList( store.toArray() );
+		final TLongArrayList merges = RegionMerging.mergeLocallyMinimalEdges( new UndirectedGraph( nNodes, store, merger ), merger, ew, threshold, 2, nonContractingEdges ).getA();
+		final TLongArrayList parallelMerges = RegionMerging.mergeLocallyMinimalEdges( new UndirectedGraph( nNodes, parallelStore, merger ), merger, ew, threshold, 2, nonContractingEdges, pool ).getA();
+		Assert.assertEquals( merges, parallelMerges );
+
+		pool.shutdown();
+	}
+
+	@Test
+	public void testCompaction()
+	{
+		final Random rng = new Random( 100 );
+		final EdgeMerger merger = new EdgeMerger.AVG_AFFINITY_MERGER();
+		final EdgeWeight ew = new EdgeWeight.OneMinusAffinity();
+		final int nNodes = 2000;
+		final double threshold = 0.7;
+
+		final TDoubleArrayList store = new TDoubleArrayList();
+		final Edge e = new Edge( store, merger.dataSize() );
+		for ( int i = 0; i < 5 * nNodes; ++i )
+		{
+			final int from = rng.nextInt( nNodes );
+			final int to = rng.nextInt( nNodes );
+			if ( from != to )
+				e.add( Double.NaN, rng.nextInt( 20 ) / 20.0, from, to, 1 + rng.nextInt( 3 ) );
+		}
+		final TIntHashSet nonContractingEdges = new TIntHashSet();
+		for ( int i = 0; i < 20; ++i )
+			nonContractingEdges.add( rng.nextInt( e.size() ) );
+		final TIntHashSet compactedNonContractingEdges = new TIntHashSet( nonContractingEdges.toArray() );
+
+		final UndirectedGraph g = new UndirectedGraph( nNodes, new TDoubleArrayList( store.toArray() ), merger );
+		final UndirectedGraph compacted = new UndirectedGraph( nNodes, new TDoubleArrayList( store.toArray() ), merger );
+		final int nEdges = g.edges().size();
+		final Pair< TLongArrayList, HashMapStoreUnionFind > result = RegionMerging.mergeLocallyMinimalEdges( g, merger, ew, threshold, 2, nonContractingEdges );
+		final Pair< TLongArrayList, HashMapStoreUnionFind > compactedResult = RegionMerging.mergeLocallyMinimalEdges( compacted, merger, ew, threshold, 2, compactedNonContractingEdges, null, new HashMapStoreUnionFind(), 0.02 );
+
+		// merge log refers to original edge indices
+		Assert.assertEquals( result.getA(), compactedResult.getA() );
+		for ( int node = 0; node < nNodes; ++node )
+			Assert.assertEquals( result.getB().findRoot( node ), compactedResult.getB().findRoot( node ) );
+
+		// obsolete edges were removed, valid edges keep their order
+		Assert.assertTrue( compacted.edges().size() < nEdges );
+		final Edge e1 = new Edge( g.edges() );
+		final Edge e2 = new Edge( compacted.edges() );
+		int index = compacted.edges().nextValid( 0 );
+		for ( int k = g.edges().nextValid( 0 ); k < nEdges; k = g.edges().nextValid( k + 1 ), index = compacted.edges().nextValid( index + 1 ) )
+		{
+			e1.setIndex( k );
+			e2.setIndex( index );
+			Assert.assertEquals( e1.from(), e2.from() );
+			Assert.assertEquals( e1.to(), e2.to() );
+			Assert.assertEquals( e1.affinity(), e2.affinity(), 0.0 );
+			Assert.assertEquals( k, g.edgeIndex( e1.from(), e1.to() ) );
+			Assert.assertEquals( index, compacted.edgeIndex( e2.from(), e2.to() ) );
+			Assert.assertEquals( nonContractingEdges.contains( k ), compactedNonContractingEdges.contains( index ) );
+		}
+		Assert.assertEquals( compacted.edges().size(), index );
+	}
+
+	@Test
+	public void testSweepThresholds()
+	{
+		final Random rng = new Random( 100 );
+		final EdgeMerger merger = new EdgeMerger.AVG_AFFINITY_MERGER();
+		final EdgeWeight ew = new EdgeWeight.OneMinusAffinity();
+		final int nNodes = 2000;
+		final double[] thresholds = { 0.3, 0.3, 0.5, 0.7 };
+
+		final TDoubleArrayList store = new TDoubleArrayList();
+		final Edge e = new Edge( store, merger.dataSize() );
+		for ( int i = 0; i < 5 * nNodes; ++i )
+		{
+			final int from = rng.nextInt( nNodes );
+			final int to = rng.nextInt( nNodes );
+			if ( from != to )
+				e.add( Double.NaN, rng.nextInt( 20 ) / 20.0, from, to, 1 + rng.nextInt( 3 ) );
+		}
+
+		// consecutive runs on the same graph and regions
+		final UndirectedGraph g = new UndirectedGraph( nNodes, new TDoubleArrayList( store.toArray() ), merger );
+		final ArrayStoreUnionFind uf = new ArrayStoreUnionFind( nNodes );
+		final TLongArrayList merges = new TLongArrayList();
+		final long[][] luts = new long[ thresholds.length ][ nNodes ];
+		for ( int i = 0; i < thresholds.length; ++i )
+		{
+			merges.add( RegionMerging.mergeLocallyMinimalEdges( g, merger, ew, thresholds[ i ], 0, new TIntHashSet(), null, uf ).getA().toArray() );
+			for ( int node = 0; node < nNodes; ++node )
+				luts[ i ][ node ] = uf.findRoot( node );
+		}
+
+		final UndirectedGraph swept = new UndirectedGraph( nNodes, new TDoubleArrayList( store.toArray() ), merger );
+		final TLongArrayList sweptMerges = new TLongArrayList();
+		final List< ArrayStoreUnionFind > snapshots = new ArrayList<>();
+		RegionMerging.sweepThresholds( swept, merger, ew, thresholds, 0, new TIntHashSet(), null, new ArrayStoreUnionFind( nNodes ), 0.02, MergeSink.of( sweptMerges ), ( threshold, regionMapping ) -> snapshots.add( regionMapping.clone() ) );
+		Assert.assertEquals( merges, sweptMerges );
+		Assert.assertEquals( thresholds.length, snapshots.size() );
+		for ( int i = 0; i < thresholds.length; ++i )
+			for ( int node = 0; node < nNodes; ++node )
+				Assert.assertEquals( luts[ i ][ node ], snapshots.get( i ).findRoot( node ) );
+
+		final long[][] sweptLuts = RegionMerging.sweepThresholds( new UndirectedGraph( nNodes, new TDoubleArrayList( store.toArray() ), merger ), merger, ew, thresholds, 0, new TIntHashSet(), null );
+		for ( int i = 0; i < thresholds.length; ++i )
+			Assert.assertArrayEquals( luts[ i ], sweptLuts[ i ] );
+
+		// first threshold is a single run, regions are nested
+		final HashMapStoreUnionFind single = RegionMerging.mergeLocallyMinimalEdges( new UndirectedGraph( nNodes, new TDoubleArrayList( store.toArray() ), merger ), merger, ew, thresholds[ 0 ] ).getB();
+		for ( int node = 0; node < nNodes; ++node )
+		{
+			Assert.assertEquals( single.findRoot( node ), single.findRoot( luts[ 0 ][ node ] ) );
+			Assert.assertEquals( luts[ 0 ][ node ], luts[ 0 ][ ( int ) single.findRoot( node ) ] );
+		}
+		for ( int i = 1; i < thresholds.length; ++i )
+			for ( int node = 0; node < nNodes; ++node )
+				Assert.assertEquals( luts[ i ][ ( int ) luts[ i - 1 ][ node ] ], luts[ i ][ node ] );
+		Assert.assertTrue( snapshots.get( thresholds.length - 1 ).setCount() < snapshots.get( 0 ).setCount() );
+	}
+
+	@Test
+	public void testMergeKeepsLargerAdjacency()
+	{
+		final EdgeMerger merger = new EdgeMerger.MIN_AFFINITY_MERGER();
+		final TDoubleArrayList store = new TDoubleArrayList();
+		final Edge e = new Edge( store, merger.dataSize() );
+		// star around node 0, node 1 is the first node of the contracted edge
+		for ( int leaf = 1; leaf <= 5; ++leaf )
+			e.add( Double.NaN, 0.5, leaf, 0, 1 );
+		final UndirectedGraph star = new UndirectedGraph( 6, store, merger );
+
+		final HashMapStoreUnionFind regionMapping = new HashMapStoreUnionFind();
+		final TLongArrayList merges = new TLongArrayList();
+		e.setIndex( 0 );
+		Assert.assertTrue( RegionMerging.mergeEdge( star, e, 0, regionMapping, merger, merges ) );
+		// ranks decide the root, degrees decide the node that remains
+		Assert.assertEquals( 1, regionMapping.findRoot( 0 ) );
+		Assert.assertEquals( 4, star.degree( 0 ) );
+		Assert.assertEquals( 0, star.degree( 1 ) );
+		Assert.assertEquals( 5, star.nLiveNodes() );
+		// edges of the star are moved to the root
+		for ( int k = 1; k < 5; ++k )
+		{
+			e.setIndex( k );
+			Assert.assertEquals( 0, e.from() );
+			Assert.assertEquals( k + 1, e.to() );
+			Assert.assertTrue( e.isValid() && e.isStale() );
+		}
+	}
+
+	@Test
+	public void testParallelEdgeOfRootSurvives()
+	{
+		// 3 has the larger adjacency when it is merged with 1, but 1 is the
+		// root. The edges 0-4 and 3-4 become parallel when 0 is merged and
+		// 3-4 is kept because 3 is in the region of the root, so it is merged
+		// at its weight before the contraction.
+		final EdgeMerger merger = new EdgeMerger.AVG_AFFINITY_MERGER();
+		final EdgeWeight ew = new EdgeWeight.OneMinusAffinity();
+		final TDoubleArrayList store = new TDoubleArrayList();
+		final Edge e = new Edge( store, merger.dataSize() );
+		e.add( Double.NaN, 0.6, 1, 3, 3 );
+		e.add( Double.NaN, 0.4, 0, 4, 2 );
+		e.add( Double.NaN, 0.5, 0, 3, 1 );
+		e.add( Double.NaN, 0.5, 3, 4, 1 );
+		for ( int i = 0; i < e.size(); ++i )
+		{
+			e.setIndex( i );
+			e.setStale();
+			e.setValid();
+		}
+
+		final Pair< TLongArrayList, HashMapStoreUnionFind > result = RegionMerging.mergeLocallyMinimalEdges( new UndirectedGraph( 5, store, merger ), merger, ew, 0.5 );
+		final TLongArrayList merges = result.getA();
+		final HashMapStoreUnionFind regionMapping = result.getB();
+
+		final long[][] expected = { { 0, 1, 3 }, { 2, 1, 0 }, { 3, 1, 4 } };
+		final double[] expectedWeights = { 0.4, 0.5, 0.5 };
+		Assert.assertEquals( expected.length * RegionMerging.MERGES_LOG_STEP_SIZE, merges.size() );
+		for ( int i = 0; i < expected.length; ++i )
+		{
+			final int offset = i * RegionMerging.MERGES_LOG_STEP_SIZE;
+			Assert.assertArrayEquals( expected[ i ], new long[] {
+					merges.get( offset + RegionMerging.MERGES_LOG_EDGE_INDEX_OFFSET ),
+					merges.get( offset + RegionMerging.MERGES_LOG_FROM_OFFSET ),
+					merges.get( offset + RegionMerging.MERGES_LOG_TO_OFFSET ) } );
+			Assert.assertEquals( expectedWeights[ i ], Double.longBitsToDouble( merges.get( offset + RegionMerging.MERGES_LOG_WEIGHT_OFFSET ) ), 1e-9 );
+		}
+
+		for ( final long node : new long[] { 0, 3, 4 } )
+			Assert.assertEquals( 1, regionMapping.findRoot( node ) );
+		Assert.assertEquals( 2, regionMapping.findRoot( 2 ) );
+	}
+
+	@Test
+	public void testPlateauInvalidatedByMergedEdge()
+	{
+		// 3-2 is an isolated minimum, 0-1 and 1-2 form a plateau that is
+		// invalid because 1-2 is not a local minimum. Merging 3-2 merges 1-2
+		// into the parallel edge 1-3, which must not validate the plateau:
+		// 1-3 is below the minimum multiplicity before the merge, ends up
+		// with a lower weight than 0-1 and is merged first.
+		final EdgeMerger merger = new EdgeMerger.AVG_AFFINITY_MERGER();
+		final EdgeWeight ew = new EdgeWeight.OneMinusAffinity();
+		final TDoubleArrayList store = new TDoubleArrayList();
+		final Edge e = new Edge( store, merger.dataSize() );
+		e.add( Double.NaN, 0.95, 1, 3, 1 );
+		e.add( Double.NaN, 0.9, 3, 2, 3 );
+		e.add( Double.NaN, 0.8, 0, 1, 3 );
+		e.add( Double.NaN, 0.8, 1, 2, 3 );
+		for ( int i = 0; i < e.size(); ++i )
+		{
+			e.setIndex( i );
+			e.setStale();
+			e.setValid();
+		}
+
+		final TLongArrayList merges = RegionMerging.mergeLocallyMinimalEdges( new UndirectedGraph( 4, store, merger ), merger, ew, 0.5, 2, new TIntHashSet() ).getA();
+
+		final long[][] expected = { { 1, 3, 2 }, { 0, 1, 3 }, { 2, 3, 0 } };
+		Assert.assertEquals( expected.length * RegionMerging.MERGES_LOG_STEP_SIZE, merges.size() );
+		for ( int i = 0; i < expected.length; ++i )
+		{
+			final int offset = i * RegionMerging.MERGES_LOG_STEP_SIZE;
+			Assert.assertArrayEquals( expected[ i ], new long[] {
+					merges.get( offset + RegionMerging.MERGES_LOG_EDGE_INDEX_OFFSET ),
+					merges.get( offset + RegionMerging.MERGES_LOG_FROM_OFFSET ),
+					merges.get( offset + RegionMerging.MERGES_LOG_TO_OFFSET ) } );
+		}
+	}
+
 }
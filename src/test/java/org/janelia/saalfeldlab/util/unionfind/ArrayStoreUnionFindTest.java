@@ -0,0 +1,57 @@
+package org.janelia.saalfeldlab.util.unionfind;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ArrayStoreUnionFindTest
+{
+
+	@Test
+	public void testSameRootsAsHashMapStore()
+	{
+		final Random rng = new Random( 100 );
+		final int size = 1000;
+		final ArrayStoreUnionFind arrayStore = new ArrayStoreUnionFind( size );
+		final HashMapStoreUnionFind hashMapStore = new HashMapStoreUnionFind( size );
+
+		for ( int i = 0; i < 800; ++i )
+		{
+			final long id1 = rng.nextInt( size );
+			final long id2 = rng.nextInt( size );
+			final long r1 = arrayStore.findRoot( id1 );
+			final long r2 = arrayStore.findRoot( id2 );
+			Assert.assertEquals( hashMapStore.findRoot( id1 ), r1 );
+			Assert.assertEquals( hashMapStore.findRoot( id2 ), r2 );
+			Assert.assertEquals( hashMapStore.join( r1, r2 ), arrayStore.join( r1, r2 ) );
+			Assert.assertEquals( hashMapStore.setCount(), arrayStore.setCount() );
+		}
+
+		for ( int id = 0; id < size; ++id )
+			Assert.assertEquals( hashMapStore.findRoot( id ), arrayStore.findRoot( id ) );
+	}
+
+	@Test
+	public void testGrow()
+	{
+		final ArrayStoreUnionFind uf = new ArrayStoreUnionFind();
+		Assert.assertEquals( 0, uf.size() );
+		Assert.assertEquals( 5, uf.findRoot( 5 ) );
+		Assert.assertEquals( 6, uf.size() );
+		Assert.assertEquals( 6, uf.setCount() );
+
+		final long root = uf.join( uf.findRoot( 3 ), uf.findRoot( 20 ) );
+		Assert.assertEquals( 21, uf.size() );
+		Assert.assertEquals( 20, uf.setCount() );
+		Assert.assertEquals( root, uf.findRoot( 3 ) );
+		Assert.assertEquals( root, uf.findRoot( 20 ) );
+
+		final ArrayStoreUnionFind copy = uf.clone();
+		copy.join( copy.findRoot( 0 ), copy.findRoot( 1 ) );
+		Assert.assertEquals( 19, copy.setCount() );
+		Assert.assertEquals( 20, uf.setCount() );
+		Assert.assertNotEquals( uf.findRoot( 0 ), uf.findRoot( 1 ) );
+	}
+
+}
@@ -0,0 +1,86 @@
+package org.janelia.saalfeldlab.util.unionfind;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrentArrayStoreUnionFindTest
+{
+
+	@Test
+	public void testConcurrentJoinsMatchSequential() throws InterruptedException, ExecutionException
+	{
+		final int nThreads = 8;
+		final int size = 20000;
+		final int nJoinsPerThread = 4000;
+		final Random rng = new Random( 100 );
+
+		final ExecutorService es = Executors.newFixedThreadPool( nThreads );
+
+		for ( int trial = 0; trial < 20; ++trial )
+		{
+			// few distinct ids per trial to provoke contention on the same
+			// roots
+			final int nIds = trial % 2 == 0 ? size : 500;
+			final long[][] joins = new long[ nThreads ][ 2 * nJoinsPerThread ];
+			for ( final long[] threadJoins : joins )
+				for ( int i = 0; i < threadJoins.length; ++i )
+					threadJoins[ i ] = rng.nextInt( nIds );
+
+			final ConcurrentArrayStoreUnionFind concurrent = new ConcurrentArrayStoreUnionFind( size );
+			final CountDownLatch start = new CountDownLatch( 1 );
+			final List< Future< ? > > futures = new ArrayList<>();
+			for ( final long[] threadJoins : joins )
+				futures.add( es.submit( () -> {
+					start.await();
+					for ( int i = 0; i < threadJoins.length; i += 2 )
+					{
+						final long root = concurrent.join( threadJoins[ i ], threadJoins[ i + 1 ] );
+						// interleave finds that split paths
+						concurrent.findRoot( threadJoins[ i ] );
+						Assert.assertTrue( root >= 0 && root < size );
+					}
+					return null;
+				} ) );
+			start.countDown();
+			for ( final Future< ? > future : futures )
+				future.get();
+
+			final HashMapStoreUnionFind sequential = new HashMapStoreUnionFind( size );
+			for ( final long[] threadJoins : joins )
+				for ( int i = 0; i < threadJoins.length; i += 2 )
+					sequential.join( sequential.findRoot( threadJoins[ i ] ), sequential.findRoot( threadJoins[ i + 1 ] ) );
+
+			Assert.assertEquals( sequential.setCount(), concurrent.setCount() );
+
+			// same partition if the representatives map one to one
+			final long[] sequentialToConcurrent = new long[ size ];
+			final long[] concurrentToSequential = new long[ size ];
+			Arrays.fill( sequentialToConcurrent, -1 );
+			Arrays.fill( concurrentToSequential, -1 );
+			for ( int id = 0; id < size; ++id )
+			{
+				final int sequentialRoot = ( int ) sequential.findRoot( id );
+				final int concurrentRoot = ( int ) concurrent.findRoot( id );
+				if ( sequentialToConcurrent[ sequentialRoot ] == -1 )
+					sequentialToConcurrent[ sequentialRoot ] = concurrentRoot;
+				if ( concurrentToSequential[ concurrentRoot ] == -1 )
+					concurrentToSequential[ concurrentRoot ] = sequentialRoot;
+				Assert.assertEquals( sequentialToConcurrent[ sequentialRoot ], concurrentRoot );
+				Assert.assertEquals( concurrentToSequential[ concurrentRoot ], sequentialRoot );
+			}
+		}
+
+		es.shutdown();
+	}
+
+}